@@ -0,0 +1,178 @@
+package se.repos.vfile.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.custommonkey.xmlunit.XMLUnit;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import se.repos.vfile.VFileDocumentBuilderFactory;
+import se.repos.vfile.VFileXmlPool;
+import se.repos.vfile.gen.VFile;
+import se.repos.vfile.gen.XmlDiff;
+import se.repos.vfile.gen.XmlDiffNative;
+import se.repos.vfile.gen.XmlDiffXmlUnit;
+
+/**
+ * A revision series from the test resources, held in memory as bytes so that
+ * benchmarks measure parsing only where they mean to. Revisions are the files
+ * of the series folder in name order.
+ *
+ * The folder holding the series is taken from the system property
+ * {@value #DIR_PROPERTY}, or found relative to the working directory.
+ */
+public final class Corpus {
+
+    public static final String DIR_PROPERTY = "deltav.corpora";
+    private static final String DIR = "src/test/resources/se/repos/vfile";
+
+    static {
+        // Same XMLUnit configuration as VFileSvnTest.
+        DocumentBuilderFactory dbf = new VFileDocumentBuilderFactory();
+        XMLUnit.setTestDocumentBuilderFactory(dbf);
+        XMLUnit.setControlDocumentBuilderFactory(dbf);
+        XMLUnit.setCompareUnmatched(false);
+        XMLUnit.setExpandEntityReferences(true);
+        XMLUnit.setIgnoreComments(false);
+        XMLUnit.setIgnoreAttributeOrder(true);
+        XMLUnit.setIgnoreDiffBetweenTextAndCDATA(true);
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLUnit.setNormalize(true);
+        XMLUnit.setNormalizeWhitespace(false);
+    }
+
+    private final String name;
+    private final List<byte[]> revisions;
+
+    private Corpus(String name, List<byte[]> revisions) {
+        this.name = name;
+        this.revisions = revisions;
+    }
+
+    /**
+     * @param name
+     *            a series folder, e.g. "50k-27revs"
+     */
+    public static Corpus load(String name) throws IOException {
+        File folder = new File(Corpus.getDir(), name);
+        File[] files = folder.listFiles();
+        if (files == null || files.length == 0) {
+            throw new IOException("No revisions in " + folder.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        List<byte[]> revisions = new ArrayList<byte[]>(files.length);
+        for (File file : files) {
+            revisions.add(Corpus.read(file));
+        }
+        return new Corpus(name, revisions);
+    }
+
+    private static File getDir() {
+        String dir = System.getProperty(DIR_PROPERTY);
+        if (dir != null) {
+            return new File(dir);
+        }
+        File local = new File(DIR);
+        if (local.isDirectory()) {
+            return local;
+        }
+        // Run from the benchmarks folder.
+        return new File("..", DIR);
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the number of revisions
+     */
+    public int size() {
+        return this.revisions.size();
+    }
+
+    /**
+     * Parses a revision into a new document.
+     */
+    public Document parse(int revision) {
+        try {
+            return VFileXmlPool.getDocumentBuilder().parse(
+                    new ByteArrayInputStream(this.revisions.get(revision)));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        } catch (SAXException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the v:docVersion used for a revision
+     */
+    public static String version(int revision) {
+        return Integer.toString(revision + 1);
+    }
+
+    /**
+     * @return the v:docTime used for a revision
+     */
+    public static String time(int revision) {
+        return Long.toString(1000L * (revision + 1));
+    }
+
+    /**
+     * @param name
+     *            "native" or "xmlunit"
+     */
+    public static XmlDiff getXmlDiff(String name) {
+        if (name.equals("native")) {
+            return new XmlDiffNative();
+        }
+        if (name.equals("xmlunit")) {
+            return new XmlDiffXmlUnit();
+        }
+        throw new IllegalArgumentException("Unknown diff " + name);
+    }
+
+    /**
+     * Calculates the v-file of every revision.
+     * 
+     * @return the v-file documents, one per revision
+     */
+    public List<Document> calculate(XmlDiff xmlDiff) {
+        List<Document> vfiles = new ArrayList<Document>(this.size());
+        VFile vfile = VFile.normalizeDocument(this.parse(0), Corpus.time(0),
+                Corpus.version(0));
+        vfiles.add((Document) vfile.toDocument().cloneNode(true));
+        for (int i = 1; i < this.size(); i++) {
+            vfile.update(this.parse(i - 1), this.parse(i), Corpus.time(i),
+                    Corpus.version(i), xmlDiff);
+            vfiles.add((Document) vfile.toDocument().cloneNode(true));
+        }
+        return vfiles;
+    }
+}
@@ -0,0 +1,61 @@
+package se.repos.vfile.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+import se.repos.vfile.gen.NoMatchException;
+import se.repos.vfile.gen.SimpleXPath;
+import se.repos.vfile.gen.TaggedNode;
+import se.repos.vfile.gen.VFile;
+
+/**
+ * Matches the latest revision against the complete v-file of the series.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NodeMapBenchmark {
+
+    @Param({ "techdoc-demo1", "5k-10revs", "50k-27revs" })
+    public String corpus;
+
+    private Corpus series;
+    private VFile vfile;
+    private Document latest;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        this.series = Corpus.load(this.corpus);
+        List<Document> vfiles = this.series.calculate(Corpus.getXmlDiff("native"));
+        this.vfile = new VFile(vfiles.get(vfiles.size() - 1));
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() {
+        this.latest = this.series.parse(this.series.size() - 1);
+    }
+
+    @Benchmark
+    public Map<SimpleXPath, TaggedNode> getNodeMap() throws NoMatchException {
+        return this.vfile.getNodeMap(this.latest);
+    }
+
+    @Benchmark
+    public Document matchDocument() throws NoMatchException {
+        this.vfile.matchDocument(this.latest);
+        return this.latest;
+    }
+}
@@ -0,0 +1,52 @@
+package se.repos.vfile.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+import se.repos.vfile.gen.VFile;
+
+/**
+ * Creates the v-file of the first revision, from an already parsed document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NormalizeDocumentBenchmark {
+
+    /**
+     * 200k-manyrevs is left out by default: its internal DTD subset has
+     * parameter entities inside markup, which the v-file parser rejects.
+     */
+    @Param({ "techdoc-demo1", "5k-10revs", "50k-27revs" })
+    public String corpus;
+
+    private Corpus series;
+    private Document firstVersion;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        this.series = Corpus.load(this.corpus);
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() {
+        this.firstVersion = this.series.parse(0);
+    }
+
+    @Benchmark
+    public VFile normalizeDocument() {
+        return VFile.normalizeDocument(this.firstVersion, Corpus.time(0),
+                Corpus.version(0));
+    }
+}
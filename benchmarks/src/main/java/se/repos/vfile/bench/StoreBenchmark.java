@@ -0,0 +1,97 @@
+package se.repos.vfile.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.w3c.dom.Document;
+
+import se.repos.vfile.store.VFileStoreBinary;
+import se.repos.vfile.store.VFileStoreDisk;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.RepoRevision;
+import se.simonsoft.cms.item.impl.CmsItemIdUrl;
+
+/**
+ * Writes and reads the complete v-file of the series through a disk store in
+ * a temporary folder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StoreBenchmark {
+
+    @Param({ "techdoc-demo1", "5k-10revs", "50k-27revs" })
+    public String corpus;
+
+    /**
+     * "xml" for {@link VFileStoreDisk}, "binary" for {@link VFileStoreBinary}.
+     */
+    @Param({ "xml", "binary" })
+    public String format;
+
+    private File folder;
+    private VFileStoreDisk store;
+    private CmsItemId resource;
+    private Document vfile;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        Corpus series = Corpus.load(this.corpus);
+        List<Document> vfiles = series.calculate(Corpus.getXmlDiff("native"));
+        this.vfile = vfiles.get(vfiles.size() - 1);
+        this.folder = File.createTempFile("vfilestore", "");
+        this.folder.delete();
+        if (this.format.equals("binary")) {
+            this.store = new VFileStoreBinary(this.folder.getPath());
+        } else {
+            this.store = new VFileStoreDisk(this.folder.getPath());
+        }
+        this.resource = new CmsItemIdUrl(new CmsRepository("/bench", "repo"),
+                new CmsItemPath("/" + this.corpus + ".xml"));
+        this.store.put(this.resource, this.vfile);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        StoreBenchmark.delete(this.folder);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                StoreBenchmark.delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public void put() {
+        this.store.put(this.resource, this.vfile);
+    }
+
+    @Benchmark
+    public Document get() {
+        return this.store.get(this.resource);
+    }
+
+    @Benchmark
+    public RepoRevision getHighestCalculated() {
+        return this.store.getHighestCalculated(this.resource);
+    }
+}
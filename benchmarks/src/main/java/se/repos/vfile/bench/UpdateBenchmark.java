@@ -0,0 +1,66 @@
+package se.repos.vfile.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+import se.repos.vfile.gen.VFile;
+import se.repos.vfile.gen.XmlDiff;
+
+/**
+ * One {@link VFile#update} step. Each invocation takes the next revision of
+ * the series, starting over after the last, so the score is the mean over all
+ * steps. The v-file and both documents are prepared outside the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UpdateBenchmark {
+
+    @Param({ "techdoc-demo1", "5k-10revs", "50k-27revs" })
+    public String corpus;
+
+    @Param({ "xmlunit", "native" })
+    public String diff;
+
+    private Corpus series;
+    private XmlDiff xmlDiff;
+    private List<Document> vfiles;
+    private int step = 0;
+    private VFile vfile;
+    private Document oldDocument;
+    private Document newDocument;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        this.series = Corpus.load(this.corpus);
+        this.xmlDiff = Corpus.getXmlDiff(this.diff);
+        this.vfiles = this.series.calculate(this.xmlDiff);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextStep() {
+        this.step = this.step % (this.series.size() - 1) + 1;
+        this.vfile = new VFile((Document) this.vfiles.get(this.step - 1).cloneNode(true));
+        this.oldDocument = this.series.parse(this.step - 1);
+        this.newDocument = this.series.parse(this.step);
+    }
+
+    @Benchmark
+    public VFile update() {
+        this.vfile.update(this.oldDocument, this.newDocument, Corpus.time(this.step),
+                Corpus.version(this.step), this.xmlDiff);
+        return this.vfile;
+    }
+}
@@ -1,16 +1,23 @@
 package se.repos.vfile;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Inject;
 import javax.xml.parsers.DocumentBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import se.repos.vfile.gen.ElementUtils;
+import se.repos.vfile.gen.RevisionChange;
 import se.repos.vfile.gen.VFile;
+import se.repos.vfile.gen.XmlDiff;
+import se.repos.vfile.gen.XmlDiffXmlUnit;
 import se.repos.vfile.store.VFileStore;
 import se.simonsoft.cms.item.CmsItemId;
 import se.simonsoft.cms.item.RepoRevision;
@@ -21,12 +28,82 @@ public class VFileCalculatorImpl {
             .getLogger(VFileCalculatorImpl.class);
 
     private VFileStore storage;
-    private DocumentBuilder db;
+    private XmlDiff xmlDiff = new XmlDiffXmlUnit();
+    private VFileMetrics metrics = new VFileMetricsNoop();
+    private Unchanged unchanged = Unchanged.VERSION;
 
+    /**
+     * What an increment does when the new revision has the same
+     * {@link VFile#getContentHash(Document)} as the v-file, for example after
+     * a commit that only changed properties or whitespace between elements.
+     */
+    public enum Unchanged {
+        /**
+         * Diffs the revisions like any other.
+         */
+        DIFF,
+        /**
+         * Only moves the v-file to the new revision, without parsing the
+         * previous revision or diffing.
+         */
+        VERSION,
+        /**
+         * Leaves the stored v-file at the revision it was at, so the
+         * revision is not reported as calculated.
+         */
+        SKIP
+    }
+
+    /**
+     * @param storage
+     *            must be thread safe if the calculator is shared between
+     *            threads, like all stores in this project are
+     */
     @Inject
     public VFileCalculatorImpl(VFileStore storage) {
         this.storage = storage;
-        this.db = new VFileDocumentBuilderFactory().newDocumentBuilder();
+    }
+
+    /**
+     * @param xmlDiff
+     *            the diff implementation to calculate increments with,
+     *            defaults to {@link XmlDiffXmlUnit}
+     * @return this
+     */
+    public VFileCalculatorImpl setXmlDiff(XmlDiff xmlDiff) {
+        this.xmlDiff = xmlDiff;
+        return this;
+    }
+
+    /**
+     * @param metrics
+     *            receives measurements of each increment, defaults to
+     *            {@link VFileMetricsNoop}, must be thread safe if the
+     *            calculator is shared between threads
+     * @return this
+     */
+    public VFileCalculatorImpl setMetrics(VFileMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @param unchanged
+     *            what to do with a revision that has the same content hash as
+     *            the v-file, defaults to {@link Unchanged#VERSION}
+     * @return this
+     */
+    public VFileCalculatorImpl setUnchanged(Unchanged unchanged) {
+        this.unchanged = unchanged;
+        return this;
+    }
+
+    /**
+     * @return the metrics that increments are reported to, also by the
+     *         {@link VFileCommitItemHandler} using this calculator
+     */
+    public VFileMetrics getMetrics() {
+        return this.metrics;
     }
 
     /**
@@ -51,23 +128,271 @@ public class VFileCalculatorImpl {
     public void increment(CmsItemId itemId, RepoRevision previous,
             InputSource oldContent, RepoRevision current, InputSource newContent) {
         logger.debug("Increment requested for {} {}->{}", itemId, previous, current);
+        DocumentBuilder db = VFileXmlPool.getDocumentBuilder();
+        Document newDocument;
         VFile index;
         try {
             if (oldContent == null) {
-                index = VFile.normalizeDocument(this.db.parse(newContent),
+                long start = System.nanoTime();
+                newDocument = db.parse(newContent);
+                start = this.endPhase(VFileMetrics.Phase.PARSE, start);
+                index = VFile.normalizeDocument(newDocument,
                         Long.toString(current.getDate().getTime()),
                         Long.toString(current.getNumber()));
+                this.endPhase(VFileMetrics.Phase.UPDATE, start);
             } else {
-                index = new VFile(this.storage.get(itemId));
-                index.update(this.db.parse(oldContent), this.db.parse(newContent),
+                long start = System.nanoTime();
+                newDocument = db.parse(newContent);
+                this.endPhase(VFileMetrics.Phase.PARSE, start);
+                if (this.isUnchanged(this.getContentHash(itemId), newDocument)) {
+                    this.moveUnchanged(itemId, current, newDocument);
+                    return;
+                }
+                index = this.load(itemId);
+                start = System.nanoTime();
+                Document oldDocument = db.parse(oldContent);
+                this.endPhase(VFileMetrics.Phase.PARSE, start);
+                index.update(oldDocument, newDocument,
+                        Long.toString(current.getDate().getTime()),
+                        Long.toString(current.getNumber()), this.xmlDiff);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        } catch (SAXException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        this.store(itemId, newDocument, index, index.getChanges());
+    }
+
+    /**
+     * Like {@link #increment(CmsItemId, RepoRevision, InputSource, RepoRevision, InputSource)}
+     * but takes the previous content from the stored V-file, so it need not
+     * be fetched or parsed.
+     * 
+     * @param itemId
+     *            The key for storing the item, with peg revision equal to
+     *            current
+     * @param previous
+     *            Previous commit revision, null if the item was just added
+     * @param current
+     *            Current commit revision, with timestamp
+     * @param newContent
+     *            parseable as XML
+     */
+    public void increment(CmsItemId itemId, RepoRevision previous,
+            RepoRevision current, InputSource newContent) {
+        logger.debug("Increment from V-file requested for {} {}->{}", itemId, previous,
+                current);
+        DocumentBuilder db = VFileXmlPool.getDocumentBuilder();
+        Document newDocument;
+        VFile index;
+        try {
+            if (previous == null) {
+                long start = System.nanoTime();
+                newDocument = db.parse(newContent);
+                start = this.endPhase(VFileMetrics.Phase.PARSE, start);
+                index = VFile.normalizeDocument(newDocument,
                         Long.toString(current.getDate().getTime()),
                         Long.toString(current.getNumber()));
+                this.endPhase(VFileMetrics.Phase.UPDATE, start);
+            } else {
+                long start = System.nanoTime();
+                newDocument = db.parse(newContent);
+                this.endPhase(VFileMetrics.Phase.PARSE, start);
+                if (this.isUnchanged(this.getContentHash(itemId), newDocument)) {
+                    this.moveUnchanged(itemId, current, newDocument);
+                    return;
+                }
+                index = this.load(itemId);
+                index.update(newDocument, Long.toString(current.getDate().getTime()),
+                        Long.toString(current.getNumber()), this.xmlDiff);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        } catch (SAXException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        this.store(itemId, newDocument, index, index.getChanges());
+    }
+
+    /**
+     * Like {@link #increment(CmsItemId, RepoRevision, RepoRevision, InputSource)}
+     * for consecutive revisions of the item, loading and storing the V-file
+     * once. Revisions that the stored V-file already has are skipped, so the
+     * same revisions can be given again after a failure.
+     * 
+     * @param itemId
+     *            The key for storing the item, without peg revision
+     * @param previous
+     *            The commit revision before the first of revisions, null if
+     *            the item was just added. If there is no stored V-file the
+     *            item is calculated as added in the first of revisions.
+     * @param revisions
+     *            Commit revisions, oldest first, with timestamps
+     * @param newContents
+     *            parseable as XML, one for each revision
+     */
+    public void increment(CmsItemId itemId, RepoRevision previous,
+            List<RepoRevision> revisions, List<InputSource> newContents) {
+        if (revisions.size() != newContents.size()) {
+            throw new IllegalArgumentException("Expected content for each revision.");
+        }
+        logger.debug("Increment from V-file requested for {} {}->{}", itemId, previous,
+                revisions);
+        int first = 0;
+        RepoRevision highest = this.storage.getHighestCalculated(itemId);
+        while (highest != null && first < revisions.size()
+                && highest.getNumber() >= revisions.get(first).getNumber()) {
+            previous = revisions.get(first++);
+        }
+        if (first == revisions.size()) {
+            return;
+        }
+        if (previous != null && highest == null) {
+            logger.warn("No V-file for {} at {}, calculating it from {}", itemId,
+                    previous, revisions.get(first));
+            previous = null;
+        }
+        DocumentBuilder db = VFileXmlPool.getDocumentBuilder();
+        Document newDocument = null;
+        // Loaded at the first revision with changed content.
+        VFile index = null;
+        String storedHash = previous == null ? null : this.getContentHash(itemId);
+        RepoRevision moved = null;
+        List<RevisionChange> changes = new ArrayList<RevisionChange>();
+        boolean updated = false;
+        try {
+            for (int i = first; i < revisions.size(); i++) {
+                RepoRevision current = revisions.get(i);
+                String time = Long.toString(current.getDate().getTime());
+                String version = Long.toString(current.getNumber());
+                long start = System.nanoTime();
+                newDocument = db.parse(newContents.get(i));
+                start = this.endPhase(VFileMetrics.Phase.PARSE, start);
+                if (index == null && previous == null) {
+                    index = VFile.normalizeDocument(newDocument, time, version);
+                    index.setMetrics(this.metrics);
+                    this.endPhase(VFileMetrics.Phase.UPDATE, start);
+                } else if (this.isUnchanged(index == null ? storedHash : index
+                        .getContentHash(), newDocument)) {
+                    logger.debug("Content of {} unchanged in {}", itemId, current);
+                    if (this.unchanged == Unchanged.SKIP) {
+                        continue;
+                    }
+                    if (index == null) {
+                        moved = current;
+                        continue;
+                    }
+                    this.updateUnchanged(index, current);
+                } else {
+                    if (index == null) {
+                        index = this.load(itemId);
+                        if (moved != null) {
+                            this.updateUnchanged(index, moved);
+                            changes.addAll(index.getChanges());
+                            moved = null;
+                        }
+                    }
+                    index.update(newDocument, time, version, this.xmlDiff);
+                }
+                changes.addAll(index.getChanges());
+                updated = true;
             }
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
         } catch (SAXException e) {
             throw new RuntimeException(e.getMessage());
         }
-        this.storage.put(itemId, index.toDocument());
+        if (updated) {
+            this.store(itemId, newDocument, index, changes);
+        } else if (moved != null) {
+            this.moveUnchanged(itemId, moved, newDocument);
+        }
+    }
+
+    private VFile load(CmsItemId itemId) {
+        long start = System.nanoTime();
+        VFile index = new VFile(this.storage.checkout(itemId));
+        this.endPhase(VFileMetrics.Phase.LOAD, start);
+        index.setMetrics(this.metrics);
+        return index;
+    }
+
+    /**
+     * @return the content hash of the stored v-file, read without loading it
+     *         where the store can, null if revisions are always diffed
+     */
+    private String getContentHash(CmsItemId itemId) {
+        if (this.unchanged == Unchanged.DIFF) {
+            return null;
+        }
+        long start = System.nanoTime();
+        String contentHash = this.storage.getContentHash(itemId);
+        this.endPhase(VFileMetrics.Phase.LOAD, start);
+        return contentHash;
+    }
+
+    private boolean isUnchanged(String contentHash, Document newDocument) {
+        return this.unchanged != Unchanged.DIFF && contentHash != null
+                && contentHash.equals(VFile.getContentHash(newDocument));
+    }
+
+    /**
+     * Moves the stored v-file to a revision with unchanged content, through
+     * {@link VFileStore#putUnchanged(CmsItemId, RepoRevision)} if the store
+     * supports it, unless unchanged revisions are skipped.
+     */
+    private void moveUnchanged(CmsItemId itemId, RepoRevision current,
+            Document newDocument) {
+        logger.debug("Content of {} unchanged in {}", itemId, current);
+        if (this.unchanged == Unchanged.SKIP) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (this.storage.putUnchanged(itemId, current)) {
+            this.endPhase(VFileMetrics.Phase.STORE, start);
+            return;
+        }
+        VFile index = this.load(itemId);
+        this.updateUnchanged(index, current);
+        this.store(itemId, newDocument, index, index.getChanges());
+    }
+
+    private void updateUnchanged(VFile index, RepoRevision current) {
+        long start = System.nanoTime();
+        index.updateUnchanged(Long.toString(current.getDate().getTime()),
+                Long.toString(current.getNumber()));
+        this.endPhase(VFileMetrics.Phase.UPDATE, start);
+    }
+
+    /**
+     * @param changes
+     *            of the revisions since the v-file was loaded, for the
+     *            revision index
+     */
+    private void store(CmsItemId itemId, Document newDocument, VFile index,
+            List<RevisionChange> changes) {
+        long vfileNodes = -1;
+        if (this.metrics.wantsNodeCounts()) {
+            // Counted before the check in, which hands the v-file over.
+            vfileNodes = ElementUtils.countNodes(index.toDocument());
+        }
+        long start = System.nanoTime();
+        this.storage.checkin(itemId, index.toDocument(), changes);
+        this.endPhase(VFileMetrics.Phase.STORE, start);
+        if (vfileNodes >= 0) {
+            this.metrics.increment(ElementUtils.countNodes(newDocument), vfileNodes);
+        }
+    }
+
+    /**
+     * Reports a phase that started at start.
+     * 
+     * @return the time the phase ended
+     */
+    private long endPhase(VFileMetrics.Phase phase, long start) {
+        long end = System.nanoTime();
+        this.metrics.phase(phase, end - start);
+        return end;
     }
 }
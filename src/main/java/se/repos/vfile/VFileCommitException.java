@@ -0,0 +1,55 @@
+package se.repos.vfile;
+
+import java.util.Collections;
+import java.util.Map;
+
+import se.simonsoft.cms.item.events.change.CmsChangesetItem;
+
+/**
+ * Thrown after all items of a changeset have been processed concurrently, if
+ * some of them failed. Without a transaction store the v-files of the other
+ * items have been stored. With one, see
+ * {@link VFileCommitHandler#setTransactionStore(se.repos.vfile.store.VFileTransactionStore)},
+ * the transaction was rolled back and none of the items were stored.
+ *
+ * Items processed one at a time in the calling thread are not collected like
+ * this: the first failure is thrown as it is and the items after it are not
+ * processed.
+ */
+public class VFileCommitException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<CmsChangesetItem, Throwable> failures;
+
+    /**
+     * @param failures
+     *            the cause of each failed item, in changeset order
+     * @param itemCount
+     *            number of items in the changeset
+     */
+    public VFileCommitException(Map<CmsChangesetItem, Throwable> failures, int itemCount) {
+        super(VFileCommitException.getMessage(failures, itemCount), failures.values()
+                .iterator().next());
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    private static String getMessage(Map<CmsChangesetItem, Throwable> failures,
+            int itemCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(failures.size()).append(" of ").append(itemCount)
+                .append(" items failed:");
+        for (Map.Entry<CmsChangesetItem, Throwable> f : failures.entrySet()) {
+            sb.append(" ").append(f.getKey().getPath()).append(" (")
+                    .append(f.getValue().getMessage()).append(")");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the cause of each failed item, in changeset order
+     */
+    public Map<CmsChangesetItem, Throwable> getFailures() {
+        return this.failures;
+    }
+}
@@ -1,7 +1,21 @@
 package se.repos.vfile;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.inject.Inject;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.repos.vfile.store.VFileTransactionStore;
 import se.simonsoft.cms.item.RepoRevision;
 import se.simonsoft.cms.item.events.ChangesetEventListener;
 import se.simonsoft.cms.item.events.change.CmsChangeset;
@@ -14,9 +28,15 @@ import se.simonsoft.cms.item.inspection.CmsRepositoryInspection;
  */
 @SuppressWarnings("deprecation")
 public class VFileCommitHandler implements ChangesetEventListener {
+
+    private static final Logger logger = LoggerFactory
+            .getLogger(VFileCommitHandler.class);
+
     private CmsRepositoryInspection repository;
     private VFileCommitItemHandler itemHandler;
     private CmsChangesetReader changesetReader = null;
+    private Executor executor = null;
+    private VFileTransactionStore transactionStore = null;
 
     @Inject
     public VFileCommitHandler(CmsRepositoryInspection repository,
@@ -37,17 +57,159 @@ public class VFileCommitHandler implements ChangesetEventListener {
         return this;
     }
 
+    /**
+     * @param executor
+     *            to process the items of a changeset concurrently, null to
+     *            process them one at a time in the calling thread
+     * @return this
+     */
+    public VFileCommitHandler setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @param transactionStore
+     *            the store that the item handler writes to, to store all items
+     *            of a changeset in one commit, null to store each item as it
+     *            is done; must not be behind a cache, which would keep v-files
+     *            that were rolled back
+     * @return this
+     */
+    public VFileCommitHandler setTransactionStore(VFileTransactionStore transactionStore) {
+        this.transactionStore = transactionStore;
+        return this;
+    }
+
+    /**
+     * Processes all items of the changeset. With an executor, the items are
+     * processed concurrently and a failing item does not stop the others.
+     * With a transaction store, either all items are stored or, if any of
+     * them failed, none. The transaction is the changeset's own, so
+     * changesets can be processed concurrently.
+     * 
+     * @throws VFileCommitException
+     *             With an executor, after all items are done, if any of
+     *             them failed.
+     */
     @Override
     public void onCommit(CmsChangeset changeset) {
+        if (this.transactionStore == null) {
+            this.onCommitItems(changeset, null);
+            return;
+        }
+        VFileTransactionStore.Transaction transaction = this.transactionStore.begin();
+        try {
+            this.onCommitItems(changeset, transaction);
+            transaction.commit();
+        } finally {
+            transaction.rollback(); // nothing left after commit
+        }
+    }
+
+    private void onCommitItems(CmsChangeset changeset,
+            VFileTransactionStore.Transaction transaction) {
         // if (!this.repository.equals(changeset.getRepository())) {
         // throw new IllegalArgumentException("Was initialized for repository "
         // + this.repository + " but got " + changeset.getRepository());
         // }
+        if (this.executor != null) {
+            this.onCommitConcurrent(changeset.getItems(), transaction);
+            return;
+        }
         for (CmsChangesetItem item : changeset.getItems()) {
             this.itemHandler.onCommit(this.repository, item);
         }
     }
 
+    /**
+     * @param transaction
+     *            joined by the threads that process the items, null if none
+     */
+    private void onCommitConcurrent(List<CmsChangesetItem> items,
+            final VFileTransactionStore.Transaction transaction) {
+        if (transaction != null) {
+            // The items are put from the threads that process them, which
+            // may include this one.
+            transaction.leave();
+        }
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(items.size());
+        for (final CmsChangesetItem item : items) {
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (cancelled.get()) {
+                        return null;
+                    }
+                    if (transaction != null) {
+                        transaction.join();
+                    }
+                    try {
+                        VFileCommitHandler.this.itemHandler.onCommit(
+                                VFileCommitHandler.this.repository, item);
+                    } finally {
+                        if (transaction != null) {
+                            transaction.leave();
+                        }
+                    }
+                    return null;
+                }
+            });
+            tasks.add(task);
+            try {
+                this.executor.execute(task);
+            } catch (RuntimeException e) {
+                cancelled.set(true);
+                VFileCommitHandler.await(tasks.subList(0, tasks.size() - 1));
+                throw e;
+            }
+        }
+        Map<CmsChangesetItem, Throwable> failures = new LinkedHashMap<CmsChangesetItem, Throwable>();
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                tasks.get(i).get();
+            } catch (ExecutionException e) {
+                logger.error("V-file calculation failed for {}", items.get(i).getPath(),
+                        e.getCause());
+                failures.put(items.get(i), e.getCause());
+            } catch (InterruptedException e) {
+                // Items that have not started are skipped, and no item is
+                // left running when the transaction is rolled back.
+                cancelled.set(true);
+                VFileCommitHandler.await(tasks);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new VFileCommitException(failures, items.size());
+        }
+    }
+
+    /**
+     * Waits for all tasks to finish, without being interrupted, whether they
+     * fail or not.
+     */
+    private static void await(List<FutureTask<Void>> tasks) {
+        boolean interrupted = false;
+        for (FutureTask<Void> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void onCommit(RepoRevision revision) {
         CmsChangeset changeset = this.changesetReader.read(this.repository, revision);
         this.onCommit(changeset);
@@ -2,12 +2,18 @@ package se.repos.vfile;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
 import org.xml.sax.InputSource;
 
 import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
 import se.simonsoft.cms.item.RepoRevision;
 import se.simonsoft.cms.item.events.change.CmsChangesetItem;
 import se.simonsoft.cms.item.impl.CmsItemIdUrl;
@@ -22,6 +28,19 @@ public class VFileCommitItemHandler {
 
     private VFileCalculatorImpl calculator;
     private CmsContentsReader contentsReader;
+    private boolean previousFromVFile = false;
+    private Executor readExecutor = null;
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    /**
+     * Reads the contents back without copying them out of the buffer.
+     */
+    private static class ContentsBuffer extends ByteArrayOutputStream {
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(this.buf, 0, this.count);
+        }
+    }
 
     @Inject
     public VFileCommitItemHandler(VFileCalculatorImpl calculator,
@@ -30,30 +49,119 @@ public class VFileCommitItemHandler {
         this.contentsReader = contentsReader;
     }
 
+    /**
+     * @param previousFromVFile
+     *            true to take the previous content from the stored V-file
+     *            instead of reading it from the repository, default false
+     * @return this
+     */
+    public VFileCommitItemHandler setPreviousFromVFile(boolean previousFromVFile) {
+        this.previousFromVFile = previousFromVFile;
+        return this;
+    }
+
+    /**
+     * @param readExecutor
+     *            to read the contents of each revision from the repository
+     *            while they are parsed, through a pipe, instead of reading them
+     *            into memory first, default null. A read may wait for the
+     *            parse, so this must not be an executor that items are
+     *            processed on, and the calculator's metrics must be thread
+     *            safe.
+     * @return this
+     */
+    public VFileCommitItemHandler setReadExecutor(Executor readExecutor) {
+        this.readExecutor = readExecutor;
+        return this;
+    }
+
     public void onCommit(CmsRepositoryInspection repository,
             CmsChangesetItem changesetItem) {
         RepoRevision revision = changesetItem.getRevisionChanged();
         CmsItemId itemId = new CmsItemIdUrl(repository, changesetItem.getPath())
                 .withPegRev(revision.getNumber());
 
-        // buffers
-        ByteArrayOutputStream current = new ByteArrayOutputStream();
-        this.contentsReader.getContents(repository, revision, itemId.getRelPath(),
-                current);
-        InputSource sourceCurrent = new InputSource(new ByteArrayInputStream(
-                current.toByteArray()));
-
         RepoRevision revisionPrevious = changesetItem.getRevisionObsoleted();
-        InputSource sourcePrevious = null;
-        if (revisionPrevious != null) {
-            ByteArrayOutputStream previous = new ByteArrayOutputStream();
-            this.contentsReader.getContents(repository, revisionPrevious,
-                    itemId.getRelPath(), previous);
-            sourcePrevious = new InputSource(new ByteArrayInputStream(
-                    previous.toByteArray()));
+        InputStream current = null;
+        InputStream previous = null;
+        try {
+            current = this.getContents(repository, revision, itemId.getRelPath());
+            if (this.previousFromVFile) {
+                this.calculator.increment(itemId.withPegRev(null), revisionPrevious,
+                        revision, new InputSource(current));
+                return;
+            }
+            InputSource sourcePrevious = null;
+            if (revisionPrevious != null) {
+                previous = this.getContents(repository, revisionPrevious,
+                        itemId.getRelPath());
+                sourcePrevious = new InputSource(previous);
+            }
+            this.calculator.increment(itemId.withPegRev(null), revisionPrevious,
+                    sourcePrevious, revision, new InputSource(current));
+        } finally {
+            VFileCommitItemHandler.close(current);
+            VFileCommitItemHandler.close(previous);
         }
+    }
 
-        this.calculator.increment(itemId.withPegRev(null), revisionPrevious,
-                sourcePrevious, revision, sourceCurrent);
+    /**
+     * Processes consecutive revisions of an item in one increment, so that
+     * its V-file is loaded and stored once. The previous content is taken
+     * from the stored V-file, whatever {@link #setPreviousFromVFile(boolean)}
+     * says.
+     * 
+     * @param previous
+     *            the revision before the first of revisions, null if the item
+     *            was added in it
+     * @param revisions
+     *            the revisions that changed the item, oldest first
+     */
+    public void onCommit(CmsRepositoryInspection repository, CmsItemPath path,
+            RepoRevision previous, List<RepoRevision> revisions) {
+        List<InputStream> contents = new ArrayList<InputStream>(revisions.size());
+        try {
+            List<InputSource> sources = new ArrayList<InputSource>(revisions.size());
+            for (RepoRevision revision : revisions) {
+                InputStream in = this.getContents(repository, revision, path);
+                contents.add(in);
+                sources.add(new InputSource(in));
+            }
+            this.calculator.increment(new CmsItemIdUrl(repository, path), previous,
+                    revisions, sources);
+        } finally {
+            for (InputStream in : contents) {
+                VFileCommitItemHandler.close(in);
+            }
+        }
+    }
+
+    /**
+     * @return the contents, streamed from the repository if there is a read
+     *         executor, otherwise read into memory
+     */
+    private InputStream getContents(CmsRepositoryInspection repository,
+            RepoRevision revision, CmsItemPath path) {
+        VFileMetrics metrics = this.calculator.getMetrics();
+        if (this.readExecutor != null) {
+            return new VFileContentsPipe(this.contentsReader, repository, revision, path,
+                    this.readExecutor, metrics, PIPE_SIZE);
+        }
+        long start = System.nanoTime();
+        ContentsBuffer contents = new ContentsBuffer();
+        this.contentsReader.getContents(repository, revision, path, contents);
+        metrics.phase(VFileMetrics.Phase.READ, System.nanoTime() - start);
+        return contents.toInputStream();
+    }
+
+    private static void close(InputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing was written.
+        }
     }
 }
@@ -0,0 +1,580 @@
+package se.repos.vfile;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.RepoRevision;
+import se.simonsoft.cms.item.events.ChangesetEventListener;
+import se.simonsoft.cms.item.events.change.CmsChangeset;
+import se.simonsoft.cms.item.events.change.CmsChangesetItem;
+import se.simonsoft.cms.item.inspection.CmsRepositoryInspection;
+
+/**
+ * Calculates V-files in the background, so that a post-commit hook only waits
+ * for the changeset to be written to a local journal. Items are processed on
+ * an executor, one at a time per item so that its revisions are processed in
+ * order. When several revisions of an item are waiting, up to a batch of them
+ * are processed in one increment, see
+ * {@link VFileCommitItemHandler#onCommit(CmsRepositoryInspection, CmsItemPath, RepoRevision, List)}.
+ *
+ * The journal has a line for each item of a changeset and a line for each one
+ * that is done, each ending with a checksum of the line. Items that are not
+ * done when the queue is created again, for example after a crash, are
+ * processed when it is started. A line cut short by a crash is dropped and
+ * the journal truncated before it, so that the next line starts on its own.
+ * An item that is done but not yet marked so in the journal is skipped by the
+ * calculator. When the journal has many more lines than items left, it is
+ * rewritten with only those. When a revision of an item fails, it and the
+ * later revisions of the item are held until the queue is created again.
+ */
+@SuppressWarnings("deprecation")
+public class VFileCommitQueue implements ChangesetEventListener, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(VFileCommitQueue.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_MAX_BATCH = 16;
+    private static final int COMPACT_LINES = 4096;
+
+    private CmsRepositoryInspection repository;
+    private VFileCommitItemHandler itemHandler;
+    private Executor executor;
+    private final int maxBatch;
+    private File journalFile;
+    private FileOutputStream journal;
+    // The length of the journal up to its last complete line.
+    private long journalLength = 0;
+    private int journalLines = 0;
+    private boolean started = false;
+    private long sequence = 0;
+    private Map<CmsItemPath, LinkedList<Entry>> pending = new LinkedHashMap<CmsItemPath, LinkedList<Entry>>();
+    private Set<CmsItemPath> running = new HashSet<CmsItemPath>();
+    private Set<CmsItemPath> held = new HashSet<CmsItemPath>();
+
+    /**
+     * A revision of an item, as written to the journal.
+     */
+    private static class Entry {
+        final long sequence;
+        final CmsItemPath path;
+        final RepoRevision revision;
+        final RepoRevision previous;
+
+        Entry(long sequence, CmsItemPath path, RepoRevision revision, RepoRevision previous) {
+            this.sequence = sequence;
+            this.path = path;
+            this.revision = revision;
+            this.previous = previous;
+        }
+
+        String format() {
+            return VFileCommitQueue.line("+ " + this.sequence + " "
+                    + VFileCommitQueue.format(this.revision) + " "
+                    + VFileCommitQueue.format(this.previous) + " " + this.path);
+        }
+    }
+
+    /**
+     * Like {@link #VFileCommitQueue(CmsRepositoryInspection, VFileCommitItemHandler, Executor, File, int)}
+     * with batches of up to 16 revisions.
+     */
+    public VFileCommitQueue(CmsRepositoryInspection repository,
+            VFileCommitItemHandler itemHandler, Executor executor, File journalFile) {
+        this(repository, itemHandler, executor, journalFile, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Reads the journal, creating it if it does not exist. Nothing is
+     * processed until {@link #start()}.
+     *
+     * @param executor
+     *            to process items on, never more threads than items at a time
+     * @param journalFile
+     *            the journal of the queue, used by no other queue
+     * @param maxBatch
+     *            the most revisions of an item to process in one increment
+     */
+    public VFileCommitQueue(CmsRepositoryInspection repository,
+            VFileCommitItemHandler itemHandler, Executor executor, File journalFile,
+            int maxBatch) {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("Batch must hold at least one revision.");
+        }
+        this.repository = repository;
+        this.itemHandler = itemHandler;
+        this.executor = executor;
+        this.maxBatch = maxBatch;
+        this.journalFile = journalFile;
+        try {
+            VFileCommitQueue.recover(journalFile);
+            if (journalFile.exists()) {
+                this.read(journalFile);
+            }
+            this.journal = new FileOutputStream(journalFile, true);
+            if (this.pending.isEmpty()) {
+                this.truncate(0);
+                this.journalLines = 0;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Starts processing the items that were not done when the journal was
+     * read, and the items of changesets since.
+     *
+     * @return this
+     */
+    public synchronized VFileCommitQueue start() {
+        if (this.started) {
+            return this;
+        }
+        this.started = true;
+        for (CmsItemPath path : this.pending.keySet()) {
+            this.schedule(path);
+        }
+        return this;
+    }
+
+    private void read(File journalFile) throws IOException {
+        this.journalLength = VFileCommitQueue.truncateToLastLine(journalFile);
+        Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(
+                journalFile), UTF8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                this.journalLines++;
+                String[] fields = VFileCommitQueue.check(line);
+                if (fields == null) {
+                    logger.warn("Skipping journal line {}", line);
+                    continue;
+                }
+                try {
+                    if (fields[0].equals("+") && fields.length == 7) {
+                        long sequence = Long.parseLong(fields[1]);
+                        entries.put(sequence, new Entry(sequence, new CmsItemPath(fields[6]),
+                                VFileCommitQueue.parse(fields[2], fields[3]),
+                                VFileCommitQueue.parse(fields[4], fields[5])));
+                        this.sequence = Math.max(this.sequence, sequence);
+                    } else if (fields[0].equals("-") && fields.length == 2) {
+                        entries.remove(Long.parseLong(fields[1]));
+                    } else {
+                        logger.warn("Skipping journal line {}", line);
+                    }
+                } catch (NumberFormatException e) {
+                    logger.warn("Skipping journal line {}", line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        for (Entry entry : entries.values()) {
+            this.add(entry);
+        }
+        logger.info("{} item revisions left in journal {}", entries.size(), journalFile);
+    }
+
+    /**
+     * Drops what follows the last line break, the rest of a line that a crash
+     * cut short.
+     *
+     * @return the length of the journal
+     */
+    private static long truncateToLastLine(File journalFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            long length = file.length();
+            byte[] buffer = new byte[4096];
+            long end = length;
+            while (end > 0) {
+                int n = (int) Math.min(buffer.length, end);
+                file.seek(end - n);
+                file.readFully(buffer, 0, n);
+                int i = n - 1;
+                while (i >= 0 && buffer[i] != '\n') {
+                    i--;
+                }
+                if (i >= 0) {
+                    end = end - n + i + 1;
+                    break;
+                }
+                end -= n;
+            }
+            if (end < length) {
+                logger.warn("Dropping {} bytes of a line cut short in journal {}", length
+                        - end, journalFile);
+                file.setLength(end);
+                file.getChannel().force(false);
+            }
+            return end;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the items of the changeset to the journal and queues them.
+     *
+     * @throws IllegalStateException
+     *             If the queue is closed.
+     */
+    @Override
+    public void onCommit(CmsChangeset changeset) {
+        synchronized (this) {
+            if (this.journal == null) {
+                throw new IllegalStateException("V-file commit queue is closed.");
+            }
+            List<Entry> entries = new ArrayList<Entry>();
+            StringBuilder lines = new StringBuilder();
+            for (CmsChangesetItem item : changeset.getItems()) {
+                Entry entry = new Entry(++this.sequence, item.getPath(),
+                        item.getRevisionChanged(), item.getRevisionObsoleted());
+                entries.add(entry);
+                lines.append(entry.format());
+            }
+            try {
+                this.append(lines.toString(), entries.size());
+                this.journal.getChannel().force(false);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+            for (Entry entry : entries) {
+                this.add(entry);
+                if (this.started) {
+                    this.schedule(entry.path);
+                }
+            }
+        }
+    }
+
+    private void add(Entry entry) {
+        LinkedList<Entry> revisions = this.pending.get(entry.path);
+        if (revisions == null) {
+            revisions = new LinkedList<Entry>();
+            this.pending.put(entry.path, revisions);
+        }
+        revisions.add(entry);
+    }
+
+    private void schedule(final CmsItemPath path) {
+        if (this.running.contains(path) || this.held.contains(path)) {
+            return;
+        }
+        this.running.add(path);
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    VFileCommitQueue.this.process(path);
+                }
+            });
+        } catch (RuntimeException e) {
+            this.running.remove(path);
+            throw e;
+        }
+    }
+
+    private void process(CmsItemPath path) {
+        while (true) {
+            List<Entry> batch;
+            synchronized (this) {
+                batch = this.getBatch(path);
+                if (batch.isEmpty()) {
+                    this.pending.remove(path);
+                    this.running.remove(path);
+                    this.idle();
+                    return;
+                }
+            }
+            List<RepoRevision> revisions = new ArrayList<RepoRevision>(batch.size());
+            for (Entry entry : batch) {
+                revisions.add(entry.revision);
+            }
+            try {
+                this.itemHandler.onCommit(this.repository, path, batch.get(0).previous,
+                        revisions);
+            } catch (RuntimeException e) {
+                logger.error("V-file calculation failed for {} at {}, holding it", path,
+                        revisions, e);
+                synchronized (this) {
+                    this.running.remove(path);
+                    this.held.add(path);
+                    this.notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                this.done(path, batch);
+            }
+        }
+    }
+
+    /**
+     * @return the first revisions of the item, each continuing from the one
+     *         before, at most a batch
+     */
+    private List<Entry> getBatch(CmsItemPath path) {
+        List<Entry> batch = new ArrayList<Entry>();
+        LinkedList<Entry> revisions = this.pending.get(path);
+        if (revisions == null) {
+            return batch;
+        }
+        for (Entry entry : revisions) {
+            if (batch.size() == this.maxBatch) {
+                break;
+            }
+            if (!batch.isEmpty()
+                    && (entry.previous == null || entry.previous.getNumber() != batch.get(
+                            batch.size() - 1).revision.getNumber())) {
+                break; // added again, or copied
+            }
+            batch.add(entry);
+        }
+        return batch;
+    }
+
+    private void done(CmsItemPath path, List<Entry> batch) {
+        LinkedList<Entry> revisions = this.pending.get(path);
+        StringBuilder lines = new StringBuilder();
+        for (Entry entry : batch) {
+            revisions.removeFirst();
+            lines.append(VFileCommitQueue.line("- " + entry.sequence));
+        }
+        if (this.journal == null) {
+            return; // closed, done again when the queue is created again
+        }
+        try {
+            // Not forced, since an increment done twice is skipped.
+            this.append(lines.toString(), batch.size());
+            if (this.journalLines >= COMPACT_LINES
+                    && this.journalLines >= 2 * this.getPending()) {
+                this.compact();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to write to V-file commit journal", e);
+        }
+    }
+
+    /**
+     * Writes complete lines to the journal. If that fails the journal is
+     * truncated to the lines before, so that a part of a line is not
+     * followed by the next one.
+     */
+    private void append(String lines, int count) throws IOException {
+        byte[] bytes = lines.getBytes(UTF8);
+        try {
+            this.journal.write(bytes);
+        } catch (IOException e) {
+            try {
+                this.truncate(this.journalLength);
+            } catch (IOException t) {
+                logger.error("Failed to truncate V-file commit journal", t);
+            }
+            throw e;
+        }
+        this.journalLength += bytes.length;
+        this.journalLines += count;
+    }
+
+    private void truncate(long length) throws IOException {
+        this.journal.getChannel().truncate(length);
+        this.journalLength = length;
+    }
+
+    /**
+     * Rewrites the journal with only the items that are not done. The journal
+     * is moved to a backup before the rewritten one takes its place, so that
+     * one of them is complete at any time.
+     */
+    private void compact() throws IOException {
+        File temp = new File(this.journalFile.getAbsoluteFile().getParentFile(),
+                this.journalFile.getName() + ".tmp");
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+        for (List<Entry> revisions : this.pending.values()) {
+            for (Entry entry : revisions) {
+                lines.append(entry.format());
+                count++;
+            }
+        }
+        byte[] bytes = lines.toString().getBytes(UTF8);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        File backup = VFileCommitQueue.getBackupFile(this.journalFile);
+        this.journal.close();
+        this.journal = null;
+        try {
+            if (!this.journalFile.renameTo(backup)) {
+                throw new IOException("Failed to move " + this.journalFile + " to " + backup);
+            }
+            if (!temp.renameTo(this.journalFile)) {
+                throw new IOException("Failed to move " + temp + " to " + this.journalFile);
+            }
+            backup.delete();
+            this.journalLength = bytes.length;
+            this.journalLines = count;
+        } finally {
+            temp.delete();
+            // Moves the backup back if the compacted journal is not in place.
+            VFileCommitQueue.recover(this.journalFile);
+            this.journal = new FileOutputStream(this.journalFile, true);
+        }
+        logger.debug("Compacted V-file commit journal to {} lines", count);
+    }
+
+    /**
+     * Completes an interrupted {@link #compact()}.
+     */
+    private static void recover(File journalFile) throws IOException {
+        File backup = VFileCommitQueue.getBackupFile(journalFile);
+        if (backup.exists()) {
+            if (journalFile.exists()) {
+                backup.delete();
+            } else if (!backup.renameTo(journalFile)) {
+                throw new IOException("Failed to move " + backup + " to " + journalFile);
+            }
+        }
+    }
+
+    private static File getBackupFile(File journalFile) {
+        return new File(journalFile.getAbsoluteFile().getParentFile(), journalFile.getName()
+                + ".bak");
+    }
+
+    private void idle() {
+        if (!this.running.isEmpty()) {
+            return;
+        }
+        this.notifyAll();
+        if (this.pending.isEmpty() && this.journal != null) {
+            try {
+                this.truncate(0);
+                this.journalLines = 0;
+            } catch (IOException e) {
+                logger.error("Failed to truncate V-file commit journal", e);
+            }
+        }
+    }
+
+    /**
+     * Waits until no items are being processed and only held ones are left.
+     *
+     * @return false if the time ran out first
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.running.isEmpty()) {
+            long left = end - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of item revisions that are not done, including
+     *         held ones
+     */
+    public synchronized int getPending() {
+        int count = 0;
+        for (List<Entry> revisions : this.pending.values()) {
+            count += revisions.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the items that are held after a failure
+     */
+    public synchronized Set<CmsItemPath> getHeld() {
+        return new HashSet<CmsItemPath>(this.held);
+    }
+
+    /**
+     * Stops taking changesets and closes the journal. Items being processed
+     * are finished, the others are processed when the queue is created again.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.journal == null) {
+            return;
+        }
+        try {
+            this.journal.close();
+        } finally {
+            this.journal = null;
+        }
+    }
+
+    /**
+     * @return the line with its checksum, see {@link #check(String)}
+     */
+    private static String line(String content) {
+        CRC32 crc = new CRC32();
+        crc.update(content.getBytes(UTF8));
+        return content + " #" + Long.toHexString(crc.getValue()) + "\n";
+    }
+
+    /**
+     * @return the fields of the line, null if its checksum does not match
+     */
+    private static String[] check(String line) {
+        int mark = line.lastIndexOf(" #");
+        if (mark == -1) {
+            return null;
+        }
+        String content = line.substring(0, mark);
+        CRC32 crc = new CRC32();
+        crc.update(content.getBytes(UTF8));
+        if (!line.substring(mark + 2).equals(Long.toHexString(crc.getValue()))) {
+            return null;
+        }
+        return content.split(" ", 7);
+    }
+
+    private static String format(RepoRevision revision) {
+        if (revision == null) {
+            return "- -";
+        }
+        return revision.getNumber() + " " + revision.getDate().getTime();
+    }
+
+    private static RepoRevision parse(String number, String time) {
+        if (number.equals("-")) {
+            return null;
+        }
+        return new RepoRevision(Long.parseLong(number), new Date(Long.parseLong(time)));
+    }
+}
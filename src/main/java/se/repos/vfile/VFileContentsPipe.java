@@ -0,0 +1,136 @@
+package se.repos.vfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Executor;
+
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.RepoRevision;
+import se.simonsoft.cms.item.inspection.CmsContentsReader;
+import se.simonsoft.cms.item.inspection.CmsRepositoryInspection;
+
+/**
+ * Streams the contents of a file in the repository to its reader as they are
+ * read from the repository, through a pipe with a buffer of fixed size. The
+ * read from the repository starts on the executor when the first byte is
+ * asked for, so the parse overlaps the read and the contents are never held
+ * in memory as a whole.
+ *
+ * A failed read from the repository is thrown to the reader as an
+ * {@link IOException}. The stream must be closed, whether or not it was read
+ * to the end, to stop a read from the repository that waits for room in the
+ * pipe.
+ */
+@SuppressWarnings("deprecation")
+class VFileContentsPipe extends InputStream {
+
+    private CmsContentsReader contentsReader;
+    private CmsRepositoryInspection repository;
+    private RepoRevision revision;
+    private CmsItemPath path;
+    private Executor executor;
+    private VFileMetrics metrics;
+    private int bufferSize;
+    private PipedInputStream pipe = null;
+    private volatile Throwable failure = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param metrics
+     *            receives the time of the read from the repository as
+     *            {@link VFileMetrics.Phase#READ}, from the executor's thread,
+     *            including the time spent waiting for the reader
+     */
+    VFileContentsPipe(CmsContentsReader contentsReader, CmsRepositoryInspection repository,
+            RepoRevision revision, CmsItemPath path, Executor executor,
+            VFileMetrics metrics, int bufferSize) {
+        this.contentsReader = contentsReader;
+        this.repository = repository;
+        this.revision = revision;
+        this.path = path;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = this.getPipe().read();
+        if (b == -1) {
+            this.checkFailure();
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = this.getPipe().read(b, off, len);
+        if (n == -1) {
+            this.checkFailure();
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.pipe == null ? 0 : this.pipe.available();
+    }
+
+    /**
+     * Makes a read from the repository that is still going fail, the reader
+     * does not wait for it.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        if (this.pipe != null) {
+            this.pipe.close();
+        }
+    }
+
+    private PipedInputStream getPipe() throws IOException {
+        if (this.pipe != null) {
+            return this.pipe;
+        }
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        this.pipe = new PipedInputStream(this.bufferSize);
+        final PipedOutputStream out = new PipedOutputStream(this.pipe);
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                VFileContentsPipe.this.write(out);
+            }
+        });
+        return this.pipe;
+    }
+
+    private void write(PipedOutputStream out) {
+        long start = System.nanoTime();
+        try {
+            this.contentsReader.getContents(this.repository, this.revision, this.path, out);
+        } catch (Throwable e) {
+            if (!this.closed) {
+                this.failure = e; // before the close, which lets the reader see it
+            }
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The reader closed the pipe first.
+            }
+            this.metrics.phase(VFileMetrics.Phase.READ, System.nanoTime() - start);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = this.failure;
+        if (failure != null) {
+            throw new IOException("Failed to read " + this.path + " at " + this.revision
+                    + ": " + failure.getMessage());
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package se.repos.vfile;
+
+import java.util.Map;
+
+import se.repos.vfile.gen.CHANGE;
+
+/**
+ * Receives measurements of each increment from the v-file pipeline, to tell
+ * where the time of a slow commit went. Calls are made in the thread that
+ * runs the increment, so implementations must be thread safe if the pipeline
+ * is shared between threads, and should return quickly.
+ *
+ * @see VFileMetricsNoop
+ * @see VFileMetricsHistogram
+ */
+public interface VFileMetrics {
+
+    /**
+     * The phases of an increment, in the order they run.
+     */
+    enum Phase {
+        /**
+         * Reading the document from the repository.
+         */
+        READ,
+        /**
+         * Reading the previous v-file from the store.
+         */
+        LOAD,
+        /**
+         * Parsing the document versions.
+         */
+        PARSE,
+        /**
+         * Matching the previous version to the v-file, or projecting it from
+         * the v-file.
+         */
+        MATCH,
+        /**
+         * Diffing the previous and the new version.
+         */
+        DIFF,
+        /**
+         * Grouping the differences on the nodes they apply to.
+         */
+        SCHEDULE,
+        /**
+         * Applying the differences to the v-file, or building the v-file of
+         * a new document.
+         */
+        UPDATE,
+        /**
+         * Adding the new nodes that had no matched parent.
+         */
+        ORPHANS,
+        /**
+         * Reordering children.
+         */
+        REORDER,
+        /**
+         * Writing the v-file to the store.
+         */
+        STORE
+    }
+
+    /**
+     * @param phase
+     *            the phase that ran
+     * @param nanos
+     *            the time it took
+     */
+    void phase(Phase phase, long nanos);
+
+    /**
+     * @param counts
+     *            the number of differences the diff found, for each type that
+     *            occurred
+     */
+    void differences(Map<CHANGE, Integer> counts);
+
+    /**
+     * @param count
+     *            the number of elements whose children were reordered
+     */
+    void reorders(int count);
+
+    /**
+     * Counting the nodes takes a pass over both documents, which is only
+     * made for metrics that want the counts.
+     *
+     * @return true to have {@link #increment(long, long)} called
+     */
+    boolean wantsNodeCounts();
+
+    /**
+     * Called once per increment, after the v-file is stored, if
+     * {@link #wantsNodeCounts()}. Not called when the store only moves the
+     * v-file to a revision with unchanged content.
+     *
+     * @param documentNodes
+     *            the number of nodes in the new version of the document
+     * @param vfileNodes
+     *            the number of nodes in the v-file, which is its size
+     *            whatever the store
+     */
+    void increment(long documentNodes, long vfileNodes);
+}
@@ -0,0 +1,203 @@
+package se.repos.vfile;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.repos.vfile.gen.CHANGE;
+
+/**
+ * Keeps the measurements in memory as histograms, for a monitoring system to
+ * poll. There is one histogram per phase, in nanoseconds, and one each for
+ * the document size, v-file size and reorders per increment. Differences are
+ * summed per {@link CHANGE} type. Thread safe, without locking.
+ *
+ * Histograms have power of two buckets, so memory use is fixed and
+ * percentiles are accurate within a factor of two.
+ */
+public class VFileMetricsHistogram implements VFileMetrics {
+
+    /**
+     * A histogram of non-negative values.
+     */
+    public static class Histogram {
+
+        /**
+         * Bucket 0 holds 0, bucket i holds the values from 2^(i-1) to
+         * 2^i-1.
+         */
+        private static final int BUCKETS = 64;
+
+        private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private AtomicLong count = new AtomicLong();
+        private AtomicLong total = new AtomicLong();
+        private AtomicLong max = new AtomicLong();
+
+        void add(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            this.count.incrementAndGet();
+            this.total.addAndGet(value);
+            long current = this.max.get();
+            while (value > current && !this.max.compareAndSet(current, value)) {
+                current = this.max.get();
+            }
+        }
+
+        void clear() {
+            for (int i = 0; i < BUCKETS; i++) {
+                this.buckets.set(i, 0);
+            }
+            this.count.set(0);
+            this.total.set(0);
+            this.max.set(0);
+        }
+
+        /**
+         * @return number of values added
+         */
+        public long getCount() {
+            return this.count.get();
+        }
+
+        /**
+         * @return sum of the values added
+         */
+        public long getTotal() {
+            return this.total.get();
+        }
+
+        /**
+         * @return the highest value added, 0 if none
+         */
+        public long getMax() {
+            return this.max.get();
+        }
+
+        /**
+         * @return the mean of the values added, 0 if none
+         */
+        public double getMean() {
+            long count = this.count.get();
+            return count == 0 ? 0 : (double) this.total.get() / count;
+        }
+
+        /**
+         * @param percentile
+         *            between 0 and 100
+         * @return an upper bound of the value at the percentile, at most
+         *         twice the value, 0 if no values were added
+         */
+        public long getPercentile(double percentile) {
+            long count = this.count.get();
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(this.max.get(), (1L << i) - 1);
+                }
+            }
+            return this.max.get();
+        }
+    }
+
+    private Map<Phase, Histogram> phases = new EnumMap<Phase, Histogram>(Phase.class);
+    private Map<CHANGE, AtomicLong> differences = new EnumMap<CHANGE, AtomicLong>(
+            CHANGE.class);
+    private Histogram reorders = new Histogram();
+    private Histogram documentNodes = new Histogram();
+    private Histogram vfileNodes = new Histogram();
+
+    public VFileMetricsHistogram() {
+        for (Phase phase : Phase.values()) {
+            this.phases.put(phase, new Histogram());
+        }
+        for (CHANGE change : CHANGE.values()) {
+            this.differences.put(change, new AtomicLong());
+        }
+    }
+
+    @Override
+    public void phase(Phase phase, long nanos) {
+        this.phases.get(phase).add(nanos);
+    }
+
+    @Override
+    public void differences(Map<CHANGE, Integer> counts) {
+        for (Map.Entry<CHANGE, Integer> count : counts.entrySet()) {
+            this.differences.get(count.getKey()).addAndGet(count.getValue());
+        }
+    }
+
+    @Override
+    public void reorders(int count) {
+        this.reorders.add(count);
+    }
+
+    @Override
+    public boolean wantsNodeCounts() {
+        return true;
+    }
+
+    @Override
+    public void increment(long documentNodes, long vfileNodes) {
+        this.documentNodes.add(documentNodes);
+        this.vfileNodes.add(vfileNodes);
+    }
+
+    /**
+     * @return the times of the phase in nanoseconds
+     */
+    public Histogram getPhase(Phase phase) {
+        return this.phases.get(phase);
+    }
+
+    /**
+     * @return the number of differences of the type found in all increments
+     */
+    public long getDifferences(CHANGE change) {
+        return this.differences.get(change).get();
+    }
+
+    /**
+     * @return the number of reordered elements per increment
+     */
+    public Histogram getReorders() {
+        return this.reorders;
+    }
+
+    /**
+     * @return the number of nodes in the new document per increment, the
+     *         count of which is the number of increments
+     */
+    public Histogram getDocumentNodes() {
+        return this.documentNodes;
+    }
+
+    /**
+     * @return the number of nodes in the v-file per increment
+     */
+    public Histogram getVFileNodes() {
+        return this.vfileNodes;
+    }
+
+    /**
+     * Starts over from no measurements. Measurements made during the call
+     * may be partly kept.
+     */
+    public void clear() {
+        for (Histogram histogram : this.phases.values()) {
+            histogram.clear();
+        }
+        for (AtomicLong count : this.differences.values()) {
+            count.set(0);
+        }
+        this.reorders.clear();
+        this.documentNodes.clear();
+        this.vfileNodes.clear();
+    }
+}
@@ -0,0 +1,32 @@
+package se.repos.vfile;
+
+import java.util.Map;
+
+import se.repos.vfile.gen.CHANGE;
+
+/**
+ * Discards all measurements. The default {@link VFileMetrics}.
+ */
+public class VFileMetricsNoop implements VFileMetrics {
+
+    @Override
+    public void phase(Phase phase, long nanos) {
+    }
+
+    @Override
+    public void differences(Map<CHANGE, Integer> counts) {
+    }
+
+    @Override
+    public void reorders(int count) {
+    }
+
+    @Override
+    public boolean wantsNodeCounts() {
+        return false;
+    }
+
+    @Override
+    public void increment(long documentNodes, long vfileNodes) {
+    }
+}
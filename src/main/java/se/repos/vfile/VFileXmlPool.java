@@ -0,0 +1,69 @@
+package se.repos.vfile;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Hands out {@link DocumentBuilder} and {@link Transformer} instances that
+ * belong to the calling thread, so that they can be used from any number of
+ * threads without creating a factory or builder per call. Builders have the
+ * configuration of {@link VFileDocumentBuilderFactory}.
+ *
+ * An instance must not be passed to other threads, and must not be used
+ * again after a nested call to the same getter on the same thread, since that
+ * call resets it.
+ */
+public final class VFileXmlPool {
+
+    private static final VFileDocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = new VFileDocumentBuilderFactory();
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory
+            .newInstance();
+
+    // JAXP factories are not thread safe, so creation is synchronized on them.
+    private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            synchronized (DOCUMENT_BUILDER_FACTORY) {
+                return DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            }
+        }
+    };
+
+    private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            synchronized (TRANSFORMER_FACTORY) {
+                try {
+                    return TRANSFORMER_FACTORY.newTransformer();
+                } catch (TransformerConfigurationException e) {
+                    throw new RuntimeException(e.getMessage());
+                }
+            }
+        }
+    };
+
+    private VFileXmlPool() {
+    }
+
+    /**
+     * @return the calling thread's document builder, reset to the
+     *         {@link VFileDocumentBuilderFactory} configuration
+     */
+    public static DocumentBuilder getDocumentBuilder() {
+        DocumentBuilder db = documentBuilders.get();
+        db.reset();
+        return db;
+    }
+
+    /**
+     * @return the calling thread's identity transformer, with no output
+     *         properties or parameters set
+     */
+    public static Transformer getTransformer() {
+        Transformer transformer = transformers.get();
+        transformer.reset();
+        return transformer;
+    }
+}
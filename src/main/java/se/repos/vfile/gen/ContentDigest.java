@@ -0,0 +1,172 @@
+package se.repos.vfile.gen;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * SHA-256 of the canonical form of a document, for {@link VFile#getContentHash(Document)}.
+ * The canonical form holds what {@link SubtreeHashes} compares: element names,
+ * attributes and namespace declarations sorted by name, and the children in
+ * order, with text, comment and processing instruction values trimmed and
+ * whitespace-only text left out. Each name and value is written with its
+ * length, so different documents have different canonical forms.
+ *
+ * Unlike the 64 bit subtree hashes, which only skip work that a diff would
+ * otherwise do, equal digests are taken to mean equal content without a
+ * diff, so collisions must not happen in practice.
+ */
+final class ContentDigest {
+
+    private static final byte ELEMENT = 1;
+    private static final byte END = 2;
+    private static final byte TEXT = 3;
+    private static final byte COMMENT = 4;
+    private static final byte PI = 5;
+    private static final byte OTHER = 6;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[8192];
+    private int length = 0;
+
+    private ContentDigest() {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage()); // required of every JVM
+        }
+    }
+
+    /**
+     * @return the digest as 64 hexadecimal digits
+     */
+    static String digest(Element root) {
+        ContentDigest d = new ContentDigest();
+        d.element(root);
+        d.flush();
+        byte[] bytes = d.digest.digest();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >>> 4) & 0xF];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    private void element(Element element) {
+        this.kind(ELEMENT);
+        this.string(element.getTagName(), 0, element.getTagName().length());
+        NamedNodeMap attrs = element.getAttributes();
+        String[] names = new String[attrs.getLength()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = ((Attr) attrs.item(i)).getName();
+        }
+        Arrays.sort(names);
+        this.integer(names.length);
+        for (String name : names) {
+            String value = element.getAttribute(name);
+            this.string(name, 0, name.length());
+            this.string(value, 0, value.length());
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            switch (child.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                this.element((Element) child);
+                break;
+            case Node.TEXT_NODE:
+                if (this.isBlank(child.getNodeValue())) {
+                    continue; // like ElementUtils.getChildren
+                }
+                this.kind(TEXT);
+                this.trimmed(child.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                this.kind(COMMENT);
+                this.trimmed(child.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ProcessingInstruction pi = (ProcessingInstruction) child;
+                this.kind(PI);
+                this.string(pi.getTarget(), 0, pi.getTarget().length());
+                this.trimmed(pi.getData());
+                break;
+            default:
+                String value = child.getNodeValue();
+                this.kind(OTHER);
+                this.integer(child.getNodeType());
+                if (value == null) {
+                    this.integer(-1);
+                } else {
+                    this.string(value, 0, value.length());
+                }
+                break;
+            }
+        }
+        this.kind(END);
+    }
+
+    private void trimmed(String value) {
+        // The same bounds as String.trim(), without the copy.
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (start < end && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        this.string(value, start, end);
+    }
+
+    private boolean isBlank(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void string(String value, int start, int end) {
+        this.integer(end - start);
+        for (int i = start; i < end; i++) {
+            if (this.length + 2 > this.buffer.length) {
+                this.flush();
+            }
+            char c = value.charAt(i);
+            this.buffer[this.length++] = (byte) (c >>> 8);
+            this.buffer[this.length++] = (byte) c;
+        }
+    }
+
+    private void integer(int value) {
+        if (this.length + 4 > this.buffer.length) {
+            this.flush();
+        }
+        this.buffer[this.length++] = (byte) (value >>> 24);
+        this.buffer[this.length++] = (byte) (value >>> 16);
+        this.buffer[this.length++] = (byte) (value >>> 8);
+        this.buffer[this.length++] = (byte) value;
+    }
+
+    private void kind(byte kind) {
+        if (this.length + 1 > this.buffer.length) {
+            this.flush();
+        }
+        this.buffer[this.length++] = kind;
+    }
+
+    private void flush() {
+        this.digest.update(this.buffer, 0, this.length);
+        this.length = 0;
+    }
+}
@@ -1,6 +1,9 @@
 package se.repos.vfile.gen;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.helpers.MessageFormatter;
 import org.w3c.dom.Attr;
@@ -48,6 +51,24 @@ public class ElementUtils {
      *             If the needle is not found and mustFind is true.
      */
     public static int getLocalIndex(Node needle, boolean specificType, boolean mustFind, boolean isVfile) {
+        return ElementUtils.getLocalIndex(needle, specificType, mustFind, isVfile, null);
+    }
+
+    /**
+     * Same as {@link #getLocalIndex(Node, boolean, boolean, boolean)}, with
+     * the liveness of V-file siblings taken from lifetimes.
+     * 
+     * @param lifetimes
+     *            the lifetimes of the V-file the needle is in, null to read
+     *            the liveness of each sibling from its attributes
+     */
+    static int getLocalIndex(Node needle, boolean specificType, boolean mustFind,
+            Lifetimes lifetimes) {
+        return ElementUtils.getLocalIndex(needle, specificType, mustFind, true, lifetimes);
+    }
+
+    private static int getLocalIndex(Node needle, boolean specificType, boolean mustFind,
+            boolean isVfile, Lifetimes lifetimes) {
         Node parent = needle.getParentNode();
         if (parent == null) {
         	// Likely means that we are a Document node. Perhaps an element can also be without parent while moving.
@@ -68,7 +89,7 @@ public class ElementUtils {
                 	continue;
                 }
             	
-            	if (!isVFileElementLive(child)) {
+            	if (!ElementUtils.isVFileElementLive(child, lifetimes)) {
             		// Element is assumed to be VFile (ifVfile=true) and it is no longer Live.
             		continue;
             	}
@@ -116,6 +137,26 @@ public class ElementUtils {
         }
         return results;
     }
+
+    /**
+     * Groups the child elements of a node by tag name, in document order, so
+     * the nth child element with a given name can be looked up.
+     */
+    public static Map<String, List<Element>> getChildElementsByName(Node parent) {
+        Map<String, List<Element>> results = new HashMap<String, List<Element>>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                String name = n.getNodeName();
+                List<Element> sameName = results.get(name);
+                if (sameName == null) {
+                    sameName = new ArrayList<Element>();
+                    results.put(name, sameName);
+                }
+                sameName.add((Element) n);
+            }
+        }
+        return results;
+    }
     
     public static boolean isVFileAttribute(Node n) {
     	
@@ -146,21 +187,43 @@ public class ElementUtils {
     }
     
     
+    /**
+     * @param lifetimes
+     *            null to read the liveness from the attributes
+     */
+    private static boolean isVFileElementLive(Node n, Lifetimes lifetimes) {
+        if (lifetimes == null) {
+            return ElementUtils.isVFileElementLive(n);
+        }
+        if (n.hasAttributes()) {
+            return lifetimes.isLive((Element) n);
+        }
+        throw new IllegalArgumentException("The node is not a VFile element: " + n);
+    }
+
     public static int findVfileIndex(Element parent, Integer index) {
+        return ElementUtils.findVfileIndex(parent, index, null);
+    }
+
+    /**
+     * Same as {@link #findVfileIndex(Element, Integer)}, with the liveness of
+     * the children taken from lifetimes, null to read it from the attributes.
+     */
+    static int findVfileIndex(Element parent, int index, Lifetimes lifetimes) {
     	
-    	Integer liveElems = 0;
+    	int liveElems = 0;
     	NodeList nl = parent.getChildNodes();
     	if (nl == null || nl.getLength() == 0) {
             return 0;
         }
     	
-    	for (Integer i = 0; i < nl.getLength(); i++) {
+    	for (int i = 0; i < nl.getLength(); i++) {
     		Node n = nl.item(i);
     		if (!isVFileAttribute(n) && liveElems == index) {
     			return i;
     		}
     		
-    		if (!isVFileAttribute(n) && isVFileElementLive(n)) {
+    		if (!isVFileAttribute(n) && ElementUtils.isVFileElementLive(n, lifetimes)) {
     			liveElems++;
     		}
     		
@@ -258,4 +321,17 @@ public class ElementUtils {
             throw new UnsupportedOperationException();
         }
     }
+
+    /**
+     * @return the number of nodes in the subtree of node, including node but
+     *         not attributes
+     */
+    public static long countNodes(Node node) {
+        long count = 1;
+        for (Node child = node.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            count += ElementUtils.countNodes(child);
+        }
+        return count;
+    }
 }
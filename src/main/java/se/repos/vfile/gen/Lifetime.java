@@ -0,0 +1,70 @@
+package se.repos.vfile.gen;
+
+/**
+ * The lifetime of a tagged node as revision numbers, the typed form of its
+ * v:start and v:end attributes. A node is live while its end is {@link #NOW}.
+ *
+ * @see Lifetimes
+ */
+final class Lifetime {
+
+    /**
+     * The end of a live node, later than any revision.
+     */
+    static final long NOW = Long.MAX_VALUE;
+
+    private final long start;
+    private long end;
+
+    Lifetime(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long getStart() {
+        return this.start;
+    }
+
+    long getEnd() {
+        return this.end;
+    }
+
+    void setEnd(long end) {
+        this.end = end;
+    }
+
+    boolean isLive() {
+        return this.end == NOW;
+    }
+
+    /**
+     * @return true if the node is part of the document in the revision
+     */
+    boolean isAlive(long revision) {
+        return this.start <= revision && revision < this.end;
+    }
+
+    /**
+     * @param revision
+     *            a v:start or v:end value, where a missing v:end counts as
+     *            NOW
+     */
+    static long parse(String revision) {
+        if (revision.isEmpty() || revision.equals(StringConstants.NOW)) {
+            return NOW;
+        }
+        return Long.parseLong(revision);
+    }
+
+    /**
+     * @return the revision as a v:start or v:end value
+     */
+    static String format(long revision) {
+        return revision == NOW ? StringConstants.NOW : Long.toString(revision);
+    }
+
+    @Override
+    public String toString() {
+        return Lifetime.format(this.start) + "-" + Lifetime.format(this.end);
+    }
+}
@@ -0,0 +1,62 @@
+package se.repos.vfile.gen;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+
+/**
+ * Keeps the lifetimes of the tagged nodes of a {@link VFile} as
+ * {@link Lifetime} objects, so that liveness checks on traversals are a
+ * lookup and a comparison of longs instead of attribute reads and string
+ * comparisons. A node's lifetime is read from its attributes the first time
+ * it is asked for. Lifetimes are changed through {@link #start(Element, long)}
+ * and {@link #end(Element, long)}, which also write the attributes, so the
+ * DOM stays the stored form of the v-file.
+ */
+class Lifetimes {
+
+    private Map<Element, Lifetime> lifetimes = new IdentityHashMap<Element, Lifetime>();
+
+    /**
+     * @return the lifetime of the tagged node
+     */
+    Lifetime get(Element node) {
+        Lifetime lifetime = this.lifetimes.get(node);
+        if (lifetime == null) {
+            String start = node.getAttribute(StringConstants.START);
+            lifetime = new Lifetime(start.isEmpty() ? 0 : Long.parseLong(start),
+                    Lifetime.parse(node.getAttribute(StringConstants.END)));
+            this.lifetimes.put(node, lifetime);
+        }
+        return lifetime;
+    }
+
+    boolean isLive(Element node) {
+        return this.get(node).isLive();
+    }
+
+    /**
+     * Makes a new tagged node live from the revision.
+     */
+    void start(Element node, long revision) {
+        node.setAttribute(StringConstants.START, Lifetime.format(revision));
+        node.setAttribute(StringConstants.END, StringConstants.NOW);
+        this.lifetimes.put(node, new Lifetime(revision, Lifetime.NOW));
+    }
+
+    /**
+     * Ends the lifetime of a tagged node at the revision.
+     */
+    void end(Element node, long revision) {
+        node.setAttribute(StringConstants.END, Lifetime.format(revision));
+        this.get(node).setEnd(revision);
+    }
+
+    /**
+     * Forgets a tagged node that was erased from the v-file.
+     */
+    void remove(Element node) {
+        this.lifetimes.remove(node);
+    }
+}
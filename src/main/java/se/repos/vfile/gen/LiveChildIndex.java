@@ -0,0 +1,142 @@
+package se.repos.vfile.gen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A side index of the live children and attributes of each tagged node in a
+ * {@link VFile}. Entries are built lazily on first lookup and dropped by
+ * {@link #invalidate(Node)} whenever the child list or the liveness of a
+ * child changes, so repeated lookups on an unchanged node don't rescan the DOM.
+ *
+ * @see TaggedNode
+ */
+class LiveChildIndex {
+
+    private Map<Element, Entry> entries;
+    private Lifetimes lifetimes;
+
+    public LiveChildIndex(Lifetimes lifetimes) {
+        this.entries = new IdentityHashMap<Element, Entry>();
+        this.lifetimes = lifetimes;
+    }
+
+    /**
+     * Returns the index entry for the given tagged node, building it if needed.
+     */
+    public Entry get(Element parent) {
+        Entry entry = this.entries.get(parent);
+        if (entry == null) {
+            entry = new Entry(parent, this.lifetimes);
+            this.entries.put(parent, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Drops the index entry of the given tagged node. Must be called whenever
+     * a child is added, removed, moved or has its lifetime ended.
+     */
+    public void invalidate(Node parent) {
+        if (parent != null) {
+            this.entries.remove(parent);
+        }
+    }
+
+    /**
+     * The live children of a single tagged node, grouped by type and tag name.
+     */
+    static class Entry {
+        public final List<Element> children;
+        public final List<Element> attributes;
+        private Map<String, Element> attributesByName;
+        private Map<Nodetype, List<Element>> byType;
+        private Map<String, List<Element>> byTagName;
+
+        private Entry(Element parent, Lifetimes lifetimes) {
+            ArrayList<Element> children = new ArrayList<Element>();
+            ArrayList<Element> attributes = new ArrayList<Element>();
+            this.attributesByName = new HashMap<String, Element>();
+            this.byType = new EnumMap<Nodetype, List<Element>>(Nodetype.class);
+            this.byTagName = new HashMap<String, List<Element>>();
+            for (Node c = parent.getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (c.getNodeType() != Node.ELEMENT_NODE) {
+                    continue;
+                }
+                Element child = (Element) c;
+                if (!lifetimes.isLive(child)) {
+                    continue;
+                }
+                Nodetype nodeType = TaggedNode.getNodetype(child);
+                if (nodeType == Nodetype.ATTRIBUTE) {
+                    String name = child.getAttribute(StringConstants.NAME);
+                    if (!this.attributesByName.containsKey(name)) {
+                        this.attributesByName.put(name, child);
+                    }
+                    attributes.add(child);
+                    continue;
+                }
+                children.add(child);
+                Entry.add(this.byType, nodeType, child);
+                if (nodeType == Nodetype.ELEMENT) {
+                    Entry.add(this.byTagName, child.getTagName(), child);
+                }
+            }
+            this.children = Collections.unmodifiableList(children);
+            this.attributes = Collections.unmodifiableList(attributes);
+        }
+
+        private static <K> void add(Map<K, List<Element>> map, K key, Element e) {
+            List<Element> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<Element>();
+                map.put(key, list);
+            }
+            list.add(e);
+        }
+
+        /**
+         * @return The live attribute with the given name, or null.
+         */
+        public Element getAttribute(String name) {
+            return this.attributesByName.get(name);
+        }
+
+        /**
+         * @return The nth live child of the given type, or null.
+         */
+        public Element getNthNodeOfType(int n, Nodetype nodeType) {
+            return Entry.nth(this.byType.get(nodeType), n);
+        }
+
+        /**
+         * @return The nth live child element with the given tag name, or null.
+         */
+        public Element getNthElementByTagName(int n, String tagName) {
+            return Entry.nth(this.byTagName.get(tagName), n);
+        }
+
+        public List<Element> getElementsByTagName(String tagName) {
+            List<Element> list = this.byTagName.get(tagName);
+            if (list == null) {
+                return Collections.emptyList();
+            }
+            return list;
+        }
+
+        private static Element nth(List<Element> list, int n) {
+            if (list == null || n < 0 || n >= list.size()) {
+                return null;
+            }
+            return list.get(n);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package se.repos.vfile.gen;
+
+/**
+ * A node that was added or removed in a revision. A changed attribute value,
+ * text, comment or processing instruction is recorded as one removed and one
+ * added node. Only the topmost node of an added or removed subtree is
+ * recorded.
+ * 
+ * @see RevisionIndex
+ */
+public final class RevisionChange {
+
+    public enum Kind {
+        ADDED, REMOVED
+    }
+
+    private final long revision;
+    private final Kind kind;
+    private final SimpleXPath path;
+
+    /**
+     * @param path
+     *            the location of an added node in the revision, of a removed
+     *            node in the revision before
+     */
+    public RevisionChange(long revision, Kind kind, SimpleXPath path) {
+        if (kind == null || path == null) {
+            throw new NullPointerException();
+        }
+        this.revision = revision;
+        this.kind = kind;
+        this.path = path;
+    }
+
+    public long getRevision() {
+        return this.revision;
+    }
+
+    public Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * @return the location of an added node in the revision, of a removed
+     *         node in the revision before
+     */
+    public SimpleXPath getPath() {
+        return this.path;
+    }
+
+    public Nodetype getNodetype() {
+        return this.path.getLastAxis().nodeType;
+    }
+
+    /**
+     * Reads a change written by {@link #toString()}.
+     * 
+     * @throws IllegalArgumentException
+     *             If the line is not a change.
+     */
+    public static RevisionChange parse(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length != 3 || fields[1].length() != 1) {
+            throw new IllegalArgumentException("Not a revision change: " + line);
+        }
+        Kind kind;
+        switch (fields[1].charAt(0)) {
+        case '+':
+            kind = Kind.ADDED;
+            break;
+        case '-':
+            kind = Kind.REMOVED;
+            break;
+        default:
+            throw new IllegalArgumentException("Not a revision change: " + line);
+        }
+        return new RevisionChange(Long.parseLong(fields[0]), kind, new SimpleXPath(
+                fields[2]));
+    }
+
+    /**
+     * @return revision, + or - and path separated by tabs
+     */
+    @Override
+    public String toString() {
+        return this.revision + "\t" + (this.kind == Kind.ADDED ? '+' : '-') + "\t"
+                + this.path;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof RevisionChange)) {
+            return false;
+        }
+        RevisionChange that = (RevisionChange) obj;
+        return this.revision == that.revision && this.kind == that.kind
+                && this.path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + (int) (this.revision ^ (this.revision >>> 32));
+        result = prime * result + this.kind.hashCode();
+        result = prime * result + this.path.hashCode();
+        return result;
+    }
+}
@@ -0,0 +1,292 @@
+package se.repos.vfile.gen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The nodes added and removed in each revision of a V-file, so that the
+ * changes of a revision can be listed without scanning the V-file. Kept up to
+ * date with the changes from {@link VFile#getChanges()} after each update,
+ * or built from a complete V-file with {@link #build(Document)}.
+ * 
+ * The index is written as one {@link RevisionChange} per line, each revision
+ * followed by a line with only its number, so the changes of a new revision
+ * can be appended to a stored index.
+ */
+public class RevisionIndex {
+
+    private TreeMap<Long, List<RevisionChange>> revisions = new TreeMap<Long, List<RevisionChange>>();
+
+    /**
+     * Adds the changes of a revision, replacing any changes recorded for it
+     * before.
+     * 
+     * @throws IllegalArgumentException
+     *             If a change is of another revision.
+     */
+    public void add(long revision, List<RevisionChange> changes) {
+        for (RevisionChange change : changes) {
+            if (change.getRevision() != revision) {
+                throw new IllegalArgumentException("Change " + change
+                        + " is not of revision " + revision);
+            }
+        }
+        this.revisions.put(revision, new ArrayList<RevisionChange>(changes));
+    }
+
+    /**
+     * Adds the changes of several revisions up to and including revision,
+     * such as those of {@link VFile#getChanges()} after each of a series of
+     * updates. Revision is indexed even if it has no changes.
+     * 
+     * @throws IllegalArgumentException
+     *             If a change is of a later revision.
+     */
+    public void addAll(long revision, List<RevisionChange> changes) {
+        for (Map.Entry<Long, List<RevisionChange>> r : RevisionIndex.split(revision,
+                changes).entrySet()) {
+            this.revisions.put(r.getKey(), r.getValue());
+        }
+    }
+
+    /**
+     * @return the changes by revision, with at least revision
+     */
+    private static TreeMap<Long, List<RevisionChange>> split(long revision,
+            List<RevisionChange> changes) {
+        TreeMap<Long, List<RevisionChange>> split = new TreeMap<Long, List<RevisionChange>>();
+        split.put(revision, new ArrayList<RevisionChange>());
+        for (RevisionChange change : changes) {
+            if (change.getRevision() > revision) {
+                throw new IllegalArgumentException("Change " + change
+                        + " is after revision " + revision);
+            }
+            RevisionIndex.collect(change, split);
+        }
+        return split;
+    }
+
+    /**
+     * @return the indexed revisions, in order
+     */
+    public SortedSet<Long> getRevisions() {
+        return new TreeSet<Long>(this.revisions.keySet());
+    }
+
+    /**
+     * @return the highest indexed revision, null if none
+     */
+    public Long getLastRevision() {
+        return this.revisions.isEmpty() ? null : this.revisions.lastKey();
+    }
+
+    /**
+     * @return the changes made in the revision, in document order
+     */
+    public List<RevisionChange> getChanges(long revision) {
+        List<RevisionChange> changes = this.revisions.get(revision);
+        if (changes == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(changes);
+    }
+
+    /**
+     * @return the changes made after revision from up to and including
+     *         revision to, by revision
+     */
+    public List<RevisionChange> getChanges(long from, long to) {
+        List<RevisionChange> changes = new ArrayList<RevisionChange>();
+        for (List<RevisionChange> revision : this.revisions.subMap(from, false, to, true)
+                .values()) {
+            changes.addAll(revision);
+        }
+        return changes;
+    }
+
+    public void write(Writer out) throws IOException {
+        for (Map.Entry<Long, List<RevisionChange>> revision : this.revisions.entrySet()) {
+            RevisionIndex.write(revision.getKey(), revision.getValue(), out);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the changes of the revisions up to and including revision in
+     * the format read by {@link #read(Reader)}, for appending to a stored
+     * index.
+     * 
+     * @see #addAll(long, List)
+     */
+    public static void write(long revision, List<RevisionChange> changes, Writer out)
+            throws IOException {
+        for (Map.Entry<Long, List<RevisionChange>> r : RevisionIndex.split(revision,
+                changes).entrySet()) {
+            for (RevisionChange change : r.getValue()) {
+                out.write(change.toString());
+                out.write('\n');
+            }
+            out.write(Long.toString(r.getKey()));
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Reads an index, ignoring changes after the last complete revision.
+     * 
+     * @throws IllegalArgumentException
+     *             If a line is not a change.
+     */
+    public static RevisionIndex read(Reader in) throws IOException {
+        BufferedReader lines = new BufferedReader(in);
+        RevisionIndex index = new RevisionIndex();
+        List<RevisionChange> changes = new ArrayList<RevisionChange>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.indexOf('\t') < 0) {
+                index.add(Long.parseLong(line), changes);
+                changes.clear();
+            } else {
+                changes.add(RevisionChange.parse(line));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Builds the index of a V-file from all the lifetimes in it. Locations are
+     * calculated from the V-file as it is now, so before a reorder they may
+     * not match the revision they are given for. The index kept from
+     * {@link VFile#getChanges()} has no such problem.
+     */
+    public static RevisionIndex build(Document vfile) {
+        Map<Long, List<RevisionChange>> changes = new TreeMap<Long, List<RevisionChange>>();
+        Lifetimes lifetimes = new Lifetimes();
+        Element root = vfile.getDocumentElement();
+        changes.put(Long.parseLong(root.getAttribute(StringConstants.DOCVERSION)),
+                new ArrayList<RevisionChange>());
+        for (Node child = root.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                RevisionIndex.collect((Element) child, lifetimes, changes);
+            }
+        }
+        RevisionIndex index = new RevisionIndex();
+        index.revisions.putAll(changes);
+        return index;
+    }
+
+    private static void collect(Element node, Lifetimes lifetimes,
+            Map<Long, List<RevisionChange>> changes) {
+        RevisionIndex.collect(RevisionIndex.getAdded(node, lifetimes), changes);
+        RevisionIndex.collect(RevisionIndex.getRemoved(node, lifetimes), changes);
+        for (Node child = node.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                RevisionIndex.collect((Element) child, lifetimes, changes);
+            }
+        }
+    }
+
+    private static void collect(RevisionChange change,
+            Map<Long, List<RevisionChange>> changes) {
+        if (change == null) {
+            return;
+        }
+        List<RevisionChange> revision = changes.get(change.getRevision());
+        if (revision == null) {
+            revision = new ArrayList<RevisionChange>();
+            changes.put(change.getRevision(), revision);
+        }
+        revision.add(change);
+    }
+
+    /**
+     * @return the change that added the V-file node, null if it was added
+     *         with its parent
+     */
+    static RevisionChange getAdded(Element node, Lifetimes lifetimes) {
+        long revision = lifetimes.get(node).getStart();
+        Element parent = (Element) node.getParentNode();
+        // Children that are moved to a new copy of their parent keep their
+        // start, which is then earlier than the parent's.
+        if (!RevisionIndex.isVFileElement(parent)
+                && revision <= lifetimes.get(parent).getStart()) {
+            return null;
+        }
+        return new RevisionChange(revision, RevisionChange.Kind.ADDED,
+                RevisionIndex.getXPath(node, revision, lifetimes));
+    }
+
+    /**
+     * @return the change that removed the V-file node, null if it is live or
+     *         was removed with its parent
+     */
+    static RevisionChange getRemoved(Element node, Lifetimes lifetimes) {
+        long revision = lifetimes.get(node).getEnd();
+        if (revision == Lifetime.NOW) {
+            return null;
+        }
+        Element parent = (Element) node.getParentNode();
+        if (!RevisionIndex.isVFileElement(parent)
+                && revision >= lifetimes.get(parent).getEnd()) {
+            return null;
+        }
+        return new RevisionChange(revision, RevisionChange.Kind.REMOVED,
+                RevisionIndex.getXPath(node, revision - 1, lifetimes));
+    }
+
+    /**
+     * @return the location of the V-file node in the document as of the
+     *         revision
+     */
+    static SimpleXPath getXPath(Element node, long revision, Lifetimes lifetimes) {
+        if (RevisionIndex.isVFileElement(node)) {
+            return new SimpleXPath();
+        }
+        return RevisionIndex.getXPath((Element) node.getParentNode(), revision, lifetimes)
+                .append(RevisionIndex.getAxis(node, revision, lifetimes));
+    }
+
+    private static Axis getAxis(Element node, long revision, Lifetimes lifetimes) {
+        String tagName = node.getTagName();
+        if (tagName.equals(StringConstants.ATTR)) {
+            return new Axis(node.getAttribute(StringConstants.NAME), Nodetype.ATTRIBUTE,
+                    -1);
+        }
+        int localIndex = 0;
+        for (Node sibling = node.getPreviousSibling(); sibling != null; sibling = sibling
+                .getPreviousSibling()) {
+            if (sibling.getNodeName().equals(tagName)
+                    && lifetimes.get((Element) sibling).isAlive(revision)) {
+                localIndex++;
+            }
+        }
+        if (tagName.equals(StringConstants.TEXT)) {
+            return new Axis("text()", Nodetype.TEXT, localIndex);
+        } else if (tagName.equals(StringConstants.COMMENT)) {
+            return new Axis("comment()", Nodetype.COMMENT, localIndex);
+        } else if (tagName.equals(StringConstants.PI)) {
+            return new Axis("processing-instruction()", Nodetype.PROCESSING_INSTRUCTION,
+                    localIndex);
+        }
+        return new Axis(tagName, Nodetype.ELEMENT, localIndex);
+    }
+
+    private static boolean isVFileElement(Element element) {
+        return element.getTagName().equals(StringConstants.FILE);
+    }
+}
@@ -1,30 +1,58 @@
 package se.repos.vfile.gen;
 
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.NoSuchElementException;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Node;
 
 /**
- * WARNING: This class is mutable!
  * A class that represents an unique XPath, i.e. an XPath that when evaluated
  * only selects a single node. Used to locate {@link TaggedNode} that have been
  * changed.
  * 
+ * Paths are immutable. Each path holds its last {@link Axis} and a pointer to
+ * the path of its parent, so child paths share their parent's prefix and are
+ * built in constant time. The hash code is calculated once, from the parent's.
+ * 
  * @see VFile.update
  * @see VFile.getNodeMap
  * @see Axis
  */
-public class SimpleXPath implements Iterable<Axis> {
+public final class SimpleXPath implements Iterable<Axis> {
 
-    private LinkedList<Axis> axi;
+    private final SimpleXPath parent;
+    private final Axis axis;
+    private final int length;
+    // The hash code of the list of axi, as java.util.List defines it.
+    private final int listHash;
 
     /**
      * Constructs an empty XPath.
      */
     public SimpleXPath() {
-        this.axi = new LinkedList<Axis>();
+        this.parent = null;
+        this.axis = null;
+        this.length = 0;
+        this.listHash = 1;
+    }
+
+    private SimpleXPath(SimpleXPath parent, Axis axis) {
+        if (axis == null) {
+            throw new NullPointerException();
+        }
+        this.parent = parent;
+        this.axis = axis;
+        this.length = parent.length + 1;
+        this.listHash = 31 * parent.listHash + axis.hashCode();
+    }
+
+    private SimpleXPath(SimpleXPath copy) {
+        this.parent = copy.parent;
+        this.axis = copy.axis;
+        this.length = copy.length;
+        this.listHash = copy.listHash;
     }
 
     /**
@@ -35,118 +63,177 @@ public class SimpleXPath implements Iterable<Axis> {
      *             If the XPath string doesn't satisfy that condition.
      */
     public SimpleXPath(String xPath) {
+        this(SimpleXPath.parse(xPath));
+    }
+
+    /**
+     * Parses the XPath strings of XMLUnit and {@link #toString()} in a single
+     * scan, without splitting the string.
+     */
+    private static SimpleXPath parse(String xPath) {
         if (xPath == null) {
             throw new NullPointerException();
         }
-        this.axi = new LinkedList<Axis>();
-        String[] axisStrings = xPath.substring(1).split("/"); // the substring
-                                                              // drops the
-                                                              // leading '/'
-        for (String axisString : axisStrings) {
-            int localIndex = -1;
-            String localAxis;
-            Nodetype nodeType;
-            if (axisString.startsWith("@")) {
-                localAxis = axisString.substring(1); // drops the '@'.
-                nodeType = Nodetype.ATTRIBUTE;
-            } else {
-                String[] axisParts = axisString.split("\\[|\\]");
-                if (axisParts.length != 2) {
-                    throw new IllegalArgumentException("String is not a simple XPath.");
-                }
-                localIndex = Integer.parseInt(axisParts[1]) - 1; // uses 0-based
-                                                                 // index, hence
-                                                                 // the - 1.
-                localAxis = axisParts[0];
-                if (localAxis.equals("comment()")) {
-                    nodeType = Nodetype.COMMENT;
-                } else if (localAxis.equals("processing-instruction()")) {
-                    nodeType = Nodetype.PROCESSING_INSTRUCTION;
-                } else if (localAxis.equals("text()")) {
-                    nodeType = Nodetype.TEXT;
-                } else {
-                    nodeType = Nodetype.ELEMENT;
-                }
+        if (!xPath.startsWith("/")) {
+            throw new IllegalArgumentException("String is not a simple XPath.");
+        }
+        SimpleXPath path = new SimpleXPath();
+        int start = 1;
+        do {
+            int end = xPath.indexOf('/', start);
+            if (end < 0) {
+                end = xPath.length();
             }
-            this.addLast(new Axis(localAxis, nodeType, localIndex));
+            path = new SimpleXPath(path, SimpleXPath.parseAxis(xPath, start, end));
+            start = end + 1;
+        } while (start <= xPath.length());
+        return path;
+    }
+
+    private static Axis parseAxis(String xPath, int start, int end) {
+        if (start < end && xPath.charAt(start) == '@') {
+            return new Axis(xPath.substring(start + 1, end), Nodetype.ATTRIBUTE, -1);
         }
+        int bracket = xPath.indexOf('[', start);
+        if (bracket <= start || bracket >= end - 2 || xPath.charAt(end - 1) != ']') {
+            throw new IllegalArgumentException("String is not a simple XPath.");
+        }
+        int position = 0;
+        for (int i = bracket + 1; i < end - 1; i++) {
+            char c = xPath.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("String is not a simple XPath.");
+            }
+            position = position * 10 + (c - '0');
+        }
+        String localAxis = xPath.substring(start, bracket);
+        Nodetype nodeType;
+        if (localAxis.equals("comment()")) {
+            nodeType = Nodetype.COMMENT;
+        } else if (localAxis.equals("processing-instruction()")) {
+            nodeType = Nodetype.PROCESSING_INSTRUCTION;
+        } else if (localAxis.equals("text()")) {
+            nodeType = Nodetype.TEXT;
+        } else {
+            nodeType = Nodetype.ELEMENT;
+        }
+        // uses 0-based index, hence the - 1.
+        return new Axis(localAxis, nodeType, position - 1);
     }
 
     /**
      * Constructs an XPath pointing to the given node.
      */
     public SimpleXPath(Node node) {
+        this(SimpleXPath.getPath(node));
+    }
+
+    private static SimpleXPath getPath(Node node) {
         if (node == null) {
             throw new NullPointerException();
         }
-        this.axi = new LinkedList<Axis>();
         Nodetype nodeType = ElementUtils.getNodeType(node);
-        if (nodeType == Nodetype.DOCUMENT) {
-            return;
+        switch (nodeType) {
+        case DOCUMENT:
+            return new SimpleXPath();
+        case ATTRIBUTE:
+            return new SimpleXPath(SimpleXPath.getPath(((Attr) node).getOwnerElement()),
+                    new Axis(SimpleXPath.getAxisName(node), nodeType, -1));
+        default:
+            return new SimpleXPath(SimpleXPath.getPath(node.getParentNode()), new Axis(
+                    SimpleXPath.getAxisName(node), nodeType, ElementUtils.getLocalIndex(
+                            node, true)));
         }
-        String localAxis;
-        int localIndex = -1;
-        Node current = node;
-        Node parent;
+    }
 
-        while (nodeType != Nodetype.DOCUMENT) {
-            switch (nodeType) {
-            case ELEMENT:
-                localAxis = current.getNodeName();
-                localIndex = ElementUtils.getLocalIndex(current, true);
-                parent = current.getParentNode();
-                break;
-            case TEXT:
-                localAxis = "text()";
-                localIndex = ElementUtils.getLocalIndex(current, true);
-                parent = current.getParentNode();
-                break;
-            case COMMENT:
-                localAxis = "comment()";
-                localIndex = ElementUtils.getLocalIndex(current, true);
-                parent = current.getParentNode();
-                break;
-            case PROCESSING_INSTRUCTION:
-                localAxis = "processing-instruction()";
-                localIndex = ElementUtils.getLocalIndex(current, true);
-                parent = current.getParentNode();
-                break;
-            case ATTRIBUTE:
-                localAxis = current.getNodeName();
-                localIndex = -1;
-                parent = ((Attr) current).getOwnerElement();
-                break;
-            default:
-                throw new UnsupportedOperationException();
-            }
-            this.addFirst(new Axis(localAxis, nodeType, localIndex));
-            current = parent;
-            nodeType = ElementUtils.getNodeType(current);
+    /**
+     * Constructs an XPath pointing to a child of the node the given XPath
+     * points to. Shares the parent XPath instead of copying it.
+     * 
+     * @param parent
+     *            The XPath of the parent node.
+     * @param child
+     *            The child node or attribute.
+     * @param localIndex
+     *            The index of child among it's siblings of the same name, as
+     *            given by {@link ElementUtils#getLocalIndex(Node, boolean)}.
+     *            Ignored for attributes.
+     */
+    public SimpleXPath(SimpleXPath parent, Node child, int localIndex) {
+        this(parent, SimpleXPath.getAxis(child, localIndex));
+    }
+
+    private static Axis getAxis(Node child, int localIndex) {
+        Nodetype nodeType = ElementUtils.getNodeType(child);
+        if (nodeType == Nodetype.ATTRIBUTE) {
+            localIndex = -1;
         }
+        return new Axis(SimpleXPath.getAxisName(child), nodeType, localIndex);
     }
 
-    public void addFirst(Axis a) {
-        this.axi.addFirst(a);
+    /**
+     * Returns the name used for the given node in an {@link Axis}. Siblings
+     * with the same axis name share the same local index sequence.
+     */
+    public static String getAxisName(Node node) {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+        case Node.ATTRIBUTE_NODE:
+            return node.getNodeName();
+        case Node.TEXT_NODE:
+            return "text()";
+        case Node.COMMENT_NODE:
+            return "comment()";
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            return "processing-instruction()";
+        default:
+            throw new UnsupportedOperationException();
+        }
     }
 
-    public void addLast(Axis a) {
-        this.axi.addLast(a);
+    /**
+     * @return The XPath of this one with the axis added last.
+     */
+    public SimpleXPath append(Axis a) {
+        return new SimpleXPath(this, a);
     }
 
-    public Axis getFirstAxis() {
-        return this.axi.getFirst();
+    /**
+     * @return The XPath of this one without its last axis, the XPath of the
+     *         parent node.
+     * @throws java.util.NoSuchElementException
+     *             If this XPath is empty.
+     */
+    public SimpleXPath getParent() {
+        if (this.parent == null) {
+            throw new NoSuchElementException();
+        }
+        return this.parent;
     }
 
-    public Axis getLastAxis() {
-        return this.axi.getLast();
+    /**
+     * @return The number of axi.
+     */
+    public int getLength() {
+        return this.length;
     }
 
-    public Axis removeFirstAxis() {
-        return this.axi.removeFirst();
+    public Axis getFirstAxis() {
+        if (this.axis == null) {
+            throw new NoSuchElementException();
+        }
+        SimpleXPath first = this;
+        while (first.parent.axis != null) {
+            first = first.parent;
+        }
+        return first.axis;
     }
 
-    public Axis removeLastAxis() {
-        return this.axi.removeLast();
+    public Axis getLastAxis() {
+        if (this.axis == null) {
+            throw new NoSuchElementException();
+        }
+        return this.axis;
     }
 
     /**
@@ -185,8 +272,8 @@ public class SimpleXPath implements Iterable<Axis> {
                         Nodetype.TEXT);
                 break;
             case ELEMENT:
-                currentContext = currentContext.getElementsByTagName(axis.name).get(
-                        axis.localIndex);
+                currentContext = currentContext.getNthElementByTagName(
+                        axis.localIndex, axis.name);
                 break;
             }
         }
@@ -205,52 +292,65 @@ public class SimpleXPath implements Iterable<Axis> {
      * debugging purposes.
      */
     public boolean startsWith(SimpleXPath that) {
-        Iterator<Axis> thisIterator = this.iterator();
-        Iterator<Axis> thatIterator = that.iterator();
-        while (thisIterator.hasNext() && thatIterator.hasNext()) {
-            if (!thisIterator.next().equals(thatIterator.next())) {
-                return false;
-            }
+        SimpleXPath prefix = this;
+        while (prefix.length > that.length) {
+            prefix = prefix.parent;
         }
-        return !thatIterator.hasNext();
+        return prefix.equals(that);
     }
 
     @Override
     public int hashCode() {
         final int prime = 31;
-        int result = 1;
-        result = prime * result + ((this.axi == null) ? 0 : this.axi.hashCode());
-        return result;
+        return prime + this.listHash;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (obj == null || !(obj instanceof SimpleXPath)) {
+        if (!(obj instanceof SimpleXPath)) {
             return false;
         }
+        SimpleXPath path = this;
         SimpleXPath that = (SimpleXPath) obj;
-        Iterator<Axis> thisIterator = this.iterator();
-        Iterator<Axis> thatIterator = that.iterator();
-        while (thisIterator.hasNext() && thatIterator.hasNext()) {
-            if (!thisIterator.next().equals(thatIterator.next())) {
+        if (path.length != that.length || path.listHash != that.listHash) {
+            return false;
+        }
+        // Paths that share a prefix stop comparing where it starts.
+        while (path != that && path.axis != null) {
+            if (!path.axis.equals(that.axis)) {
                 return false;
             }
+            path = path.parent;
+            that = that.parent;
         }
-        return !thisIterator.hasNext() && !thatIterator.hasNext();
+        return true;
     }
 
     @Override
     public String toString() {
+        if (this.axis == null) {
+            return "";
+        }
         StringBuilder sb = new StringBuilder();
-        for (Axis a : this.axi) {
+        for (Axis a : this) {
             sb.append("/");
             sb.append(a);
         }
         return sb.toString();
     }
 
+    /**
+     * Iterates the axi from the first to the last. The iterator does not
+     * support removal.
+     */
     @Override
     public Iterator<Axis> iterator() {
-        return this.axi.iterator();
+        Axis[] axi = new Axis[this.length];
+        SimpleXPath path = this;
+        for (int i = this.length - 1; i >= 0; i--) {
+            axi[i] = path.axis;
+            path = path.parent;
+        }
+        return Arrays.asList(axi).iterator();
     }
 }
@@ -0,0 +1,86 @@
+package se.repos.vfile.gen;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A utility class for reading V-files with StAX.
+ */
+class StreamUtils {
+
+    private static final XMLInputFactory inputFactory;
+
+    static {
+        inputFactory = XMLInputFactory.newInstance();
+        // V-files contain prefixed names from the versioned documents, which
+        // need not be declared.
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * @return a reader that is not namespace aware
+     */
+    static XMLStreamReader createReader(InputStream vfile) throws XMLStreamException {
+        return inputFactory.createXMLStreamReader(vfile);
+    }
+
+    /**
+     * Moves the reader to the v:file start tag.
+     */
+    static void readFileElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+            // Prolog of the V-file.
+        }
+        if (!StreamUtils.getName(reader).equals(StringConstants.FILE)) {
+            throw new XMLStreamException("Not a V-file.", reader.getLocation());
+        }
+    }
+
+    /**
+     * Moves the reader from a start tag to the matching end tag.
+     */
+    static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * @return the qualified name of the current element
+     */
+    static String getName(XMLStreamReader reader) {
+        return StreamUtils.getQName(reader.getPrefix(), reader.getLocalName());
+    }
+
+    /**
+     * @return the attribute value, or the empty string if there is no such
+     *         attribute
+     */
+    static String getAttribute(XMLStreamReader reader, String name) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (StreamUtils.getQName(reader.getAttributePrefix(i),
+                    reader.getAttributeLocalName(i)).equals(name)) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return "";
+    }
+
+    private static String getQName(String prefix, String localName) {
+        if (prefix == null || prefix.length() == 0) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+}
@@ -14,6 +14,7 @@ public final class StringConstants {
     public static final String NAME = "v:name";
     public static final String DOCVERSION = "v:docVersion";
     public static final String DOCTIME = "v:docTime";
+    public static final String CONTENTHASH = "v:contentHash";
     public static final String TEXT = "v:text";
     public static final String REORDER = "v:reorder";
     public static final String REORDERID = "v:reorderId";
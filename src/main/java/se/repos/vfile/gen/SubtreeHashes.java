@@ -0,0 +1,251 @@
+package se.repos.vfile.gen;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * 64 bit content hashes of subtrees, for skipping the parts of a document
+ * that did not change. An element of a plain document and a tagged element of
+ * a {@link VFile} get the same hash if they have the same name, attributes,
+ * namespace declarations and children, with text, comment and processing
+ * instruction values compared trimmed. Equal subtrees thus compare equal in
+ * both {@link TaggedNode#matchNode(Node)} and {@link XmlDiffNative}, which
+ * skips them. Where a V-file subtree equals its counterpart in the next
+ * version of the document, matching leaves its nodes out of the node map.
+ *
+ * An instance hashes the elements of plain documents and keeps the hashes for
+ * as long as it is used, so the documents must not change meanwhile. The
+ * hashes of the live subtrees of V-file elements are kept on the elements
+ * themselves, so they last between updates of a V-file that is kept in
+ * memory, and must be dropped with {@link #invalidate(Node)} whenever a
+ * live subtree changes.
+ *
+ * Instances are made by {@link VFile} and passed to the {@link XmlDiff}, which
+ * can only use them within this package.
+ */
+public final class SubtreeHashes {
+
+    private static final String VFILE_HASH = SubtreeHashes.class.getName();
+    private static final String PRESET_HASH = SubtreeHashes.class.getName() + ".preset";
+
+    private static final long ELEMENT = 1;
+    private static final long TEXT = 2;
+    private static final long COMMENT = 3;
+    private static final long PI = 4;
+    private static final long OTHER = 5;
+
+    private Map<Element, Long> hashes = new IdentityHashMap<Element, Long>();
+
+    SubtreeHashes() {
+    }
+
+    /**
+     * @return the hash of the subtree of an element of a plain document, or
+     *         the hash given to it by {@link #preset(Element, long)}
+     */
+    long get(Element element) {
+        Long hash = this.hashes.get(element);
+        if (hash == null) {
+            hash = (Long) element.getUserData(PRESET_HASH);
+            if (hash == null) {
+                hash = this.compute(element);
+            }
+            this.hashes.put(element, hash);
+        }
+        return hash;
+    }
+
+    private long compute(Element element) {
+        long hash = SubtreeHashes.mix(ELEMENT, SubtreeHashes.hash(element.getTagName()));
+        long attributes = 0;
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            attributes += SubtreeHashes.hashAttribute(attr.getName(), attr.getValue());
+        }
+        int children = 0;
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            switch (child.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                hash = SubtreeHashes.mix(hash, this.get((Element) child));
+                break;
+            case Node.TEXT_NODE:
+                String text = child.getNodeValue();
+                if (SubtreeHashes.isBlank(text)) {
+                    continue; // like ElementUtils.getChildren
+                }
+                hash = SubtreeHashes.mix(SubtreeHashes.mix(hash, TEXT),
+                        SubtreeHashes.hashTrimmed(text));
+                break;
+            case Node.COMMENT_NODE:
+                hash = SubtreeHashes.mix(SubtreeHashes.mix(hash, COMMENT),
+                        SubtreeHashes.hashTrimmed(child.getNodeValue()));
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                ProcessingInstruction pi = (ProcessingInstruction) child;
+                hash = SubtreeHashes.mix(SubtreeHashes.mix(SubtreeHashes.mix(hash, PI),
+                        SubtreeHashes.hash(pi.getTarget())), SubtreeHashes
+                        .hashTrimmed(pi.getData()));
+                break;
+            default:
+                String value = child.getNodeValue();
+                hash = SubtreeHashes.mix(SubtreeHashes.mix(hash, OTHER),
+                        child.getNodeType());
+                hash = SubtreeHashes.mix(hash,
+                        value == null ? 0 : SubtreeHashes.hash(value));
+                break;
+            }
+            children++;
+        }
+        return SubtreeHashes.finish(SubtreeHashes.mix(hash, attributes), children);
+    }
+
+    /**
+     * Gives an element of a plain document the hash it is known to have, such
+     * as that of the tagged element it matched, so that it is not computed.
+     */
+    void put(Element element, long hash) {
+        this.hashes.put(element, hash);
+    }
+
+    /**
+     * Makes the element of a plain document hash as given, whatever its
+     * content. Used for elements that stand in for an unchanged subtree.
+     */
+    static void preset(Element element, long hash) {
+        element.setUserData(PRESET_HASH, hash, null);
+    }
+
+    /**
+     * @return the hash of the live subtree of the tagged element, the same as
+     *         that of the element in a plain document it matches
+     */
+    static long getLive(Element element, Lifetimes lifetimes) {
+        Long hash = (Long) element.getUserData(VFILE_HASH);
+        if (hash == null) {
+            hash = SubtreeHashes.computeLive(element, lifetimes);
+            element.setUserData(VFILE_HASH, hash, null);
+        }
+        return hash;
+    }
+
+    private static long computeLive(Element element, Lifetimes lifetimes) {
+        long hash = SubtreeHashes.mix(ELEMENT, SubtreeHashes.hash(element.getTagName()));
+        long attributes = 0;
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            if (ElementUtils.isNameSpace(attr)) {
+                attributes += SubtreeHashes.hashAttribute(attr.getName(), attr.getValue());
+            }
+        }
+        int children = 0;
+        for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() != Node.ELEMENT_NODE || !lifetimes.isLive((Element) c)) {
+                continue;
+            }
+            Element child = (Element) c;
+            String tagName = child.getTagName();
+            if (tagName.equals(StringConstants.ATTR)) {
+                attributes += SubtreeHashes.hashAttribute(
+                        child.getAttribute(StringConstants.NAME), child.getTextContent());
+                continue;
+            } else if (tagName.equals(StringConstants.TEXT)) {
+                hash = SubtreeHashes.mix(SubtreeHashes.mix(hash, TEXT),
+                        SubtreeHashes.hashTrimmed(child.getTextContent()));
+            } else if (tagName.equals(StringConstants.COMMENT)) {
+                hash = SubtreeHashes.mix(SubtreeHashes.mix(hash, COMMENT),
+                        SubtreeHashes.hashTrimmed(child.getTextContent()));
+            } else if (tagName.equals(StringConstants.PI)) {
+                hash = SubtreeHashes.mix(SubtreeHashes.mix(SubtreeHashes.mix(hash, PI),
+                        SubtreeHashes.hash(child.getAttribute(StringConstants.NAME))),
+                        SubtreeHashes.hashTrimmed(child.getTextContent()));
+            } else {
+                hash = SubtreeHashes.mix(hash, SubtreeHashes.getLive(child, lifetimes));
+            }
+            children++;
+        }
+        return SubtreeHashes.finish(SubtreeHashes.mix(hash, attributes), children);
+    }
+
+    /**
+     * Drops the kept hashes of the tagged node and its ancestors. Must be
+     * called when a node is added, removed or moved among the node's
+     * children, when one of them ends, or when the node's own attributes
+     * change.
+     */
+    static void invalidate(Node node) {
+        // A kept hash implies kept hashes below, so no hash is kept above.
+        for (Node n = node; n != null && n.getUserData(VFILE_HASH) != null; n = n
+                .getParentNode()) {
+            n.setUserData(VFILE_HASH, null, null);
+        }
+    }
+
+    private static long hashAttribute(String name, String value) {
+        return SubtreeHashes.finish(
+                SubtreeHashes.mix(SubtreeHashes.hash(name), SubtreeHashes.hash(value)), 2);
+    }
+
+    private static long hash(String value) {
+        return SubtreeHashes.hash(value, 0, value.length());
+    }
+
+    private static long hashTrimmed(String value) {
+        // The same bounds as String.trim(), without the copy.
+        int start = 0;
+        int end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (start < end && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return SubtreeHashes.hash(value, start, end);
+    }
+
+    private static long hash(String value, int start, int end) {
+        // FNV-1a over the characters, then the length.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return SubtreeHashes.finish(hash, end - start);
+    }
+
+    private static boolean isBlank(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long mix(long hash, long value) {
+        return Long.rotateLeft(hash ^ (value * 0x9e3779b97f4a7c15L), 31)
+                * 0xbf58476d1ce4e5b9L;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so that every bit of the result depends
+     * on every bit of the input.
+     */
+    private static long finish(long hash, long length) {
+        hash ^= length;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb53a85e2fe1bL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
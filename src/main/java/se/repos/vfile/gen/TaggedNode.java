@@ -1,7 +1,13 @@
 package se.repos.vfile.gen;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,6 +15,7 @@ import org.slf4j.helpers.MessageFormatter;
 import org.w3c.dom.Attr;
 import org.w3c.dom.CharacterData;
 import org.w3c.dom.Comment;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -52,12 +59,25 @@ public class TaggedNode {
         this.element = element;
     }
 
+    /**
+     * Wraps an element that is known to be tagged, without checking its
+     * attributes.
+     */
+    private TaggedNode(VFile parentIndex, Element element, boolean tagged) {
+        this.parentVFile = parentIndex;
+        this.element = element;
+    }
+
     public Element toElement() {
         return this.element;
     }
 
     public Nodetype getNodetype() {
-        String tagName = this.element.getTagName();
+        return TaggedNode.getNodetype(this.element);
+    }
+
+    static Nodetype getNodetype(Element element) {
+        String tagName = element.getTagName();
         if (tagName.equals(StringConstants.ATTR)) {
             return Nodetype.ATTRIBUTE;
         } else if (tagName.equals(StringConstants.TEXT)) {
@@ -73,8 +93,8 @@ public class TaggedNode {
         }
     }
 
-    private TaggedNode getParent() {
-        return new TaggedNode(this.parentVFile, (Element) this.element.getParentNode());
+    TaggedNode getParent() {
+        return new TaggedNode(this.parentVFile, (Element) this.element.getParentNode(), true);
     }
 
     public String getName() {
@@ -127,6 +147,7 @@ public class TaggedNode {
             for (TaggedNode n : this.getChildren()) {
             	newElem.appendChild(n);
             }
+            this.childrenChanged();
             break;
         default:
             throw new UnsupportedOperationException(this.getNodetype().name());
@@ -146,54 +167,46 @@ public class TaggedNode {
      * attributes.
      */
     private void delete() {
+        this.delete(true);
+    }
+
+    private void delete(boolean topmost) {
         if (!this.isLive()) {
             return;
         }
+        if (topmost) {
+            // Before the removal, while the node still counts as live.
+            this.parentVFile.nodeRemoved(this.element);
+        }
         for (TaggedNode attr : this.getAttributes()) {
-            attr.delete();
+            attr.delete(false);
         }
         for (TaggedNode elem : this.getChildren()) {
-            elem.delete();
+            elem.delete(false);
         }
-        this.element.setAttribute(StringConstants.END,
-                this.parentVFile.getDocumentVersion());
+        Lifetime lifetime = this.getLifetime();
+        this.parentVFile.getLifetimes().end(this.element, this.parentVFile.getRevision());
+        this.parentVFile.getLiveChildIndex().invalidate(this.element.getParentNode());
+        SubtreeHashes.invalidate(this.element.getParentNode());
         /*
         this.element.setAttribute(StringConstants.TEND,
                 this.parentVFile.getDocumentTime());
                 */
-        if (this.getTStart().equals(this.getTEnd())
-                && this.getStart().equals(this.getEnd())) {
+        if (lifetime.getStart() == lifetime.getEnd()) {
             this.getParent().eraseChild(this);
         }
     }
 
     public boolean isLive() {
-        return this.getEnd().equals(StringConstants.NOW); // No need to test on both end-attributes.
-    }
-
-    private String getStart() {
-        return this.element.getAttribute(StringConstants.START);
-    }
-
-    private String getEnd() {
-        return this.element.getAttribute(StringConstants.END);
-    }
-
-    private String getTStart() {
-        return this.element.getAttribute(StringConstants.TSTART);
+        return this.getLifetime().isLive(); // No need to test on both end-attributes.
     }
 
-    private String getTEnd() {
-        return this.element.getAttribute(StringConstants.TEND);
+    private Lifetime getLifetime() {
+        return this.parentVFile.getLifetimes().get(this.element);
     }
 
     public TaggedNode getAttribute(String name) {
-        for (TaggedNode a : this.getAttributes()) {
-            if (a.getName().equals(name)) {
-                return a;
-            }
-        }
-        return null;
+        return this.wrap(this.getLiveChildren().getAttribute(name));
     }
 
     /**
@@ -206,38 +219,24 @@ public class TaggedNode {
      * @return The needle, or null if not found.
      */
     public TaggedNode getNthNodeOfType(int n, Nodetype nodeType) {
-        int i = 0;
-        for (TaggedNode child : this.getChildren()) {
-            if (child.getNodetype() == nodeType) {
-                if (i == n) {
-                    return child;
-                }
-                i++;
-            }
-        }
-        return null;
+        return this.wrap(this.getLiveChildren().getNthNodeOfType(n, nodeType));
+    }
+
+    /**
+     * Finds the nth live child element with the given tag name.
+     * 
+     * @return The needle, or null if not found.
+     */
+    public TaggedNode getNthElementByTagName(int n, String tagName) {
+        return this.wrap(this.getLiveChildren().getNthElementByTagName(n, tagName));
     }
 
     public ArrayList<TaggedNode> getElementsByTagName(String tagName) {
-        ArrayList<TaggedNode> results = new ArrayList<TaggedNode>();
-        for (TaggedNode child : this.getChildren()) {
-            if (child.getNodetype() == Nodetype.ELEMENT
-                    && child.getName().equals(tagName)) {
-                results.add(child);
-            }
-        }
-        return results;
+        return this.wrap(this.getLiveChildren().getElementsByTagName(tagName));
     }
 
     private ArrayList<TaggedNode> getAttributes() {
-        ArrayList<TaggedNode> results = new ArrayList<TaggedNode>();
-        for (Element c : TaggedNode.getChildElements(this.element)) {
-            TaggedNode child = new TaggedNode(this.parentVFile, c);
-            if (child.isLive() && child.getNodetype() == Nodetype.ATTRIBUTE) {
-                results.add(child);
-            }
-        }
-        return results;
+        return this.wrap(this.getLiveChildren().attributes);
     }
 
     public void setAttribute(String name, String value) {
@@ -253,10 +252,12 @@ public class TaggedNode {
 
     private void appendChild(TaggedNode child) {
         this.element.appendChild(child.element);
+        this.childrenChanged();
     }
 
     private void insertBefore(TaggedNode e, TaggedNode ref) {
         this.element.insertBefore(e.element, ref.element);
+        this.childrenChanged();
     }
 
     /**
@@ -273,6 +274,7 @@ public class TaggedNode {
         }
         TaggedNode ref = children.get(index);
         this.element.insertBefore(e.element, ref.element);
+        this.childrenChanged();
     }
     
     /**
@@ -289,6 +291,7 @@ public class TaggedNode {
     	} else {
     		this.element.appendChild(e.element);
     	}
+    	this.childrenChanged();
     }
 
     /**
@@ -331,8 +334,10 @@ public class TaggedNode {
         }
 
         int index = ElementUtils.getLocalIndex(child);
-        int vfileIndex = ElementUtils.findVfileIndex(this.element, index);
+        int vfileIndex = ElementUtils.findVfileIndex(this.element, index,
+                this.parentVFile.getLifetimes());
         this.insertElementAtAbsolute(norm, vfileIndex);
+        this.parentVFile.nodeInserted(norm.element, index);
         
         /*
         if (index == this.childCount() || this.getNodetype() == Nodetype.DOCUMENT) {
@@ -348,14 +353,43 @@ public class TaggedNode {
     }
 
     private ArrayList<TaggedNode> getChildren() {
-        ArrayList<TaggedNode> results = new ArrayList<TaggedNode>();
-        for (Element c : TaggedNode.getChildElements(this.element)) {
-            TaggedNode child = new TaggedNode(this.parentVFile, c);
-            if (child.isLive()) {
-                if (child.getNodetype() != Nodetype.ATTRIBUTE) {
-                    results.add(child);
-                }
-            }
+        return this.wrap(this.getLiveChildren().children);
+    }
+
+    private LiveChildIndex.Entry getLiveChildren() {
+        return this.parentVFile.getLiveChildIndex().get(this.element);
+    }
+
+    /**
+     * Must be called after every change to this node's child list.
+     */
+    private void childrenChanged() {
+        this.parentVFile.getLiveChildIndex().invalidate(this.element);
+        SubtreeHashes.invalidate(this.element);
+    }
+
+    /**
+     * @return the hash of the live subtree of this element
+     * @see SubtreeHashes
+     */
+    long getSubtreeHash() {
+        return SubtreeHashes.getLive(this.element, this.parentVFile.getLifetimes());
+    }
+
+    /**
+     * Wraps a child of this tagged node, which is tagged too.
+     */
+    private TaggedNode wrap(Element e) {
+        if (e == null) {
+            return null;
+        }
+        return new TaggedNode(this.parentVFile, e, true);
+    }
+
+    private ArrayList<TaggedNode> wrap(List<Element> elements) {
+        ArrayList<TaggedNode> results = new ArrayList<TaggedNode>(elements.size());
+        for (Element e : elements) {
+            results.add(new TaggedNode(this.parentVFile, e, true));
         }
         return results;
     }
@@ -369,6 +403,32 @@ public class TaggedNode {
      *             If the nodes are unequal.
      */
     public void matchNode(Node docNode) throws NoMatchException {
+        this.matchNode(docNode, null, null, null, null);
+    }
+
+    /**
+     * Same as {@link #matchNode(Node)}, but also maps the XPath of each
+     * matched node in the document to the corresponding {@link TaggedNode}.
+     * 
+     * @param docPath
+     *            The XPath of docNode. Ignored if nodeMap is null.
+     * @param nodeMap
+     *            The map to add matched nodes to, or null.
+     * @param newElem
+     *            The element at the same XPath in the document the matched
+     *            one is to be diffed with, or null.
+     * @param newHashes
+     *            The subtree hashes of that document, or null. Where the hash
+     *            of this element equals that of newElem no differences are
+     *            looked up below it, so its descendants are still matched
+     *            but left out of nodeMap. Matched elements are given the
+     *            hash of their tagged element.
+     * @throws NoMatchException
+     *             If the nodes are unequal.
+     */
+    void matchNode(Node docNode, SimpleXPath docPath,
+            Map<SimpleXPath, TaggedNode> nodeMap, Element newElem,
+            SubtreeHashes newHashes) throws NoMatchException {
         if (!(this.getNodetype() == ElementUtils.getNodeType(docNode) && this.isLive())) {
             throw new NoMatchException(new SimpleXPath(docNode), this.getXPath());
         }
@@ -384,8 +444,20 @@ public class TaggedNode {
             if (!this.getName().equals(docElem.getTagName())) {
                 throw new NoMatchException(new SimpleXPath(docNode), this.getXPath());
             }
-            this.matchAttributes(docElem);
-            this.matchChildren(docElem);
+            if (nodeMap != null && newElem != null) {
+                long hash = this.getSubtreeHash();
+                if (newHashes.get(newElem) == hash) {
+                    this.matchAttributes(docElem, null, null);
+                    this.matchChildren(docElem, null, null, null, null);
+                } else {
+                    this.matchAttributes(docElem, docPath, nodeMap);
+                    this.matchChildren(docElem, docPath, nodeMap, newElem, newHashes);
+                }
+                newHashes.put(docElem, hash); // once matched, they are equal
+            } else {
+                this.matchAttributes(docElem, docPath, nodeMap);
+                this.matchChildren(docElem, docPath, nodeMap, newElem, newHashes);
+            }
             b = true;
             break;
         case TEXT:
@@ -406,9 +478,13 @@ public class TaggedNode {
         if (!b) {
             throw new NoMatchException(new SimpleXPath(docNode), this.getXPath());
         }
+        if (nodeMap != null) {
+            nodeMap.put(docPath, this);
+        }
     }
 
-    private void matchAttributes(Element docElem) throws NoMatchException {
+    private void matchAttributes(Element docElem, SimpleXPath docPath,
+            Map<SimpleXPath, TaggedNode> nodeMap) throws NoMatchException {
         ArrayList<Attr> thoseAttrs = ElementUtils.getAttributes(docElem);
         for (int i = 0; i < thoseAttrs.size(); i++) {
             Attr thatAttr = thoseAttrs.get(i);
@@ -416,18 +492,152 @@ public class TaggedNode {
             if (thisAttr == null) {
                 throw new NoMatchException(new SimpleXPath(docElem), this.getXPath());
             }
-            thisAttr.matchNode(thatAttr);
+            SimpleXPath attrPath = null;
+            if (nodeMap != null) {
+                attrPath = new SimpleXPath(docPath, thatAttr, -1);
+            }
+            thisAttr.matchNode(thatAttr, attrPath, nodeMap, null, null);
         }
     }
 
-    private void matchChildren(Node docNode) throws NoMatchException {
+    private void matchChildren(Node docNode, SimpleXPath docPath,
+            Map<SimpleXPath, TaggedNode> nodeMap, Element newElem,
+            SubtreeHashes newHashes) throws NoMatchException {
         ArrayList<TaggedNode> theseChildren = this.getChildren();
         ArrayList<Node> thoseChildren = ElementUtils.getChildren(docNode);
         if (theseChildren.size() != thoseChildren.size()) {
             throw new NoMatchException(new SimpleXPath(docNode), this.getXPath());
         }
+        Map<String, List<Element>> newChildren = null;
+        if (nodeMap != null && newElem != null) {
+            newChildren = ElementUtils.getChildElementsByName(newElem);
+        }
+        // Local indexes of the document children, counted per axis name.
+        Map<String, Integer> localIndexes = new HashMap<String, Integer>();
         for (int i = 0; i < theseChildren.size(); i++) {
-            theseChildren.get(i).matchNode(thoseChildren.get(i));
+            Node thatChild = thoseChildren.get(i);
+            SimpleXPath childPath = null;
+            Element newChild = null;
+            if (nodeMap != null) {
+                String axisName = SimpleXPath.getAxisName(thatChild);
+                Integer localIndex = localIndexes.get(axisName);
+                if (localIndex == null) {
+                    localIndex = 0;
+                }
+                localIndexes.put(axisName, localIndex + 1);
+                childPath = new SimpleXPath(docPath, thatChild, localIndex);
+                if (newChildren != null && thatChild.getNodeType() == Node.ELEMENT_NODE) {
+                    // The axis name of an element is its tag name.
+                    List<Element> sameName = newChildren.get(thatChild.getNodeName());
+                    if (sameName != null && localIndex < sameName.size()) {
+                        newChild = sameName.get(localIndex);
+                    }
+                }
+            }
+            theseChildren.get(i).matchNode(thatChild, childPath, nodeMap, newChild,
+                    newHashes);
+        }
+    }
+
+    /**
+     * Copies the live attributes and children of this element, recursively,
+     * to the given element of a plain document. The result matches this node
+     * in the sense of {@link #matchNode(Node)}.
+     * 
+     * @param docElem
+     *            An empty element with the name of this node.
+     * @param docPath
+     *            The XPath of docElem. Ignored if nodeMap is null.
+     * @param nodeMap
+     *            The map to add the XPath of each created node to, or null.
+     * @param newElem
+     *            The element at the same XPath in the document this
+     *            projection is to be diffed with, or null.
+     * @param newHashes
+     *            The subtree hashes of that document, or null. Where the hash
+     *            of a live subtree equals that of its counterpart, docElem is
+     *            left empty and given the hash instead, see
+     *            {@link SubtreeHashes#preset(Element, long)}.
+     */
+    void project(Element docElem, SimpleXPath docPath,
+            Map<SimpleXPath, TaggedNode> nodeMap, Element newElem,
+            SubtreeHashes newHashes) {
+        if (nodeMap != null) {
+            nodeMap.put(docPath, this);
+        }
+        Map<String, List<Element>> newChildren = null;
+        if (newElem != null && newHashes != null) {
+            long hash = this.getSubtreeHash();
+            if (newHashes.get(newElem) == hash) {
+                SubtreeHashes.preset(docElem, hash);
+                return;
+            }
+            newChildren = ElementUtils.getChildElementsByName(newElem);
+        }
+        Document doc = docElem.getOwnerDocument();
+        for (TaggedNode attr : this.getAttributes()) {
+            String name = attr.getName();
+            if (docElem.hasAttribute(name)) {
+                continue; // the first live attribute is the one matched
+            }
+            docElem.setAttribute(name, attr.getValue());
+            if (nodeMap != null) {
+                nodeMap.put(new SimpleXPath(docPath, docElem.getAttributeNode(name), -1),
+                        attr);
+            }
+        }
+        // Local indexes of the document children, counted per axis name.
+        Map<String, Integer> localIndexes = new HashMap<String, Integer>();
+        Map<String, Integer> elementIndexes = new HashMap<String, Integer>();
+        for (TaggedNode child : this.getChildren()) {
+            Node docChild;
+            switch (child.getNodetype()) {
+            case ELEMENT:
+                docChild = doc.createElement(child.getName());
+                break;
+            case TEXT:
+                docChild = doc.createTextNode(child.getValue());
+                break;
+            case COMMENT:
+                docChild = doc.createComment(child.getValue());
+                break;
+            case PROCESSING_INSTRUCTION:
+                docChild = doc.createProcessingInstruction(child.getName(),
+                        child.getValue());
+                break;
+            default:
+                throw new UnsupportedOperationException();
+            }
+            docElem.appendChild(docChild);
+            SimpleXPath childPath = null;
+            if (nodeMap != null) {
+                String axisName = SimpleXPath.getAxisName(docChild);
+                Integer localIndex = localIndexes.get(axisName);
+                if (localIndex == null) {
+                    localIndex = 0;
+                }
+                localIndexes.put(axisName, localIndex + 1);
+                childPath = new SimpleXPath(docPath, docChild, localIndex);
+            }
+            if (docChild.getNodeType() == Node.ELEMENT_NODE) {
+                Element newChild = null;
+                if (newChildren != null) {
+                    // Counted like the XPath, by tag name.
+                    String name = child.getName();
+                    Integer elementIndex = elementIndexes.get(name);
+                    if (elementIndex == null) {
+                        elementIndex = 0;
+                    }
+                    elementIndexes.put(name, elementIndex + 1);
+                    List<Element> sameName = newChildren.get(name);
+                    if (sameName != null && elementIndex < sameName.size()) {
+                        newChild = sameName.get(elementIndex);
+                    }
+                }
+                child.project((Element) docChild, childPath, nodeMap, newChild, newHashes);
+            } else if (nodeMap != null) {
+                nodeMap.put(childPath, child);
+            }
         }
     }
 
@@ -460,14 +670,11 @@ public class TaggedNode {
     }
 
     private SimpleXPath getXPath() {
-        SimpleXPath xPath = new SimpleXPath();
-        TaggedNode current = this;
-        while (current.getNodetype() != Nodetype.DOCUMENT) {
-            xPath.addFirst(new Axis(current.getName(), current.getNodetype(), current
-                    .getLocalIndex()));
-            current = current.getParent();
+        if (this.getNodetype() == Nodetype.DOCUMENT) {
+            return new SimpleXPath();
         }
-        return xPath;
+        return this.getParent().getXPath().append(
+                new Axis(this.getName(), this.getNodetype(), this.getLocalIndex()));
     }
 
     private int getLocalIndex() {
@@ -482,6 +689,8 @@ public class TaggedNode {
      */
     private void eraseChild(TaggedNode e) {
         this.element.removeChild(e.element);
+        this.parentVFile.getLifetimes().remove(e.element);
+        this.childrenChanged();
     }
 
     /**
@@ -495,11 +704,28 @@ public class TaggedNode {
      */
     public void updateTaggedNode(Map<TaggedNode, DeferredChanges> changeMap,
             MultiMap<SimpleXPath, Node> newNodeMap) {
+        this.updateTaggedNode(changeMap, newNodeMap, null);
+    }
+
+    /**
+     * Same as {@link #updateTaggedNode(Map, MultiMap)}, but only descends
+     * into the given nodes.
+     * 
+     * @param changed
+     *            The elements of the nodes in changeMap and their ancestors,
+     *            or null to visit all nodes.
+     */
+    void updateTaggedNode(Map<TaggedNode, DeferredChanges> changeMap,
+            MultiMap<SimpleXPath, Node> newNodeMap, Set<Element> changed) {
         for (TaggedNode child : this.getAttributes()) {
-            child.updateTaggedNode(changeMap, newNodeMap);
+            if (changed == null || changed.contains(child.element)) {
+                child.updateTaggedNode(changeMap, newNodeMap, changed);
+            }
         }
         for (TaggedNode child : this.getChildren()) {
-            child.updateTaggedNode(changeMap, newNodeMap);
+            if (changed == null || changed.contains(child.element)) {
+                child.updateTaggedNode(changeMap, newNodeMap, changed);
+            }
         }
         if (!changeMap.containsKey(this)) {
             return;
@@ -535,6 +761,205 @@ public class TaggedNode {
                                 // occured.
     }
 
+    /**
+     * Moves children of this element to the given indexes among its live
+     * children, in one pass. Children inserted in this version go to the
+     * index they were inserted at, and the other children not given keep
+     * their order in the remaining places. Of the resulting order, a longest
+     * run of children that are already in order stays in place, so only the
+     * rest are moved and cloned.
+     *
+     * @param targets
+     *            Live children of this element and their new indexes.
+     * @param planned
+     *            false to move each child that is not at its index in the
+     *            resulting order with {@link #reorder(int)} instead, from
+     *            the first index to the last
+     * @return the number of children moved
+     */
+    int reorderChildren(Map<TaggedNode, Integer> targets, boolean planned) {
+        List<Element> children = this.getLiveChildren().children;
+        int n = children.size();
+        Map<Element, Integer> positions = new IdentityHashMap<Element, Integer>();
+        for (int i = 0; i < n; i++) {
+            positions.put(children.get(i), i);
+        }
+        Element[] order = new Element[n];
+        Set<Element> placed = Collections.newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        for (Map.Entry<TaggedNode, Integer> target : targets.entrySet()) {
+            int index = target.getValue();
+            Element child = target.getKey().element;
+            if (index < 0 || index >= n || order[index] != null
+                    || !positions.containsKey(child)) {
+                logger.warn("Reordering {} one by one, the new indexes do not fit.",
+                        this.getName());
+                return this.reorderEach(targets);
+            }
+            order[index] = child;
+            placed.add(child);
+        }
+        for (Element child : children) {
+            Integer index = this.parentVFile.getInsertedIndex(child);
+            if (index == null || placed.contains(child)) {
+                continue;
+            }
+            if (index >= n || order[index] != null) {
+                logger.warn("Reordering {} one by one, the new indexes do not fit.",
+                        this.getName());
+                return this.reorderEach(targets);
+            }
+            order[index] = child;
+            placed.add(child);
+        }
+        int free = 0;
+        for (Element child : children) {
+            if (placed.contains(child)) {
+                continue;
+            }
+            while (order[free] != null) {
+                free++;
+            }
+            order[free] = child;
+        }
+
+        // Children inserted in this version have no earlier place to keep,
+        // so where they have to move they do so without a copy, and do not
+        // count as moved.
+        boolean[] inserted = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            inserted[i] = this.parentVFile.getInsertedIndex(order[i]) != null;
+        }
+        if (!planned) {
+            Lifetimes lifetimes = this.parentVFile.getLifetimes();
+            int moved = 0;
+            for (int i = 0; i < n; i++) {
+                if (ElementUtils.getLocalIndex(order[i], false, true, lifetimes) == i) {
+                    continue;
+                }
+                if (inserted[i]) {
+                    this.element.insertBefore(order[i],
+                            this.getLiveChildren().children.get(i));
+                    this.childrenChanged();
+                } else {
+                    this.wrap(order[i]).reorder(i);
+                    moved++;
+                }
+            }
+            return moved;
+        }
+
+        // The current index of each earlier child, in the new order.
+        int[] current = new int[n];
+        int[] earlier = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (!inserted[i]) {
+                earlier[count] = i;
+                current[count++] = positions.get(order[i]);
+            }
+        }
+        boolean[] inRun = TaggedNode.longestIncreasing(Arrays.copyOf(current, count));
+        boolean[] stays = new boolean[n];
+        for (int k = 0; k < count; k++) {
+            stays[earlier[k]] = inRun[k];
+        }
+        // Inserted children stay too where they are between the children
+        // around them that stay.
+        int[] after = new int[n];
+        int bound = Integer.MAX_VALUE;
+        for (int i = n - 1; i >= 0; i--) {
+            after[i] = bound;
+            if (stays[i]) {
+                bound = positions.get(order[i]);
+            }
+        }
+        int before = -1;
+        for (int i = 0; i < n; i++) {
+            int position = positions.get(order[i]);
+            if (inserted[i] && position > before && position < after[i]) {
+                stays[i] = true;
+            }
+            if (stays[i]) {
+                before = position;
+            }
+        }
+        // Numbered in the new order, as if moved one by one from the first.
+        for (int i = 0; i < n; i++) {
+            if (!inserted[i] && !stays[i]) {
+                order[i].setAttribute(StringConstants.REORDERID,
+                        this.parentVFile.getReorderId());
+            }
+        }
+        // From the end, so that each moved child goes before its successor.
+        String version = this.parentVFile.getDocumentVersion();
+        Element next = null;
+        int moved = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            TaggedNode child = this.wrap(order[i]);
+            if (!stays[i]) {
+                if (!inserted[i]) {
+                    child.cloneElement();
+                }
+                this.element.removeChild(child.element);
+                this.element.insertBefore(child.element, next);
+                this.childrenChanged();
+                if (!inserted[i]) {
+                    child.element.setAttribute(StringConstants.REORDER, version);
+                    moved++;
+                }
+            }
+            next = child.element;
+        }
+        logger.debug("Reordered {} of {} children of {}", moved, n, this.getName());
+        return moved;
+    }
+
+    private int reorderEach(Map<TaggedNode, Integer> targets) {
+        int moved = 0;
+        for (Map.Entry<TaggedNode, Integer> target : targets.entrySet()) {
+            target.getKey().reorder(target.getValue());
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * Patience sorting, in O(n log n).
+     *
+     * @return which of the values are part of a longest strictly increasing
+     *         subsequence
+     */
+    static boolean[] longestIncreasing(int[] values) {
+        int n = values.length;
+        // tails[k]: index of the smallest last value of an increasing
+        // subsequence of length k + 1.
+        int[] tails = new int[n];
+        int[] previous = new int[n];
+        int length = 0;
+        for (int i = 0; i < n; i++) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[tails[middle]] < values[i]) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+        boolean[] result = new boolean[n];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = previous[i]) {
+            result[i] = true;
+        }
+        return result;
+    }
+
     public void reorder(int index) {
     	
     	if (false) 
@@ -542,8 +967,9 @@ public class TaggedNode {
     	
         TaggedNode parent = this.getParent();
         int childCount = parent.childCount();
+        Lifetimes lifetimes = this.parentVFile.getLifetimes();
         String reorderId = this.parentVFile.getReorderId();
-        int currentIndex = ElementUtils.getLocalIndex(this.element, false, true, true);
+        int currentIndex = ElementUtils.getLocalIndex(this.element, false, true, lifetimes);
         int relativeIndex = index - currentIndex;
         if (relativeIndex == 0) {
         	logger.debug("Reordering {} {} is not needed: {} = {}", reorderId, this.getName(), index, currentIndex);
@@ -557,7 +983,7 @@ public class TaggedNode {
 
         	while ((e = e.getPreviousSibling()) != null) {
         		
-        		searchIndex = ElementUtils.getLocalIndex(e, false, true, true);
+        		searchIndex = ElementUtils.getLocalIndex(e, false, true, lifetimes);
         		if (searchIndex == index) {
         			break;
         		}
@@ -565,7 +991,7 @@ public class TaggedNode {
         } else {
         		while ((e = e.getNextSibling()) != null) {
         		
-        		searchIndex = ElementUtils.getLocalIndex(e, false, true, true);
+        		searchIndex = ElementUtils.getLocalIndex(e, false, true, lifetimes);
         		if (searchIndex == index) {
         			break;
         		}
@@ -589,7 +1015,7 @@ public class TaggedNode {
 
         this.element.setAttribute(StringConstants.REORDER, this.parentVFile.getDocumentVersion());
         
-        int reorderedIndex = ElementUtils.getLocalIndex(this.element, false, true, true);
+        int reorderedIndex = ElementUtils.getLocalIndex(this.element, false, true, lifetimes);
         if (reorderedIndex != index) {
         	String msg = MessageFormatter.format("Reordering did not produce expected result: {} {}", index, reorderedIndex).getMessage();
         	logger.error(msg);
@@ -639,6 +1065,7 @@ public class TaggedNode {
         }
         this.cloneElement();
         this.element.setAttribute(namespace.getName(), namespace.getValue());
+        SubtreeHashes.invalidate(this.element);
     }
 
     private void deleteNamespace(Attr namespace) {
@@ -647,6 +1074,7 @@ public class TaggedNode {
         }
         this.cloneElement();
         this.element.removeAttribute(namespace.getName());
+        SubtreeHashes.invalidate(this.element);
     }
 
     private void deleteAttribute(String name) {
@@ -663,25 +1091,4 @@ public class TaggedNode {
             this.normalizeNode(n);
         }
     }
-
-    /**
-     * Retrieves the child elements of a node.
-     * 
-     * @param element
-     *            The parent node.
-     * @return The list of child elements of element.
-     */
-    private static ArrayList<Element> getChildElements(Element element) {
-        ArrayList<Element> results = new ArrayList<Element>();
-        NodeList children = element.getChildNodes();
-        if (children == null) {
-            return results;
-        }
-        for (int i = 0; i < children.getLength(); i++) {
-            if (children.item(i).getNodeType() == Node.ELEMENT_NODE) {
-                results.add((Element) children.item(i));
-            }
-        }
-        return results;
-    }
 }
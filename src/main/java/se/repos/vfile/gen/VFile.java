@@ -1,32 +1,29 @@
 package se.repos.vfile.gen;
 
-import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-
-import org.custommonkey.xmlunit.DetailedDiff;
-import org.custommonkey.xmlunit.Diff;
-import org.custommonkey.xmlunit.Difference;
-import org.custommonkey.xmlunit.DifferenceConstants;
-import org.custommonkey.xmlunit.XMLUnit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
+import org.w3c.dom.DocumentType;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
-import se.repos.vfile.VFileDocumentBuilderFactory;
+import se.repos.vfile.VFileMetrics;
+import se.repos.vfile.VFileMetricsNoop;
+import se.repos.vfile.VFileXmlPool;
 
 /**
  * Class that represents a v-file.
@@ -37,6 +34,15 @@ public final class VFile {
 	
     private Document index;
     private Long reorderCounter = 0L;
+    private long revision;
+    private Lifetimes lifetimes = new Lifetimes();
+    private LiveChildIndex liveChildIndex = new LiveChildIndex(this.lifetimes);
+    private List<Element> added = new ArrayList<Element>();
+    private Map<Element, Integer> inserted = new IdentityHashMap<Element, Integer>();
+    private boolean plannedReorder = true;
+    private Map<Element, SimpleXPath> removed = new IdentityHashMap<Element, SimpleXPath>();
+    private List<RevisionChange> changes = Collections.emptyList();
+    private VFileMetrics metrics = new VFileMetricsNoop();
 
     /**
      * Constructor for Index.
@@ -67,10 +73,13 @@ public final class VFile {
             throw new IllegalArgumentException();
         }
         this.index = indexDocument;
+        this.revision = Long.parseLong(root.getAttribute(StringConstants.DOCVERSION));
     }
 
     private void setDocumentVersion(String version) {
         this.index.getDocumentElement().setAttribute(StringConstants.DOCVERSION, version);
+        this.revision = Long.parseLong(version);
+        this.reorderCounter = 0L; // reorder ids count from 1 in each version
     }
 
     public String getDocumentVersion() {
@@ -90,6 +99,158 @@ public final class VFile {
         this.index.getDocumentElement().setAttribute(StringConstants.DOCTIME, time);
     }
 
+    /**
+     * @return the {@link #getContentHash(Document)} of the latest version of
+     *         the document, null if the v-file was made before content hashes
+     */
+    public String getContentHash() {
+        Element root = this.index.getDocumentElement();
+        if (!root.hasAttribute(StringConstants.CONTENTHASH)) {
+            return null;
+        }
+        return root.getAttribute(StringConstants.CONTENTHASH);
+    }
+
+    /**
+     * A hash of the content of a document that a v-file tracks: elements,
+     * attributes, namespace declarations, comments, processing instructions
+     * and text, compared trimmed and without whitespace-only text. Two
+     * versions of a document with the same hash give a diff without
+     * differences.
+     * 
+     * @return the SHA-256 of the canonical form of the content, as 64
+     *         hexadecimal digits
+     */
+    public static String getContentHash(Document document) {
+        return ContentDigest.digest(document.getDocumentElement());
+    }
+
+    /**
+     * @param metrics
+     *            receives the phase timings, differences and reorders of
+     *            updates, defaults to {@link VFileMetricsNoop}
+     */
+    public void setMetrics(VFileMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param planned
+     *            true, the default, to move the children out of order under
+     *            each parent in one pass that leaves a longest run of them in
+     *            place, false to move each child that is not at its index on
+     *            its own with {@link TaggedNode#reorder(int)}, which gives
+     *            the same document with more moves
+     */
+    public void setPlannedReorder(boolean planned) {
+        this.plannedReorder = planned;
+    }
+
+    /**
+     * @return the docVersion as a number
+     */
+    long getRevision() {
+        return this.revision;
+    }
+
+    Lifetimes getLifetimes() {
+        return this.lifetimes;
+    }
+
+    LiveChildIndex getLiveChildIndex() {
+        return this.liveChildIndex;
+    }
+
+    /**
+     * Records that a node was added in the current version.
+     */
+    void nodeAdded(Element node) {
+        this.added.add(node);
+    }
+
+    /**
+     * Records the index among the live children of its parent that a new
+     * node was inserted at in the current version, which is its index in the
+     * new document.
+     */
+    void nodeInserted(Element node, int index) {
+        this.inserted.put(node, index);
+    }
+
+    /**
+     * @return the index given to {@link #nodeInserted(Element, int)} in the
+     *         current update, null if the node was not inserted in it
+     */
+    Integer getInsertedIndex(Element node) {
+        return this.inserted.get(node);
+    }
+
+    /**
+     * Records that a node is about to be removed in the current version,
+     * along with its location in the previous version.
+     */
+    void nodeRemoved(Element node) {
+        this.removed.put(node,
+                RevisionIndex.getXPath(node, this.revision - 1, this.lifetimes));
+    }
+
+    /**
+     * @return the nodes added and removed by the last
+     *         {@link #normalizeDocument(Document, String, String)} or update
+     *         of this instance, in document order
+     * @see RevisionIndex
+     */
+    public List<RevisionChange> getChanges() {
+        return Collections.unmodifiableList(this.changes);
+    }
+
+    private void collectChanges() {
+        long revision = this.revision;
+        Map<Element, RevisionChange> collected = new IdentityHashMap<Element, RevisionChange>();
+        for (Element node : this.added) {
+            // Nodes added and removed in the same version have been erased.
+            if (this.isAttached(node)) {
+                RevisionChange change = RevisionIndex.getAdded(node, this.lifetimes);
+                if (change != null) {
+                    collected.put(node, change);
+                }
+            }
+        }
+        for (Entry<Element, SimpleXPath> removal : this.removed.entrySet()) {
+            Element node = removal.getKey();
+            if (this.isAttached(node)
+                    && this.lifetimes.get((Element) node.getParentNode()).getEnd() != revision) {
+                collected.put(node, new RevisionChange(revision,
+                        RevisionChange.Kind.REMOVED, removal.getValue()));
+            }
+        }
+        this.added.clear();
+        this.removed.clear();
+        List<Element> nodes = new ArrayList<Element>(collected.keySet());
+        Collections.sort(nodes, new Comparator<Element>() {
+            @Override
+            public int compare(Element e1, Element e2) {
+                if (e1 == e2) {
+                    return 0;
+                }
+                short position = e1.compareDocumentPosition(e2);
+                return (position & Node.DOCUMENT_POSITION_FOLLOWING) != 0 ? -1 : 1;
+            }
+        });
+        this.changes = new ArrayList<RevisionChange>(nodes.size());
+        for (Element node : nodes) {
+            this.changes.add(collected.get(node));
+        }
+    }
+
+    private boolean isAttached(Node node) {
+        Node ancestor = node.getParentNode();
+        while (ancestor != null && ancestor != this.index) {
+            ancestor = ancestor.getParentNode();
+        }
+        return ancestor != null;
+    }
+
     private TaggedNode getVFileElement() {
         return new TaggedNode(this, this.index.getDocumentElement());
     }
@@ -119,8 +280,7 @@ public final class VFile {
         }
 
         Element elem = this.index.createElement(nodeName);
-        elem.setAttribute(StringConstants.START, this.getDocumentVersion());
-        elem.setAttribute(StringConstants.END, StringConstants.NOW);
+        this.lifetimes.start(elem, this.revision);
         /* The timestamps are a massive pain for testing and compare.
         elem.setAttribute(StringConstants.TSTART, this.getDocumentTime());
         elem.setAttribute(StringConstants.TEND, StringConstants.NOW);
@@ -133,6 +293,7 @@ public final class VFile {
             elem.setTextContent(value);
         }
 
+        this.nodeAdded(elem);
         TaggedNode indexElem = new TaggedNode(this, elem);
         return indexElem;
     }
@@ -154,16 +315,17 @@ public final class VFile {
      */
     public static VFile normalizeDocument(Document firstVersion, String time,
             String version) {
+        // Hashed as parsed, like the documents given to update.
+        String contentHash = VFile.getContentHash(firstVersion);
         firstVersion.normalizeDocument();
-        DocumentBuilder db = new VFileDocumentBuilderFactory().newDocumentBuilder();
-
-        Document indexXML = db.newDocument();
+        Document indexXML = VFileXmlPool.getDocumentBuilder().newDocument();
         indexXML.setXmlVersion(firstVersion.getXmlVersion());
 
         Element vFileElement = indexXML.createElement(StringConstants.FILE);
         vFileElement.setAttribute("xmlns:v", "http://www.repos.se/namespace/v");
         vFileElement.setAttribute(StringConstants.DOCVERSION, version);
         vFileElement.setAttribute(StringConstants.DOCTIME, time);
+        vFileElement.setAttribute(StringConstants.CONTENTHASH, contentHash);
         vFileElement.setAttribute(StringConstants.START, version);
         vFileElement.setAttribute(StringConstants.END, StringConstants.NOW);
         /*
@@ -175,6 +337,7 @@ public final class VFile {
         VFile idx = new VFile(indexXML);
         Node root = firstVersion.getDocumentElement();
         idx.getVFileElement().normalizeNode(root);
+        idx.collectChanges();
 
         return idx;
     }
@@ -188,27 +351,32 @@ public final class VFile {
      */
     public Map<SimpleXPath, TaggedNode> getNodeMap(Document controlDocument)
             throws NoMatchException {
-        Map<SimpleXPath, TaggedNode> nodeMap = new HashMap<SimpleXPath, TaggedNode>();
-        this.matchDocument(controlDocument);
-        this.normalizeNodeMap(nodeMap, controlDocument.getDocumentElement());
-        return nodeMap;
+        return this.getNodeMap(controlDocument, null, null);
     }
 
-    private void normalizeNodeMap(Map<SimpleXPath, TaggedNode> nodeMap, Node controlNode)
-            throws NoMatchException {
-        SimpleXPath uniqueXPath = new SimpleXPath(controlNode);
-        TaggedNode node = uniqueXPath.eval(this.getVFileElement());
-        nodeMap.put(uniqueXPath, node);
-        for (Node n : ElementUtils.getChildren(controlNode)) {
-            this.normalizeNodeMap(nodeMap, n);
-        }
-        if (controlNode.getNodeType() == Node.ELEMENT_NODE) {
-            Element e = (Element) controlNode;
-            for (Attr a : ElementUtils.getAttributes(e)) {
-                SimpleXPath attrXPath = new SimpleXPath(a);
-                nodeMap.put(attrXPath, attrXPath.eval(this.getVFileElement()));
-            }
+    /**
+     * @param newDocument
+     *            The document the control document is to be diffed with, or
+     *            null. Below elements whose live subtree equals the one at the
+     *            same XPath in it by {@link SubtreeHashes}, the nodes are
+     *            matched but left out of the map.
+     * @param hashes
+     *            Receives the hashes of both documents, for the diff.
+     */
+    private Map<SimpleXPath, TaggedNode> getNodeMap(Document controlDocument,
+            Document newDocument, SubtreeHashes hashes) throws NoMatchException {
+        Map<SimpleXPath, TaggedNode> nodeMap = new HashMap<SimpleXPath, TaggedNode>();
+        Element controlRoot = controlDocument.getDocumentElement();
+        Element newRoot = null;
+        if (newDocument != null
+                && newDocument.getDocumentElement().getTagName().equals(
+                        controlRoot.getTagName())) {
+            newRoot = newDocument.getDocumentElement();
         }
+        // Matching walks both trees in lockstep, so the map is filled in the same pass.
+        this.getDocumentElement().matchNode(controlRoot, new SimpleXPath(controlRoot),
+                nodeMap, newRoot, hashes);
+        return nodeMap;
     }
 
     /**
@@ -226,65 +394,167 @@ public final class VFile {
      */
     public void update(Document oldDocument, Document newDocument, String newTime,
             String newVersion) {
+        this.update(oldDocument, newDocument, newTime, newVersion, new XmlDiffXmlUnit());
+    }
+
+    /**
+     * Diffs the given document with the last version of it using the given
+     * {@link XmlDiff}, and applies the changes to the index.
+     * 
+     * @see #update(Document, Document, String, String)
+     */
+    public void update(Document oldDocument, Document newDocument, String newTime,
+            String newVersion, XmlDiff xmlDiff) {
+        long start = System.nanoTime();
+        SubtreeHashes hashes = new SubtreeHashes();
         Map<SimpleXPath, TaggedNode> nodeMap;
         try {
-            nodeMap = this.getNodeMap(oldDocument);
+            // Nodes left out are looked up when a difference is scheduled.
+            nodeMap = this.getNodeMap(oldDocument, newDocument, hashes);
         } catch (NoMatchException e) {
             throw new IllegalArgumentException(
                     "Provided document doesn't match the one indexed.", e);
         }
-        /*
-        XMLUnit.setNormalizeWhitespace(true);
-        XMLUnit.setNormalize(true);
-        */
-        DetailedDiff diff = new DetailedDiff(new Diff(oldDocument, newDocument));
-        diff.overrideElementQualifier(new NameAndPositionElementQualifier());
+        this.metrics.phase(VFileMetrics.Phase.MATCH, System.nanoTime() - start);
+        this.update(oldDocument, nodeMap, newDocument, newTime, newVersion, xmlDiff,
+                hashes);
+    }
+
+    /**
+     * Diffs the given document with the live nodes of this v-file, and applies
+     * the changes to the index. Unlike
+     * {@link #update(Document, Document, String, String, XmlDiff)} this needs
+     * no copy of the previous version: it is rebuilt with
+     * {@link #getLiveDocument()}. Nodes outside the document element and
+     * namespace declarations are not tracked by the v-file, so they are taken
+     * from the new document.
+     * 
+     * With an {@link XmlDiff} that skips elements with equal
+     * {@link SubtreeHashes}, such as {@link XmlDiffNative}, subtrees that
+     * equal their counterpart in the new document are not copied.
+     */
+    public void update(Document newDocument, String newTime, String newVersion,
+            XmlDiff xmlDiff) {
+        long start = System.nanoTime();
+        SubtreeHashes hashes = new SubtreeHashes();
+        Map<SimpleXPath, TaggedNode> nodeMap = new HashMap<SimpleXPath, TaggedNode>();
+        Document oldDocument = this.getLiveDocument(nodeMap,
+                xmlDiff.supportsSubtreeHashes() ? newDocument : null, hashes);
+        VFile.copyProlog(newDocument, oldDocument);
+        VFile.copyNamespaces(newDocument.getDocumentElement(),
+                oldDocument.getDocumentElement());
+        this.metrics.phase(VFileMetrics.Phase.MATCH, System.nanoTime() - start);
+        this.update(oldDocument, nodeMap, newDocument, newTime, newVersion, xmlDiff,
+                hashes);
+    }
 
+    /**
+     * @param hashes
+     *            the subtree hashes known so far of both documents
+     */
+    private void update(Document oldDocument, Map<SimpleXPath, TaggedNode> nodeMap,
+            Document newDocument, String newTime, String newVersion, XmlDiff xmlDiff,
+            SubtreeHashes hashes) {
+        String contentHash = VFile.getContentHash(newDocument);
         Map<TaggedNode, DeferredChanges> changeMap = new LinkedHashMap<TaggedNode, DeferredChanges>();
         MultiMap<SimpleXPath, Node> newNodeMap = new MultiMap<SimpleXPath, Node>();
 
-        @SuppressWarnings("unchecked")
-        List<Difference> differences = diff.getAllDifferences();
-        for (Difference d : differences) {
-        	logger.debug("Diff: ({}) {} - {} {}", d.getId(), d.getDescription(), d.getControlNodeDetail().getValue(), d.getTestNodeDetail().getValue());
-            VFile.scheduleChange(nodeMap, changeMap, newNodeMap, d);
+        long start = System.nanoTime();
+        List<XmlChange> differences = xmlDiff.diff(oldDocument, newDocument, hashes);
+        start = this.endPhase(VFileMetrics.Phase.DIFF, start);
+        Map<CHANGE, Integer> counts = new EnumMap<CHANGE, Integer>(CHANGE.class);
+        for (XmlChange c : differences) {
+            this.scheduleChange(nodeMap, changeMap, newNodeMap, c);
+            Integer count = counts.get(c.change);
+            counts.put(c.change, count == null ? 1 : count + 1);
         }
+        start = this.endPhase(VFileMetrics.Phase.SCHEDULE, start);
+        this.metrics.differences(counts);
 
+        this.added.clear();
+        this.removed.clear();
+        this.inserted.clear();
         this.setDocumentVersion(newVersion);
         this.setDocumentTime(newTime);
-        this.getDocumentElement().updateTaggedNode(changeMap, newNodeMap);
+        this.index.getDocumentElement().setAttribute(StringConstants.CONTENTHASH, contentHash);
+        this.getDocumentElement().updateTaggedNode(changeMap, newNodeMap,
+                VFile.getChanged(changeMap));
+        start = this.endPhase(VFileMetrics.Phase.UPDATE, start);
         this.addOrphanNodes(newNodeMap);
-        VFile.reorderNodes(changeMap);
+        start = this.endPhase(VFileMetrics.Phase.ORPHANS, start);
+        int reorders = VFile.reorderNodes(changeMap, this.plannedReorder);
+        this.inserted.clear();
+        this.endPhase(VFileMetrics.Phase.REORDER, start);
+        this.metrics.reorders(reorders);
+        this.collectChanges();
     }
 
-    @SuppressWarnings("null")
-    private static void scheduleChange(Map<SimpleXPath, TaggedNode> nodeMap,
-            Map<TaggedNode, DeferredChanges> changeMap,
-            MultiMap<SimpleXPath, Node> newNodeMap, Difference d) {
-        CHANGE change = VFile.classifyChange(d.getId());
-        Node controlNode = d.getControlNodeDetail().getNode();
-        Node testNode = d.getTestNodeDetail().getNode();
-        SimpleXPath testLocation = null;
-        if (testNode != null) {
-            testLocation = new SimpleXPath(d.getTestNodeDetail().getXpathLocation());
-        }
+    /**
+     * Moves the v-file to a new version of the document that has the same
+     * {@link #getContentHash(Document)} as the latest one, without diffing
+     * it, since the diff would find no differences.
+     * 
+     * @param newTime
+     *            The time stamp of the new document.
+     * @param newVersion
+     *            The version number of the new document.
+     */
+    public void updateUnchanged(String newTime, String newVersion) {
+        this.added.clear();
+        this.removed.clear();
+        this.setDocumentVersion(newVersion);
+        this.setDocumentTime(newTime);
+        this.collectChanges();
+    }
 
-        if (controlNode == null) {
-            testLocation.removeLastAxis();
-            newNodeMap.put(testLocation, testNode);
+    /**
+     * Reports a phase that started at start.
+     * 
+     * @return the time the phase ended, to start the next phase at
+     */
+    private long endPhase(VFileMetrics.Phase phase, long start) {
+        long end = System.nanoTime();
+        this.metrics.phase(phase, end - start);
+        return end;
+    }
+
+    private void scheduleChange(Map<SimpleXPath, TaggedNode> nodeMap,
+            Map<TaggedNode, DeferredChanges> changeMap,
+            MultiMap<SimpleXPath, Node> newNodeMap, XmlChange c) {
+        if (c.controlNode == null) {
+            newNodeMap.put(c.testLocation.getParent(), c.testNode);
         } else {
-            SimpleXPath controlLocation = new SimpleXPath(d.getControlNodeDetail()
-                    .getXpathLocation());
             // TODO: Investigate basing on matched Nodes rather than XPath.
-            TaggedNode element = nodeMap.get(controlLocation);
+            TaggedNode element = nodeMap.get(c.controlLocation);
+            if (element == null) {
+                // In a subtree that equals the new document by hash.
+                element = c.controlLocation.eval(this.getVFileElement());
+            }
             if (!changeMap.containsKey(element)) {
-                changeMap.put(element, new DeferredChanges(controlNode, testNode,
-                        testLocation));
+                changeMap.put(element, new DeferredChanges(c.controlNode, c.testNode,
+                        c.testLocation));
             }
-            changeMap.get(element).addChange(change);
+            changeMap.get(element).addChange(c.change);
         }
     }
 
+    /**
+     * @return the elements of the changed nodes and their ancestors, the only
+     *         nodes updateTaggedNode needs to visit
+     */
+    private static Set<Element> getChanged(Map<TaggedNode, DeferredChanges> changeMap) {
+        Set<Element> changed = Collections
+                .newSetFromMap(new IdentityHashMap<Element, Boolean>());
+        for (TaggedNode node : changeMap.keySet()) {
+            Node n = node.toElement();
+            while (n != null && n.getNodeType() == Node.ELEMENT_NODE
+                    && changed.add((Element) n)) {
+                n = n.getParentNode();
+            }
+        }
+        return changed;
+    }
+
     // Add any node that couldn't be added in updateTaggedNode.
     private void addOrphanNodes(MultiMap<SimpleXPath, Node> newNodeMap) {
         Iterator<SimpleXPath> xPaths = newNodeMap.keySet().iterator();
@@ -306,70 +576,137 @@ public final class VFile {
         }
     }
 
-    private static void reorderNodes(Map<TaggedNode, DeferredChanges> changeMap) {
-        List<Entry<TaggedNode, Integer>> reorderList = new LinkedList<Entry<TaggedNode, Integer>>();
-    	for (TaggedNode element : changeMap.keySet()) {
+    /**
+     * Moves the children reported out of order to their index in the new
+     * document, planned per parent with
+     * {@link TaggedNode#reorderChildren(Map, boolean)}.
+     * 
+     * @return the number of elements moved
+     */
+    private static int reorderNodes(Map<TaggedNode, DeferredChanges> changeMap,
+            boolean planned) {
+        // Per parent element, the children to move and their new indexes.
+        Map<Element, Map<TaggedNode, Integer>> reorders = new LinkedHashMap<Element, Map<TaggedNode, Integer>>();
+        for (TaggedNode element : changeMap.keySet()) {
             DeferredChanges d = changeMap.get(element);
             if (d.changes.contains(CHANGE.ELEM_CHILDREN_ORDER)) {
                 if (!element.isLive()) {
                     throw new RuntimeException("Moving non-live node.");
                 }
-                // TODO: Why did Hugo calculate this location? Ah, because the DeferredChange-API can not communicate detail.
-                int location = ElementUtils.getLocalIndex(d.testNode);
-                //int indexDetail = d.getTestNodeDetail().getValue()
-                reorderList.add(new AbstractMap.SimpleImmutableEntry<TaggedNode, Integer>(element, location));
+                Element parent = (Element) element.toElement().getParentNode();
+                Map<TaggedNode, Integer> children = reorders.get(parent);
+                if (children == null) {
+                    children = new LinkedHashMap<TaggedNode, Integer>();
+                    reorders.put(parent, children);
+                }
+                children.put(element, ElementUtils.getLocalIndex(d.testNode));
             }
         }
-    	Comparator<Entry<TaggedNode, Integer>> comp = new Comparator<Entry<TaggedNode, Integer>>() {
-
-			@Override
-			public int compare(Entry<TaggedNode, Integer> arg0, Entry<TaggedNode, Integer> arg1) {
-				
-				return arg0.getValue().compareTo(arg1.getValue());
-			}
-		};
-    	// Theory: By doing reordering with lowest target index first, we can avoid some reordering 
-		// because later nodes take their target location as consequence of earlier reordering.
-		// TODO: Investigate why the sorting makes matching fail / incorrect result for rev27 of test50k27revs.
-		//Collections.sort(reorderList, comp);
-        for (Entry<TaggedNode, Integer> e: reorderList) {
-        	e.getKey().reorder(e.getValue());
+        int moved = 0;
+        for (Map<TaggedNode, Integer> children : reorders.values()) {
+            // The parent may have been moved itself, so it is looked up now.
+            moved += children.keySet().iterator().next().getParent()
+                    .reorderChildren(children, planned);
         }
+        return moved;
     }
 
     /**
-     * Classifies each change constant of XMLUnit into a function to be called.
-     * 
-     * @param id
-     *            The change to be classified.
-     * @return The corresponding CHANGE.
-     * @see CHANGE
-     * @throws UnsupportedOperationException
-     *             If the change type in question isn't implemented yet.
+     * Builds the current version of the document from the live nodes of this
+     * v-file. Only the document element and its descendants are included.
      */
-    private static CHANGE classifyChange(int id) {
-        switch (id) {
-        case DifferenceConstants.CHILD_NODE_NOT_FOUND_ID:
-            return CHANGE.NODE_NOT_FOUND;
-        case DifferenceConstants.CHILD_NODELIST_LENGTH_ID:
-        case DifferenceConstants.HAS_CHILD_NODES_ID:
-            return CHANGE.ELEM_CHILDREN_NUMBER;
-        case DifferenceConstants.TEXT_VALUE_ID:
-            return CHANGE.TEXT_VALUE;
-        case DifferenceConstants.COMMENT_VALUE_ID:
-            return CHANGE.COMMENT_VALUE;
-        case DifferenceConstants.PROCESSING_INSTRUCTION_DATA_ID:
-            return CHANGE.PI_DATA;
-        case DifferenceConstants.ATTR_VALUE_ID:
-        case DifferenceConstants.ATTR_VALUE_EXPLICITLY_SPECIFIED_ID:
-            return CHANGE.ATTR_VALUE;
-        case DifferenceConstants.ATTR_NAME_NOT_FOUND_ID:
-        case DifferenceConstants.ELEMENT_NUM_ATTRIBUTES_ID:
-            return CHANGE.ELEM_ATTRS;
-        case DifferenceConstants.CHILD_NODELIST_SEQUENCE_ID:
-            return CHANGE.ELEM_CHILDREN_ORDER;
-        default:
-            throw new UnsupportedOperationException();
+    public Document getLiveDocument() {
+        return this.getLiveDocument(null, null, null);
+    }
+
+    /**
+     * @param newDocument
+     *            If not null, subtrees equal to their counterpart in this
+     *            document are left empty, see
+     *            {@link TaggedNode#project(Element, SimpleXPath, Map, Element, SubtreeHashes)}
+     * @param hashes
+     *            Receives the hashes of newDocument, if given.
+     */
+    private Document getLiveDocument(Map<SimpleXPath, TaggedNode> nodeMap,
+            Document newDocument, SubtreeHashes hashes) {
+        Document doc = VFileXmlPool.getDocumentBuilder().newDocument();
+        doc.setXmlVersion(this.index.getXmlVersion());
+        TaggedNode root = this.getDocumentElement();
+        Element docRoot = doc.createElement(root.getName());
+        doc.appendChild(docRoot);
+        SimpleXPath rootPath = null;
+        if (nodeMap != null) {
+            rootPath = new SimpleXPath(docRoot);
+        }
+        if (newDocument == null) {
+            root.project(docRoot, rootPath, nodeMap, null, null);
+        } else {
+            root.project(docRoot, rootPath, nodeMap, newDocument.getDocumentElement(),
+                    hashes);
+        }
+        return doc;
+    }
+
+    /**
+     * Copies the doctype, comments and processing instructions around the
+     * document element of source to target.
+     */
+    private static void copyProlog(Document source, Document target) {
+        Element targetRoot = target.getDocumentElement();
+        boolean beforeRoot = true;
+        for (Node n = source.getFirstChild(); n != null; n = n.getNextSibling()) {
+            Node copy;
+            switch (n.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                beforeRoot = false;
+                continue;
+            case Node.DOCUMENT_TYPE_NODE:
+                DocumentType doctype = (DocumentType) n;
+                copy = target.getImplementation().createDocumentType(doctype.getName(),
+                        doctype.getPublicId(), doctype.getSystemId());
+                break;
+            default:
+                copy = target.importNode(n, true);
+                break;
+            }
+            if (beforeRoot) {
+                target.insertBefore(copy, targetRoot);
+            } else {
+                target.appendChild(copy);
+            }
+        }
+    }
+
+    /**
+     * Copies the namespace declarations of each source element to the target
+     * element with the same XPath, where the target lacks them.
+     */
+    private static void copyNamespaces(Element source, Element target) {
+        if (!source.getTagName().equals(target.getTagName())) {
+            return;
+        }
+        for (Attr ns : ElementUtils.getNamespaces(source)) {
+            if (!target.hasAttribute(ns.getName())) {
+                target.setAttribute(ns.getName(), ns.getValue());
+            }
+        }
+        Map<String, List<Element>> sourceChildren = ElementUtils
+                .getChildElementsByName(source);
+        Map<String, Integer> localIndexes = new HashMap<String, Integer>();
+        for (Node n = target.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            String name = n.getNodeName();
+            Integer localIndex = localIndexes.get(name);
+            if (localIndex == null) {
+                localIndex = 0;
+            }
+            localIndexes.put(name, localIndex + 1);
+            List<Element> sameName = sourceChildren.get(name);
+            if (sameName != null && localIndex < sameName.size()) {
+                VFile.copyNamespaces(sameName.get(localIndex), (Element) n);
+            }
         }
     }
 
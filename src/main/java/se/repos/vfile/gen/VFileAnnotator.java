@@ -0,0 +1,203 @@
+package se.repos.vfile.gen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Writes the live tree of a V-file as JSON, each element annotated with its
+ * age, for clients that colour a document by age. Dead nodes, comments and
+ * processing instructions are left out, so the output grows with the current
+ * document and not with its history.
+ *
+ * An element is written as
+ * <code>{"name":"p","start":3,"children":[...],"age":7}</code> and a text
+ * node as <code>{"text":"...","start":5}</code>. The start is the revision
+ * the node got its current form in, which in {@link Mode#WITH_ATTRIBUTES}
+ * includes changes to its attributes. The age is the highest start in the
+ * subtree. It is written after the children, so it is calculated in the same
+ * single pass over the V-file.
+ */
+public class VFileAnnotator {
+
+    /**
+     * The two annotation modes.
+     */
+    public enum Mode {
+        /**
+         * An element's start is when it was added.
+         */
+        IGNORE_ATTRIBUTES,
+        /**
+         * An element's start is when it or any of its attributes was added,
+         * last changed or removed.
+         */
+        WITH_ATTRIBUTES
+    }
+
+    private Mode mode;
+
+    public VFileAnnotator(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @param vfile
+     *            a V-file as UTF-8 XML, not closed
+     * @param out
+     *            receives the annotations, flushed but not closed
+     */
+    public void annotate(InputStream vfile, Writer out) throws XMLStreamException,
+            IOException {
+        XMLStreamReader reader = StreamUtils.createReader(vfile);
+        try {
+            this.annotate(reader, out);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes <code>{"version":10,"root":{...}}</code> for the V-file.
+     *
+     * @param reader
+     *            positioned before the v:file element, not namespace aware
+     * @param out
+     *            receives the annotations, flushed but not closed
+     */
+    public void annotate(XMLStreamReader reader, Writer out) throws XMLStreamException,
+            IOException {
+        StreamUtils.readFileElement(reader);
+        out.write("{\"version\":");
+        out.write(StreamUtils.getAttribute(reader, StringConstants.DOCVERSION));
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            if (VFileAnnotator.isLive(reader)
+                    && !StreamUtils.getName(reader).startsWith("v:")) {
+                out.write(",\"root\":");
+                this.annotateElement(reader, out);
+            } else {
+                StreamUtils.skip(reader);
+            }
+        }
+        out.write('}');
+        out.flush();
+    }
+
+    /**
+     * Writes the live element at the reader's start tag and leaves the reader
+     * at its end tag.
+     *
+     * @return the age of the element
+     */
+    private long annotateElement(XMLStreamReader reader, Writer out)
+            throws XMLStreamException, IOException {
+        out.write("{\"name\":");
+        VFileAnnotator.writeString(StreamUtils.getName(reader), out);
+        long start = VFileAnnotator.getStart(reader);
+        long age = -1;
+        // The v:attr children come first, the start is written when the
+        // first other child or the end tag is reached.
+        boolean content = false;
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            String name = StreamUtils.getName(reader);
+            if (name.equals(StringConstants.ATTR)) {
+                if (this.mode == Mode.WITH_ATTRIBUTES) {
+                    // A removed attribute changed the element when it ended.
+                    start = Math.max(start, VFileAnnotator.isLive(reader)
+                            ? VFileAnnotator.getStart(reader)
+                            : VFileAnnotator.getEnd(reader));
+                }
+                StreamUtils.skip(reader);
+                continue;
+            }
+            if (!VFileAnnotator.isLive(reader) || name.equals(StringConstants.COMMENT)
+                    || name.equals(StringConstants.PI)) {
+                StreamUtils.skip(reader);
+                continue;
+            }
+            if (!content) {
+                out.write(",\"start\":");
+                out.write(Long.toString(start));
+                out.write(",\"children\":[");
+                content = true;
+            } else {
+                out.write(',');
+            }
+            if (name.equals(StringConstants.TEXT)) {
+                long textStart = VFileAnnotator.getStart(reader);
+                out.write("{\"text\":");
+                VFileAnnotator.writeString(reader.getElementText(), out);
+                out.write(",\"start\":");
+                out.write(Long.toString(textStart));
+                out.write('}');
+                age = Math.max(age, textStart);
+            } else {
+                age = Math.max(age, this.annotateElement(reader, out));
+            }
+        }
+        if (!content) {
+            out.write(",\"start\":");
+            out.write(Long.toString(start));
+            out.write(",\"children\":[");
+        }
+        age = Math.max(age, start);
+        out.write("],\"age\":");
+        out.write(Long.toString(age));
+        out.write('}');
+        return age;
+    }
+
+    private static boolean isLive(XMLStreamReader reader) {
+        return StreamUtils.getAttribute(reader, StringConstants.END).equals(
+                StringConstants.NOW);
+    }
+
+    private static long getStart(XMLStreamReader reader) {
+        return Long.parseLong(StreamUtils.getAttribute(reader, StringConstants.START));
+    }
+
+    private static long getEnd(XMLStreamReader reader) {
+        return Long.parseLong(StreamUtils.getAttribute(reader, StringConstants.END));
+    }
+
+    private static void writeString(String value, Writer out) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.write("\\\"");
+                break;
+            case '\\':
+                out.write("\\\\");
+                break;
+            case '\n':
+                out.write("\\n");
+                break;
+            case '\r':
+                out.write("\\r");
+                break;
+            case '\t':
+                out.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.write(String.format("\\u%04x", (int) c));
+                } else {
+                    out.write(c);
+                }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,192 @@
+package se.repos.vfile.gen;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Reconstructs the document as of a revision from a V-file, in a single pass
+ * over the V-file and without building a DOM. This is the Java version of the
+ * resolve.xsl stylesheet: a node is included if the revision that added it is
+ * at most revbase or one of the revchanges, and the revision that removed it
+ * is neither. When several v:attr with the same name are included, the one
+ * with the highest start revision is used. Attributes are written sorted on
+ * name.
+ *
+ * Processing instructions are only written when there are no revchanges, as
+ * they can't be placed reliably in a discontinuous selection. The stylesheet
+ * never writes them, nor the element start revisions or its summary comments.
+ *
+ * Like the stylesheet, revisions before a reorder show the reordered element
+ * empty, as the V-file only keeps its content at the new position.
+ *
+ * Memory use is bounded by the depth of the document and the number of
+ * attributes on an element, not by the length of the history.
+ */
+public class VFileResolver {
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    private long revbase;
+    private Set<Long> revchanges;
+
+    /**
+     * Resolves the document as it was in the given revision.
+     */
+    public VFileResolver(long revision) {
+        this(revision, new long[0]);
+    }
+
+    /**
+     * Resolves the document as of revbase with the changes made in
+     * revchanges, later than revbase, applied on top.
+     */
+    public VFileResolver(long revbase, long... revchanges) {
+        this.revbase = revbase;
+        this.revchanges = new HashSet<Long>();
+        for (long rev : revchanges) {
+            this.revchanges.add(rev);
+        }
+    }
+
+    /**
+     * @param vfile
+     *            a V-file as UTF-8 XML, not closed
+     * @param out
+     *            receives the resolved document as UTF-8 XML, not closed
+     */
+    public void resolve(InputStream vfile, OutputStream out) throws XMLStreamException {
+        XMLStreamReader reader = StreamUtils.createReader(vfile);
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+        try {
+            this.resolve(reader, writer);
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    /**
+     * @param reader
+     *            positioned before the v:file element, not namespace aware
+     * @param writer
+     *            receives the resolved document, flushed but not closed
+     */
+    public void resolve(XMLStreamReader reader, XMLStreamWriter writer)
+            throws XMLStreamException {
+        StreamUtils.readFileElement(reader);
+        writer.writeStartDocument("UTF-8", "1.0");
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (reader.isStartElement()) {
+                this.resolveNode(reader, writer);
+            }
+        }
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    /**
+     * @return true if the node with these lifetime attributes belongs to the
+     *         resolved document
+     */
+    public boolean isIncluded(String start, String end) {
+        long startRev = Long.parseLong(start);
+        if (startRev > this.revbase && !this.revchanges.contains(startRev)) {
+            return false;
+        }
+        if (end.equals(StringConstants.NOW)) {
+            return true;
+        }
+        long endRev = Long.parseLong(end);
+        return endRev > this.revbase && !this.revchanges.contains(endRev);
+    }
+
+    private boolean isIncluded(XMLStreamReader reader) {
+        return this.isIncluded(StreamUtils.getAttribute(reader, StringConstants.START),
+                StreamUtils.getAttribute(reader, StringConstants.END));
+    }
+
+    /**
+     * Resolves the node at the reader's start tag and leaves the reader at
+     * its end tag.
+     */
+    private void resolveNode(XMLStreamReader reader, XMLStreamWriter writer)
+            throws XMLStreamException {
+        String name = StreamUtils.getName(reader);
+        if (!this.isIncluded(reader)) {
+            StreamUtils.skip(reader);
+        } else if (name.equals(StringConstants.TEXT)) {
+            writer.writeCharacters(reader.getElementText());
+        } else if (name.equals(StringConstants.COMMENT)) {
+            writer.writeComment(reader.getElementText());
+        } else if (name.equals(StringConstants.PI)) {
+            String target = StreamUtils.getAttribute(reader, StringConstants.NAME);
+            String data = reader.getElementText();
+            if (this.revchanges.isEmpty()) {
+                writer.writeProcessingInstruction(target, data);
+            }
+        } else if (name.equals(StringConstants.ATTR)) {
+            throw new XMLStreamException("Attribute after element content.",
+                    reader.getLocation());
+        } else {
+            this.resolveElement(name, reader, writer);
+        }
+    }
+
+    private void resolveElement(String name, XMLStreamReader reader,
+            XMLStreamWriter writer) throws XMLStreamException {
+        // The v:attr children come first, the start tag is written when the
+        // first other child or the end tag is reached.
+        Map<String, String> attributes = new TreeMap<String, String>();
+        Map<String, Long> attributeStarts = new HashMap<String, Long>();
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (!reader.isStartElement()) {
+                continue;
+            }
+            if (attributes == null
+                    || !StreamUtils.getName(reader).equals(StringConstants.ATTR)) {
+                if (attributes != null) {
+                    VFileResolver.writeStartElement(name, attributes, writer);
+                    attributes = null;
+                }
+                this.resolveNode(reader, writer);
+                continue;
+            }
+            if (!this.isIncluded(reader)) {
+                StreamUtils.skip(reader);
+                continue;
+            }
+            String attrName = StreamUtils.getAttribute(reader, StringConstants.NAME);
+            Long start = Long.valueOf(StreamUtils.getAttribute(reader,
+                    StringConstants.START));
+            String value = reader.getElementText();
+            Long previous = attributeStarts.get(attrName);
+            if (previous == null || start >= previous) {
+                attributes.put(attrName, value);
+                attributeStarts.put(attrName, start);
+            }
+        }
+        if (attributes != null) {
+            VFileResolver.writeStartElement(name, attributes, writer);
+        }
+        writer.writeEndElement();
+    }
+
+    private static void writeStartElement(String name, Map<String, String> attributes,
+            XMLStreamWriter writer) throws XMLStreamException {
+        writer.writeStartElement(name);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            writer.writeAttribute(attribute.getKey(), attribute.getValue());
+        }
+    }
+}
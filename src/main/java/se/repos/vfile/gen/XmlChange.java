@@ -0,0 +1,55 @@
+package se.repos.vfile.gen;
+
+import org.w3c.dom.Node;
+
+/**
+ * A single change found by an {@link XmlDiff}. Refers to the changed node in
+ * the old (control) document and its counterpart in the new (test) document,
+ * along with the unique XPath of each.
+ * 
+ * @see CHANGE
+ */
+public final class XmlChange {
+
+    public final CHANGE change;
+    public final Node controlNode;
+    public final Node testNode;
+    public final SimpleXPath controlLocation;
+    public final SimpleXPath testLocation;
+
+    /**
+     * Constructs a new XmlChange.
+     * 
+     * @param change
+     *            The kind of change.
+     * @param controlNode
+     *            The changed node in the old document, null if testNode was
+     *            added.
+     * @param controlLocation
+     *            The XPath of controlNode, null if controlNode is.
+     * @param testNode
+     *            The node in the new document, null if controlNode was
+     *            removed.
+     * @param testLocation
+     *            The XPath of testNode, null if testNode is.
+     */
+    public XmlChange(CHANGE change, Node controlNode, SimpleXPath controlLocation,
+            Node testNode, SimpleXPath testLocation) {
+        if (change == null) {
+            throw new NullPointerException();
+        }
+        if (controlNode == null && testNode == null) {
+            throw new IllegalArgumentException("Change without nodes.");
+        }
+        this.change = change;
+        this.controlNode = controlNode;
+        this.controlLocation = controlLocation;
+        this.testNode = testNode;
+        this.testLocation = testLocation;
+    }
+
+    @Override
+    public String toString() {
+        return this.change + " " + this.controlLocation + " - " + this.testLocation;
+    }
+}
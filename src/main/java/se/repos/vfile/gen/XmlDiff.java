@@ -0,0 +1,46 @@
+package se.repos.vfile.gen;
+
+import java.util.List;
+
+import org.w3c.dom.Document;
+
+/**
+ * Computes the changes between two versions of a document, in a form that can
+ * be applied to a {@link VFile}. Implementations should be interchangeable.
+ * Those that do not use {@link SubtreeHashes} can extend {@link XmlDiffAdapter}.
+ * 
+ * @see VFile#update(Document, Document, String, String, XmlDiff)
+ */
+public interface XmlDiff {
+
+    /**
+     * Compares two versions of a document.
+     * 
+     * @param controlDocument
+     *            The old version of the document.
+     * @param testDocument
+     *            The new version of the document.
+     * @return The changes that turn controlDocument into testDocument.
+     * @throws UnsupportedOperationException
+     *             If the documents differ in a way that can't be represented
+     *             as a {@link CHANGE}.
+     */
+    List<XmlChange> diff(Document controlDocument, Document testDocument);
+
+    /**
+     * Like {@link #diff(Document, Document)}, given the subtree hashes that
+     * the v-file already knows of both documents.
+     * 
+     * @param hashes
+     *            for both documents, possibly with hashes already known
+     */
+    List<XmlChange> diff(Document controlDocument, Document testDocument,
+            SubtreeHashes hashes);
+
+    /**
+     * @return true if the diff does not walk elements with equal
+     *         {@link SubtreeHashes}, so that the v-file need not copy the
+     *         subtrees that equal their counterpart in the new document
+     */
+    boolean supportsSubtreeHashes();
+}
@@ -0,0 +1,26 @@
+package se.repos.vfile.gen;
+
+import java.util.List;
+
+import org.w3c.dom.Document;
+
+/**
+ * An {@link XmlDiff} that does not use {@link SubtreeHashes}, and so walks
+ * the whole of both documents.
+ */
+public abstract class XmlDiffAdapter implements XmlDiff {
+
+    /**
+     * Ignores the hashes.
+     */
+    @Override
+    public List<XmlChange> diff(Document controlDocument, Document testDocument,
+            SubtreeHashes hashes) {
+        return this.diff(controlDocument, testDocument);
+    }
+
+    @Override
+    public boolean supportsSubtreeHashes() {
+        return false;
+    }
+}
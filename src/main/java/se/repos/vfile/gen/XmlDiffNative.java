@@ -0,0 +1,238 @@
+package se.repos.vfile.gen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CharacterData;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+/**
+ * {@link XmlDiff} that walks both documents once, in time linear to their
+ * size. Child nodes are matched on name and position in the same way as
+ * {@link NameAndPositionElementQualifier}: the nth child element with a given
+ * tag name is compared to the nth child element with that name in the other
+ * document, and the nth text, comment or processing instruction to the nth of
+ * the same type. Whitespace only text nodes are ignored and text values are
+ * compared trimmed, like {@link TaggedNode#matchNode(Node)} does.
+ * 
+ * Elements with equal {@link SubtreeHashes} are not walked, so unchanged
+ * subtrees cost one hash of each document.
+ */
+public class XmlDiffNative implements XmlDiff {
+
+    @Override
+    public List<XmlChange> diff(Document controlDocument, Document testDocument) {
+        return this.diff(controlDocument, testDocument, new SubtreeHashes());
+    }
+
+    @Override
+    public boolean supportsSubtreeHashes() {
+        return true;
+    }
+
+    @Override
+    public List<XmlChange> diff(Document controlDocument, Document testDocument,
+            SubtreeHashes hashes) {
+        Element controlRoot = controlDocument.getDocumentElement();
+        Element testRoot = testDocument.getDocumentElement();
+        if (!controlRoot.getTagName().equals(testRoot.getTagName())) {
+            throw new UnsupportedOperationException("Document element name changed.");
+        }
+        List<XmlChange> changes = new ArrayList<XmlChange>();
+        this.diffElement(controlRoot, new SimpleXPath(controlRoot), testRoot,
+                new SimpleXPath(testRoot), changes, hashes);
+        return changes;
+    }
+
+    private void diffNode(Node controlNode, SimpleXPath controlLocation, Node testNode,
+            SimpleXPath testLocation, List<XmlChange> changes, SubtreeHashes hashes) {
+        CHANGE valueChange;
+        String controlValue;
+        String testValue;
+        switch (controlNode.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            this.diffElement((Element) controlNode, controlLocation, (Element) testNode,
+                    testLocation, changes, hashes);
+            return;
+        case Node.TEXT_NODE:
+            valueChange = CHANGE.TEXT_VALUE;
+            controlValue = ((CharacterData) controlNode).getData();
+            testValue = ((CharacterData) testNode).getData();
+            break;
+        case Node.COMMENT_NODE:
+            valueChange = CHANGE.COMMENT_VALUE;
+            controlValue = ((CharacterData) controlNode).getData();
+            testValue = ((CharacterData) testNode).getData();
+            break;
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            valueChange = CHANGE.PI_DATA;
+            controlValue = ((ProcessingInstruction) controlNode).getData();
+            testValue = ((ProcessingInstruction) testNode).getData();
+            break;
+        default:
+            throw new UnsupportedOperationException();
+        }
+        if (!controlValue.trim().equals(testValue.trim())) {
+            changes.add(new XmlChange(valueChange, controlNode, controlLocation, testNode,
+                    testLocation));
+        }
+    }
+
+    private void diffElement(Element controlElement, SimpleXPath controlLocation,
+            Element testElement, SimpleXPath testLocation, List<XmlChange> changes,
+            SubtreeHashes hashes) {
+        if (hashes.get(controlElement) == hashes.get(testElement)) {
+            return;
+        }
+        this.diffAttributes(controlElement, controlLocation, testElement, testLocation,
+                changes);
+
+        ArrayList<Node> controlChildren = ElementUtils.getChildren(controlElement);
+        ArrayList<Node> testChildren = ElementUtils.getChildren(testElement);
+
+        // Test children per axis name, in document order.
+        Map<String, List<Integer>> testIndexes = new HashMap<String, List<Integer>>();
+        for (int j = 0; j < testChildren.size(); j++) {
+            String axisName = SimpleXPath.getAxisName(testChildren.get(j));
+            List<Integer> indexes = testIndexes.get(axisName);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                testIndexes.put(axisName, indexes);
+            }
+            indexes.add(j);
+        }
+
+        boolean[] testMatched = new boolean[testChildren.size()];
+        // The matched children, in control order, and their test indexes.
+        List<XmlChange> matched = new ArrayList<XmlChange>();
+        List<Integer> matchedIndexes = new ArrayList<Integer>();
+        Map<String, Integer> controlCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < controlChildren.size(); i++) {
+            Node controlChild = controlChildren.get(i);
+            String axisName = SimpleXPath.getAxisName(controlChild);
+            Integer localIndex = controlCounts.get(axisName);
+            if (localIndex == null) {
+                localIndex = 0;
+            }
+            controlCounts.put(axisName, localIndex + 1);
+            SimpleXPath controlChildLocation = new SimpleXPath(controlLocation,
+                    controlChild, localIndex);
+
+            List<Integer> candidates = testIndexes.get(axisName);
+            int j = -1;
+            if (candidates != null && localIndex < candidates.size()) {
+                j = candidates.get(localIndex);
+                if (!XmlDiffNative.isComparable(controlChild, testChildren.get(j))) {
+                    j = -1;
+                }
+            }
+            if (j == -1) {
+                changes.add(new XmlChange(CHANGE.NODE_NOT_FOUND, controlChild,
+                        controlChildLocation, null, null));
+                continue;
+            }
+            testMatched[j] = true;
+            Node testChild = testChildren.get(j);
+            SimpleXPath testChildLocation = new SimpleXPath(testLocation, testChild,
+                    localIndex);
+            this.diffNode(controlChild, controlChildLocation, testChild,
+                    testChildLocation, changes, hashes);
+            matched.add(new XmlChange(CHANGE.ELEM_CHILDREN_ORDER, controlChild,
+                    controlChildLocation, testChild, testChildLocation));
+            matchedIndexes.add(j);
+        }
+
+        // Children only shifted by added or removed siblings keep their
+        // order, so of the matched children those in a longest run that is
+        // in order in both documents are not moved.
+        int[] indexes = new int[matchedIndexes.size()];
+        for (int k = 0; k < indexes.length; k++) {
+            indexes[k] = matchedIndexes.get(k);
+        }
+        boolean[] inOrder = TaggedNode.longestIncreasing(indexes);
+        for (int k = 0; k < inOrder.length; k++) {
+            if (!inOrder[k]) {
+                changes.add(matched.get(k));
+            }
+        }
+
+        boolean added = false;
+        Map<String, Integer> testCounts = new HashMap<String, Integer>();
+        for (int j = 0; j < testChildren.size(); j++) {
+            Node testChild = testChildren.get(j);
+            String axisName = SimpleXPath.getAxisName(testChild);
+            Integer localIndex = testCounts.get(axisName);
+            if (localIndex == null) {
+                localIndex = 0;
+            }
+            testCounts.put(axisName, localIndex + 1);
+            if (testMatched[j]) {
+                continue;
+            }
+            if (!added) {
+                // New children are inserted when the parent is updated.
+                changes.add(new XmlChange(CHANGE.ELEM_CHILDREN_NUMBER, controlElement,
+                        controlLocation, testElement, testLocation));
+                added = true;
+            }
+            changes.add(new XmlChange(CHANGE.NODE_NOT_FOUND, null, null, testChild,
+                    new SimpleXPath(testLocation, testChild, localIndex)));
+        }
+    }
+
+    private void diffAttributes(Element controlElement, SimpleXPath controlLocation,
+            Element testElement, SimpleXPath testLocation, List<XmlChange> changes) {
+        ArrayList<Attr> controlAttrs = ElementUtils.getAttributes(controlElement);
+        ArrayList<Attr> testAttrs = ElementUtils.getAttributes(testElement);
+        boolean attrsChanged = controlAttrs.size() != testAttrs.size()
+                || !XmlDiffNative.equalNamespaces(controlElement, testElement);
+        List<XmlChange> valueChanges = new ArrayList<XmlChange>();
+        for (int i = 0; i < controlAttrs.size() && !attrsChanged; i++) {
+            Attr controlAttr = controlAttrs.get(i);
+            Attr testAttr = testElement.getAttributeNode(controlAttr.getName());
+            if (testAttr == null) {
+                attrsChanged = true;
+            } else if (!controlAttr.getValue().equals(testAttr.getValue())) {
+                valueChanges.add(new XmlChange(CHANGE.ATTR_VALUE, controlAttr,
+                        new SimpleXPath(controlLocation, controlAttr, -1), testAttr,
+                        new SimpleXPath(testLocation, testAttr, -1)));
+            }
+        }
+        if (attrsChanged) {
+            // Updating the element's attributes also covers changed values.
+            changes.add(new XmlChange(CHANGE.ELEM_ATTRS, controlElement, controlLocation,
+                    testElement, testLocation));
+        } else {
+            changes.addAll(valueChanges);
+        }
+    }
+
+    private static boolean equalNamespaces(Element controlElement, Element testElement) {
+        ArrayList<Attr> controlNamespaces = ElementUtils.getNamespaces(controlElement);
+        if (controlNamespaces.size() != ElementUtils.getNamespaces(testElement).size()) {
+            return false;
+        }
+        for (Attr controlNamespace : controlNamespaces) {
+            Attr testNamespace = testElement.getAttributeNode(controlNamespace.getName());
+            if (testNamespace == null
+                    || !controlNamespace.getValue().equals(testNamespace.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isComparable(Node controlNode, Node testNode) {
+        if (controlNode.getNodeType() == Node.PROCESSING_INSTRUCTION_NODE) {
+            return ((ProcessingInstruction) controlNode).getTarget().equals(
+                    ((ProcessingInstruction) testNode).getTarget());
+        }
+        return true;
+    }
+}
@@ -0,0 +1,86 @@
+package se.repos.vfile.gen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.custommonkey.xmlunit.DetailedDiff;
+import org.custommonkey.xmlunit.Diff;
+import org.custommonkey.xmlunit.Difference;
+import org.custommonkey.xmlunit.DifferenceConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * {@link XmlDiff} based on XMLUnit's {@link DetailedDiff}, using the
+ * {@link NameAndPositionElementQualifier}. Honors the global XMLUnit
+ * configuration, e.g. whitespace handling.
+ */
+public class XmlDiffXmlUnit extends XmlDiffAdapter {
+
+    private static final Logger logger = LoggerFactory.getLogger(XmlDiffXmlUnit.class);
+
+    @Override
+    public List<XmlChange> diff(Document controlDocument, Document testDocument) {
+        DetailedDiff diff = new DetailedDiff(new Diff(controlDocument, testDocument));
+        diff.overrideElementQualifier(new NameAndPositionElementQualifier());
+
+        @SuppressWarnings("unchecked")
+        List<Difference> differences = diff.getAllDifferences();
+        List<XmlChange> changes = new ArrayList<XmlChange>(differences.size());
+        for (Difference d : differences) {
+            logger.debug("Diff: ({}) {} - {} {}", d.getId(), d.getDescription(), d.getControlNodeDetail().getValue(), d.getTestNodeDetail().getValue());
+            Node controlNode = d.getControlNodeDetail().getNode();
+            Node testNode = d.getTestNodeDetail().getNode();
+            SimpleXPath controlLocation = null;
+            SimpleXPath testLocation = null;
+            if (controlNode != null) {
+                controlLocation = new SimpleXPath(d.getControlNodeDetail()
+                        .getXpathLocation());
+            }
+            if (testNode != null) {
+                testLocation = new SimpleXPath(d.getTestNodeDetail().getXpathLocation());
+            }
+            changes.add(new XmlChange(XmlDiffXmlUnit.classifyChange(d.getId()),
+                    controlNode, controlLocation, testNode, testLocation));
+        }
+        return changes;
+    }
+
+    /**
+     * Classifies each change constant of XMLUnit into a function to be called.
+     * 
+     * @param id
+     *            The change to be classified.
+     * @return The corresponding CHANGE.
+     * @see CHANGE
+     * @throws UnsupportedOperationException
+     *             If the change type in question isn't implemented yet.
+     */
+    private static CHANGE classifyChange(int id) {
+        switch (id) {
+        case DifferenceConstants.CHILD_NODE_NOT_FOUND_ID:
+            return CHANGE.NODE_NOT_FOUND;
+        case DifferenceConstants.CHILD_NODELIST_LENGTH_ID:
+        case DifferenceConstants.HAS_CHILD_NODES_ID:
+            return CHANGE.ELEM_CHILDREN_NUMBER;
+        case DifferenceConstants.TEXT_VALUE_ID:
+            return CHANGE.TEXT_VALUE;
+        case DifferenceConstants.COMMENT_VALUE_ID:
+            return CHANGE.COMMENT_VALUE;
+        case DifferenceConstants.PROCESSING_INSTRUCTION_DATA_ID:
+            return CHANGE.PI_DATA;
+        case DifferenceConstants.ATTR_VALUE_ID:
+        case DifferenceConstants.ATTR_VALUE_EXPLICITLY_SPECIFIED_ID:
+            return CHANGE.ATTR_VALUE;
+        case DifferenceConstants.ATTR_NAME_NOT_FOUND_ID:
+        case DifferenceConstants.ELEMENT_NUM_ATTRIBUTES_ID:
+            return CHANGE.ELEM_ATTRS;
+        case DifferenceConstants.CHILD_NODELIST_SEQUENCE_ID:
+            return CHANGE.ELEM_CHILDREN_ORDER;
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+}
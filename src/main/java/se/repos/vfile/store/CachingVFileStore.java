@@ -0,0 +1,295 @@
+package se.repos.vfile.store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import se.repos.vfile.gen.ElementUtils;
+import se.repos.vfile.gen.RevisionChange;
+import se.repos.vfile.gen.RevisionIndex;
+import se.repos.vfile.gen.StringConstants;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.RepoRevision;
+
+/**
+ * Keeps recently written v-files in memory in front of another
+ * {@link VFileStore} so that consecutive increments of the same resource skip
+ * the read and parse. Writes go through to the backing store before the cache
+ * is updated.
+ *
+ * The cache is bounded by the total number of nodes in the cached v-files and
+ * evicts the least recently used ones first. The cache never shares a
+ * document with a caller: {@link #get(CmsItemId)} hands out a copy and
+ * {@link #put(CmsItemId, Document)} caches one. Only
+ * {@link #checkout(CmsItemId)} hands out the cached document itself, and
+ * drops it from the cache until it is checked in, so a caller that fails
+ * halfway through an update never leaves a half-updated v-file in the cache.
+ */
+public class CachingVFileStore extends VFileStore {
+
+    private VFileStore backing;
+    private long maxNodes;
+    private long cachedNodes;
+    private LinkedHashMap<CmsItemId, Entry> cache;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static class Entry {
+        final Document vfile;
+        final long nodes;
+
+        Entry(Document vfile, long nodes) {
+            this.vfile = vfile;
+            this.nodes = nodes;
+        }
+    }
+
+    /**
+     * @param backing
+     *            the store to read from and write through to
+     * @param maxNodes
+     *            the most nodes to keep in memory, summed over all cached
+     *            v-files
+     */
+    public CachingVFileStore(VFileStore backing, long maxNodes) {
+        if (backing == null) {
+            throw new NullPointerException();
+        }
+        this.backing = backing;
+        this.maxNodes = maxNodes;
+        this.cache = new LinkedHashMap<CmsItemId, Entry>(16, 0.75f, true);
+    }
+
+    @Override
+    public void put(CmsItemId resource, Document vfile) {
+        this.backing.put(resource, vfile);
+        this.cache(resource, (Document) vfile.cloneNode(true));
+    }
+
+    @Override
+    public void put(CmsItemId resource, Document vfile, List<RevisionChange> changes) {
+        this.backing.put(resource, vfile, changes);
+        this.cache(resource, (Document) vfile.cloneNode(true));
+    }
+
+    /**
+     * Caches the v-file itself rather than a copy.
+     */
+    @Override
+    public void checkin(CmsItemId resource, Document vfile, List<RevisionChange> changes) {
+        this.backing.checkin(resource, vfile, changes);
+        this.cache(resource, vfile);
+    }
+
+    @Override
+    public RevisionIndex getRevisionIndex(CmsItemId resource) {
+        return this.backing.getRevisionIndex(resource);
+    }
+
+    @Override
+    public boolean has(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        synchronized (this) {
+            if (this.cache.containsKey(resource)) {
+                return true;
+            }
+        }
+        return this.backing.has(resource);
+    }
+
+    @Override
+    public RepoRevision getHighestCalculated(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        synchronized (this) {
+            Entry entry = this.cache.get(resource);
+            if (entry != null) {
+                Element root = entry.vfile.getDocumentElement();
+                return VFileStore.toRevision(root.getAttribute(StringConstants.DOCVERSION),
+                        root.getAttribute(StringConstants.DOCTIME));
+            }
+        }
+        return this.backing.getHighestCalculated(resource);
+    }
+
+    @Override
+    public String getContentHash(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        synchronized (this) {
+            Entry entry = this.cache.get(resource);
+            if (entry != null) {
+                Element root = entry.vfile.getDocumentElement();
+                return root.hasAttribute(StringConstants.CONTENTHASH) ? root
+                        .getAttribute(StringConstants.CONTENTHASH) : null;
+            }
+        }
+        return this.backing.getContentHash(resource);
+    }
+
+    /**
+     * Moves the v-file in the backing store if that supports it, otherwise
+     * puts the cached v-file moved to the revision, if there is one.
+     */
+    @Override
+    public boolean putUnchanged(CmsItemId resource, RepoRevision revision) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        Entry entry;
+        synchronized (this) {
+            // Taken out like by checkout(), until it is moved.
+            entry = this.cache.remove(resource);
+            if (entry != null) {
+                this.cachedNodes -= entry.nodes;
+            }
+        }
+        if (this.backing.putUnchanged(resource, revision)) {
+            if (entry != null) {
+                CachingVFileStore.setRevision(entry.vfile, revision);
+                this.cache(resource, entry.vfile);
+            }
+            return true;
+        }
+        if (entry == null) {
+            return false;
+        }
+        CachingVFileStore.setRevision(entry.vfile, revision);
+        this.checkin(resource, entry.vfile, Collections.<RevisionChange> emptyList());
+        return true;
+    }
+
+    private static void setRevision(Document vfile, RepoRevision revision) {
+        Element root = vfile.getDocumentElement();
+        root.setAttribute(StringConstants.DOCVERSION, Long.toString(revision.getNumber()));
+        root.setAttribute(StringConstants.DOCTIME, Long.toString(revision.getDate().getTime()));
+    }
+
+    /**
+     * @return a copy of the cached v-file, which stays cached
+     */
+    @Override
+    public Document get(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        Document vfile;
+        synchronized (this) {
+            Entry entry = this.cache.get(resource);
+            if (entry == null) {
+                this.misses++;
+                vfile = null;
+            } else {
+                this.hits++;
+                vfile = entry.vfile;
+            }
+        }
+        if (vfile == null) {
+            return this.backing.get(resource);
+        }
+        // Cached v-files are only changed after checkout() takes them out.
+        return (Document) vfile.cloneNode(true);
+    }
+
+    /**
+     * @return the cached v-file, which is not cached again until it is
+     *         checked in
+     */
+    @Override
+    public Document checkout(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        synchronized (this) {
+            Entry entry = this.cache.remove(resource);
+            if (entry != null) {
+                this.cachedNodes -= entry.nodes;
+                this.hits++;
+                return entry.vfile;
+            }
+            this.misses++;
+        }
+        return this.backing.checkout(resource);
+    }
+
+    /**
+     * Reads from the backing store, which holds the same v-files as the cache,
+     * so that cached v-files stay checked in.
+     */
+    @Override
+    protected InputStream openXml(CmsItemId resource) throws IOException {
+        return this.backing.openXml(resource);
+    }
+
+    private void cache(CmsItemId resource, Document vfile) {
+        long nodes = ElementUtils.countNodes(vfile);
+        synchronized (this) {
+            Entry old = this.cache.remove(resource);
+            if (old != null) {
+                this.cachedNodes -= old.nodes;
+            }
+            if (nodes > this.maxNodes) {
+                return;
+            }
+            this.cache.put(resource, new Entry(vfile, nodes));
+            this.cachedNodes += nodes;
+            Iterator<Map.Entry<CmsItemId, Entry>> lru = this.cache.entrySet().iterator();
+            while (this.cachedNodes > this.maxNodes) {
+                Entry evicted = lru.next().getValue();
+                lru.remove();
+                this.cachedNodes -= evicted.nodes;
+                this.evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes all v-files from the cache, without touching the backing store.
+     */
+    public synchronized void clear() {
+        this.cache.clear();
+        this.cachedNodes = 0;
+    }
+
+    /**
+     * @return number of {@link #get(CmsItemId)} and
+     *         {@link #checkout(CmsItemId)} calls answered from the cache
+     */
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    /**
+     * @return number of {@link #get(CmsItemId)} and
+     *         {@link #checkout(CmsItemId)} calls that read the backing store
+     */
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    /**
+     * @return number of v-files dropped to stay within the node limit
+     */
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return number of nodes in the cached v-files
+     */
+    public synchronized long getCachedNodes() {
+        return this.cachedNodes;
+    }
+}
@@ -0,0 +1,584 @@
+package se.repos.vfile.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import se.repos.vfile.VFileXmlPool;
+import se.repos.vfile.gen.StringConstants;
+
+/**
+ * Compact binary encoding of a v-file. The layout is:
+ *
+ * <pre>
+ * magic      "VFB" and a format version byte
+ * header     xml version, v:docVersion, v:docTime and v:contentHash
+ * names      count, then each tag and attribute name once
+ * strings    count, then each distinct text and attribute value once
+ * nodes      the document element record
+ * </pre>
+ *
+ * An element record is a type byte, the name index, the attribute count, each
+ * attribute as name index and value, the child count and then the child
+ * records. A text record is a type byte and a string index. Attribute values
+ * are written as a kind byte followed by a revision number, nothing for
+ * {@link StringConstants#NOW}, or a string index. All numbers are unsigned
+ * varints and strings are length prefixed UTF-8.
+ *
+ * The header comes first so that it can be read without decoding the nodes.
+ * A v-file without a content hash has an empty one, and format version 1,
+ * which is still read, has none.
+ * The encoding is lossless: reading it back gives a document equal to the one
+ * written.
+ *
+ * Records are variable length rather than of a fixed size. Most indexes,
+ * revisions and counts fit in one or two bytes, where a fixed record would
+ * need the width of the largest one for every node. Records are nested in
+ * document order, so a fixed size alone would not let a reader jump to a
+ * node without child offsets, which cost more space again. Lazy access to
+ * single nodes is given by {@link VFileMapped}, which walks the records in
+ * place. {@link #read} always builds the whole DOM, since
+ * {@link se.repos.vfile.gen.VFile} works on one.
+ */
+public class VFileBinaryFormat {
+
+    static final byte[] MAGIC = { 'V', 'F', 'B' };
+    static final byte FORMAT_VERSION = 2;
+
+    static final byte NODE_ELEMENT = 1;
+    static final byte NODE_TEXT = 2;
+
+    static final byte VALUE_STRING = 0;
+    static final byte VALUE_NUMBER = 1;
+    static final byte VALUE_NOW = 2;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private VFileStreamWriter xmlWriter = new VFileStreamWriter();
+
+    /**
+     * The v-file metadata available without decoding the nodes.
+     */
+    public static class Header {
+        public final String xmlVersion;
+        public final String docVersion;
+        public final String docTime;
+        /**
+         * null if the v-file has none
+         */
+        public final String contentHash;
+
+        Header(String xmlVersion, String docVersion, String docTime, String contentHash) {
+            this.xmlVersion = xmlVersion;
+            this.docVersion = docVersion;
+            this.docTime = docTime;
+            this.contentHash = contentHash == null || contentHash.length() == 0 ? null
+                    : contentHash;
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             If the format version byte is not one that can be read.
+     */
+    static void checkVersion(byte version) throws IOException {
+        if (version != 1 && version != FORMAT_VERSION) {
+            throw new IOException("Unsupported binary v-file version.");
+        }
+    }
+
+    /**
+     * Receives the decoded nodes in document order.
+     */
+    private interface NodeHandler {
+        void startElement(String name, String[] attrNames, String[] attrValues)
+                throws IOException;
+
+        void emptyElement(String name, String[] attrNames, String[] attrValues)
+                throws IOException;
+
+        void text(String value) throws IOException;
+
+        void endElement() throws IOException;
+    }
+
+    public void write(Document vfile, OutputStream out) throws IOException {
+        Element root = vfile.getDocumentElement();
+        Map<String, Integer> names = new HashMap<String, Integer>();
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+        List<String> nameList = new ArrayList<String>();
+        List<String> stringList = new ArrayList<String>();
+        VFileBinaryFormat.collect(root, names, nameList, strings, stringList);
+
+        Encoder enc = new Encoder();
+        enc.bytes(MAGIC);
+        enc.raw(FORMAT_VERSION);
+        String xmlVersion = vfile.getXmlVersion();
+        enc.string(xmlVersion == null ? "1.0" : xmlVersion);
+        enc.string(root.getAttribute(StringConstants.DOCVERSION));
+        enc.string(root.getAttribute(StringConstants.DOCTIME));
+        enc.string(root.getAttribute(StringConstants.CONTENTHASH));
+        enc.varint(nameList.size());
+        for (String name : nameList) {
+            enc.string(name);
+        }
+        enc.varint(stringList.size());
+        for (String s : stringList) {
+            enc.string(s);
+        }
+        VFileBinaryFormat.writeElement(enc, root, names, strings);
+        enc.writeTo(out);
+    }
+
+    private static void collect(Element element, Map<String, Integer> names,
+            List<String> nameList, Map<String, Integer> strings, List<String> stringList) {
+        VFileBinaryFormat.intern(element.getTagName(), names, nameList);
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr a = (Attr) attrs.item(i);
+            VFileBinaryFormat.intern(a.getName(), names, nameList);
+            String value = a.getValue();
+            if (!value.equals(StringConstants.NOW)
+                    && VFileBinaryFormat.parseRevision(value) < 0) {
+                VFileBinaryFormat.intern(value, strings, stringList);
+            }
+        }
+        for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() == Node.ELEMENT_NODE) {
+                VFileBinaryFormat.collect((Element) c, names, nameList, strings,
+                        stringList);
+            } else {
+                VFileBinaryFormat.intern(VFileBinaryFormat.getText(c), strings,
+                        stringList);
+            }
+        }
+    }
+
+    private static void intern(String s, Map<String, Integer> index, List<String> list) {
+        if (!index.containsKey(s)) {
+            index.put(s, list.size());
+            list.add(s);
+        }
+    }
+
+    private static void writeElement(Encoder enc, Element element,
+            Map<String, Integer> names, Map<String, Integer> strings) {
+        enc.raw(NODE_ELEMENT);
+        enc.varint(names.get(element.getTagName()));
+        NamedNodeMap attrs = element.getAttributes();
+        enc.varint(attrs.getLength());
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr a = (Attr) attrs.item(i);
+            enc.varint(names.get(a.getName()));
+            String value = a.getValue();
+            long revision = VFileBinaryFormat.parseRevision(value);
+            if (value.equals(StringConstants.NOW)) {
+                enc.raw(VALUE_NOW);
+            } else if (revision >= 0) {
+                enc.raw(VALUE_NUMBER);
+                enc.varint(revision);
+            } else {
+                enc.raw(VALUE_STRING);
+                enc.varint(strings.get(value));
+            }
+        }
+        int childCount = 0;
+        for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+            childCount++;
+        }
+        enc.varint(childCount);
+        for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() == Node.ELEMENT_NODE) {
+                VFileBinaryFormat.writeElement(enc, (Element) c, names, strings);
+            } else {
+                enc.raw(NODE_TEXT);
+                enc.varint(strings.get(VFileBinaryFormat.getText(c)));
+            }
+        }
+    }
+
+    private static String getText(Node n) {
+        switch (n.getNodeType()) {
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+            return n.getNodeValue();
+        default:
+            throw new UnsupportedOperationException("Unexpected node in v-file: "
+                    + n.getNodeType());
+        }
+    }
+
+    /**
+     * @return the value as a revision number if it is one in canonical form,
+     *         i.e. it reads back to the same string, otherwise -1.
+     */
+    private static long parseRevision(String value) {
+        int length = value.length();
+        if (length == 0 || length > 18 || (value.charAt(0) == '0' && length > 1)) {
+            return -1;
+        }
+        long n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            n = n * 10 + (c - '0');
+        }
+        return n;
+    }
+
+    /**
+     * Reads only the header of an encoded v-file.
+     */
+    public Header readHeader(InputStream in) throws IOException {
+        return new Decoder(in, true).header();
+    }
+
+    /**
+     * Decodes a v-file into a new DOM, all nodes at once. See
+     * {@link VFileStoreBinary#map} for reads that decode only what they use.
+     */
+    public Document read(InputStream in) throws IOException {
+        final Document doc = VFileXmlPool.getDocumentBuilder().newDocument();
+        Decoder dec = new Decoder(in, false);
+        Header header = dec.header();
+        doc.setXmlVersion(header.xmlVersion);
+        dec.nodes(new NodeHandler() {
+            private Node current = doc;
+
+            @Override
+            public void startElement(String name, String[] attrNames, String[] attrValues) {
+                Element e = doc.createElement(name);
+                for (int i = 0; i < attrNames.length; i++) {
+                    e.setAttribute(attrNames[i], attrValues[i]);
+                }
+                this.current.appendChild(e);
+                this.current = e;
+            }
+
+            @Override
+            public void emptyElement(String name, String[] attrNames, String[] attrValues) {
+                this.startElement(name, attrNames, attrValues);
+                this.endElement();
+            }
+
+            @Override
+            public void text(String value) {
+                this.current.appendChild(doc.createTextNode(value));
+            }
+
+            @Override
+            public void endElement() {
+                this.current = this.current.getParentNode();
+            }
+        });
+        return doc;
+    }
+
+    /**
+     * Writes the XML form of an encoded v-file, without building a DOM. The
+     * result is the same as {@link VFileStreamWriter} gives for the decoded
+     * document.
+     */
+    public void toXml(InputStream in, OutputStream out) throws IOException,
+            XMLStreamException {
+        Decoder dec = new Decoder(in, false);
+        Header header = dec.header();
+        VFileStreamWriter.Output xml = this.xmlWriter.open(out, header.xmlVersion);
+        final XMLStreamWriter writer = xml.getWriter();
+        dec.nodes(new NodeHandler() {
+            @Override
+            public void startElement(String name, String[] attrNames,
+                    String[] attrValues) throws IOException {
+                try {
+                    writer.writeStartElement(name);
+                    for (int i = 0; i < attrNames.length; i++) {
+                        writer.writeAttribute(attrNames[i], attrValues[i]);
+                    }
+                } catch (XMLStreamException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+
+            @Override
+            public void emptyElement(String name, String[] attrNames,
+                    String[] attrValues) throws IOException {
+                try {
+                    writer.writeEmptyElement(name);
+                    for (int i = 0; i < attrNames.length; i++) {
+                        writer.writeAttribute(attrNames[i], attrValues[i]);
+                    }
+                } catch (XMLStreamException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+
+            @Override
+            public void text(String value) throws IOException {
+                try {
+                    VFileStreamWriter.writeText(writer, value);
+                } catch (XMLStreamException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+
+            @Override
+            public void endElement() throws IOException {
+                try {
+                    writer.writeEndElement();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        });
+        xml.close();
+    }
+
+    /**
+     * Appends varints and strings to an in-memory buffer.
+     */
+    static class Encoder {
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+
+        void raw(byte b) {
+            this.buffer.write(b);
+        }
+
+        void bytes(byte[] b) {
+            this.buffer.write(b, 0, b.length);
+        }
+
+        void varint(long n) {
+            while ((n & ~0x7FL) != 0) {
+                this.buffer.write((int) ((n & 0x7F) | 0x80));
+                n >>>= 7;
+            }
+            this.buffer.write((int) n);
+        }
+
+        void string(String s) {
+            byte[] b = s.getBytes(UTF8);
+            this.varint(b.length);
+            this.bytes(b);
+        }
+
+        int size() {
+            return this.buffer.size();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            this.buffer.writeTo(out);
+        }
+    }
+
+    /**
+     * Reads an encoded v-file from a byte array.
+     */
+    static class Decoder {
+        private byte[] data;
+        private int pos;
+        private int end = -1;
+        private String[] names;
+        private String[] strings;
+
+        Decoder(InputStream in, boolean headerOnly) throws IOException {
+            if (headerOnly) {
+                this.data = Decoder.readHeaderBytes(in);
+            } else {
+                this.data = Decoder.readFully(in);
+            }
+            this.pos = 0;
+        }
+
+        /**
+         * Reads the given bytes, from start to end.
+         */
+        Decoder(byte[] data, int start, int end) {
+            this.data = data;
+            this.pos = start;
+            this.end = end;
+        }
+
+        /**
+         * Reads up to the end of the header, which is at most four strings.
+         */
+        private static byte[] readHeaderBytes(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            int version = 0;
+            for (int i = 0; i < MAGIC.length + 1; i++) {
+                version = Decoder.copy(in, out);
+            }
+            for (int s = 0; s < (version == 1 ? 3 : 4); s++) {
+                int length = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = Decoder.copy(in, out);
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                for (int i = 0; i < length; i++) {
+                    Decoder.copy(in, out);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        private static int copy(InputStream in, OutputStream out) throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Unexpected end of v-file.");
+            }
+            out.write(b);
+            return b;
+        }
+
+        private static byte[] readFully(InputStream in) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+        Header header() throws IOException {
+            for (byte b : MAGIC) {
+                if (this.raw() != b) {
+                    throw new IOException("Not a binary v-file.");
+                }
+            }
+            byte version = this.raw();
+            VFileBinaryFormat.checkVersion(version);
+            return new Header(this.string(), this.string(), this.string(),
+                    version == 1 ? null : this.string());
+        }
+
+        void nodes(NodeHandler handler) throws IOException {
+            this.names = new String[(int) this.varint()];
+            for (int i = 0; i < this.names.length; i++) {
+                this.names[i] = this.string();
+            }
+            this.strings = new String[(int) this.varint()];
+            for (int i = 0; i < this.strings.length; i++) {
+                this.strings[i] = this.string();
+            }
+            if (this.raw() != NODE_ELEMENT) {
+                throw new IOException("Binary v-file has no document element.");
+            }
+            this.element(handler);
+        }
+
+        private void element(NodeHandler handler) throws IOException {
+            String name = this.names[(int) this.varint()];
+            int attrCount = (int) this.varint();
+            String[] attrNames = new String[attrCount];
+            String[] attrValues = new String[attrCount];
+            for (int i = 0; i < attrCount; i++) {
+                attrNames[i] = this.names[(int) this.varint()];
+                byte kind = this.raw();
+                switch (kind) {
+                case VALUE_NOW:
+                    attrValues[i] = StringConstants.NOW;
+                    break;
+                case VALUE_NUMBER:
+                    attrValues[i] = Long.toString(this.varint());
+                    break;
+                case VALUE_STRING:
+                    attrValues[i] = this.strings[(int) this.varint()];
+                    break;
+                default:
+                    throw new IOException("Unknown attribute value kind " + kind);
+                }
+            }
+            int childCount = (int) this.varint();
+            if (childCount == 0) {
+                handler.emptyElement(name, attrNames, attrValues);
+                return;
+            }
+            handler.startElement(name, attrNames, attrValues);
+            for (int i = 0; i < childCount; i++) {
+                byte type = this.raw();
+                if (type == NODE_ELEMENT) {
+                    this.element(handler);
+                } else if (type == NODE_TEXT) {
+                    handler.text(this.strings[(int) this.varint()]);
+                } else {
+                    throw new IOException("Unknown node type " + type);
+                }
+            }
+            handler.endElement();
+        }
+
+        /**
+         * @return the index of the next byte to read
+         */
+        int position() {
+            return this.pos;
+        }
+
+        /**
+         * @return the number of bytes left to read
+         */
+        int remaining() {
+            return this.getEnd() - this.pos;
+        }
+
+        private int getEnd() {
+            return this.end < 0 ? this.data.length : this.end;
+        }
+
+        void skip(int length) throws IOException {
+            if (length < 0 || this.pos + length > this.getEnd()) {
+                throw new IOException("Unexpected end of v-file.");
+            }
+            this.pos += length;
+        }
+
+        byte raw() throws IOException {
+            if (this.pos >= this.getEnd()) {
+                throw new IOException("Unexpected end of v-file.");
+            }
+            return this.data[this.pos++];
+        }
+
+        long varint() throws IOException {
+            long n = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.raw();
+                n |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return n;
+        }
+
+        String string() throws IOException {
+            int length = (int) this.varint();
+            if (this.pos + length > this.getEnd()) {
+                throw new IOException("Unexpected end of v-file.");
+            }
+            String s = new String(this.data, this.pos, length, UTF8);
+            this.pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package se.repos.vfile.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import se.repos.vfile.gen.Axis;
+import se.repos.vfile.gen.Nodetype;
+import se.repos.vfile.gen.SimpleXPath;
+import se.repos.vfile.gen.StringConstants;
+import se.repos.vfile.store.VFileBinaryFormat.Header;
+
+/**
+ * Read-only view of a memory-mapped {@link VFileBinaryFormat} file. Header
+ * queries and node lookups read the mapped bytes directly, without building a
+ * DOM or copying the file onto the heap. Nodes are identified by their byte
+ * offset in the file, see {@link #getNode(int)}.
+ *
+ * The mapping is released when this object is garbage collected, so there is
+ * nothing to close. Instances are not thread safe.
+ */
+public class VFileMapped {
+
+    private ByteBuffer data;
+    private Header header;
+    private String[] names;
+    private int[] stringOffsets;
+    private int tables;
+    private int documentElement;
+
+    /**
+     * Maps the given file and reads its header. The name and string tables
+     * are read on the first node lookup.
+     */
+    public VFileMapped(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        this.readHeader();
+    }
+
+    private void readHeader() throws IOException {
+        Cursor c = new Cursor(0);
+        for (byte b : VFileBinaryFormat.MAGIC) {
+            if (c.raw() != b) {
+                throw new IOException("Not a binary v-file.");
+            }
+        }
+        byte version = c.raw();
+        VFileBinaryFormat.checkVersion(version);
+        this.header = new Header(c.string(), c.string(), c.string(), version == 1 ? null
+                : c.string());
+        this.tables = c.pos;
+    }
+
+    private void readTables() {
+        if (this.names != null) {
+            return;
+        }
+        Cursor c = new Cursor(this.tables);
+        this.names = new String[c.index()];
+        for (int i = 0; i < this.names.length; i++) {
+            this.names[i] = c.string();
+        }
+        // Only the offsets of the pooled strings are kept, the strings
+        // themselves are decoded when asked for.
+        this.stringOffsets = new int[c.index()];
+        for (int i = 0; i < this.stringOffsets.length; i++) {
+            this.stringOffsets[i] = c.pos;
+            c.pos += c.index();
+        }
+        this.documentElement = c.pos;
+        if (c.raw() != VFileBinaryFormat.NODE_ELEMENT) {
+            throw new RuntimeException("Binary v-file has no document element.");
+        }
+    }
+
+    public Header getHeader() {
+        return this.header;
+    }
+
+    /**
+     * @return the v:file element
+     */
+    public Node getDocumentElement() {
+        this.readTables();
+        return new Node(this.documentElement);
+    }
+
+    /**
+     * @param offset
+     *            as given by {@link Node#getOffset()}
+     * @throws IllegalArgumentException
+     *             If there is no element record at the offset.
+     */
+    public Node getNode(int offset) {
+        this.readTables();
+        if (offset < this.documentElement || offset >= this.data.limit()
+                || this.data.get(offset) != VFileBinaryFormat.NODE_ELEMENT) {
+            throw new IllegalArgumentException("No element at offset " + offset);
+        }
+        return new Node(offset);
+    }
+
+    /**
+     * Evaluates the path in the context of the v:file element, the same way
+     * {@link SimpleXPath#eval(se.repos.vfile.gen.TaggedNode)} does.
+     *
+     * @return the selected live node, or null if there is none
+     */
+    public Node select(SimpleXPath path) {
+        Node current = this.getDocumentElement();
+        for (Axis axis : path) {
+            if (current == null || !current.isLive()) {
+                return null;
+            }
+            if (axis.nodeType == Nodetype.ATTRIBUTE) {
+                current = current.getAttributeNode(axis.name);
+            } else if (axis.nodeType != Nodetype.DOCUMENT) {
+                current = current.getNthLiveChild(axis.localIndex, axis.nodeType,
+                        axis.name);
+            }
+        }
+        if (current == null || !current.isLive()) {
+            return null;
+        }
+        return current;
+    }
+
+    private String getString(int index) {
+        Cursor c = new Cursor(this.stringOffsets[index]);
+        return c.string();
+    }
+
+    /**
+     * Skips the element record starting at the cursor.
+     */
+    private void skipElement(Cursor c) {
+        c.index();
+        int attrCount = c.index();
+        for (int i = 0; i < attrCount; i++) {
+            c.index();
+            if (c.raw() != VFileBinaryFormat.VALUE_NOW) {
+                c.varint();
+            }
+        }
+        int childCount = c.index();
+        for (int i = 0; i < childCount; i++) {
+            byte type = c.raw();
+            if (type == VFileBinaryFormat.NODE_ELEMENT) {
+                this.skipElement(c);
+            } else if (type == VFileBinaryFormat.NODE_TEXT) {
+                c.varint();
+            } else {
+                throw new RuntimeException("Unknown node type " + type);
+            }
+        }
+    }
+
+    /**
+     * An element record in the mapped file. The name and attributes are read
+     * when the node is created, the children when they are asked for.
+     */
+    public class Node {
+        private int offset;
+        private String name;
+        private String[] attrNames;
+        private byte[] attrKinds;
+        private long[] attrValues;
+        private int childCount;
+        private int childrenOffset;
+
+        private Node(int offset) {
+            this.offset = offset;
+            Cursor c = new Cursor(offset + 1);
+            this.name = VFileMapped.this.names[c.index()];
+            int attrCount = c.index();
+            this.attrNames = new String[attrCount];
+            this.attrKinds = new byte[attrCount];
+            this.attrValues = new long[attrCount];
+            for (int i = 0; i < attrCount; i++) {
+                this.attrNames[i] = VFileMapped.this.names[c.index()];
+                this.attrKinds[i] = c.raw();
+                if (this.attrKinds[i] != VFileBinaryFormat.VALUE_NOW) {
+                    this.attrValues[i] = c.varint();
+                }
+            }
+            this.childCount = c.index();
+            this.childrenOffset = c.pos;
+        }
+
+        /**
+         * @return the position of this node in the mapped file
+         */
+        public int getOffset() {
+            return this.offset;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * @return the attribute value, or the empty string if there is no
+         *         such attribute
+         */
+        public String getAttribute(String attrName) {
+            for (int i = 0; i < this.attrNames.length; i++) {
+                if (this.attrNames[i].equals(attrName)) {
+                    switch (this.attrKinds[i]) {
+                    case VFileBinaryFormat.VALUE_NOW:
+                        return StringConstants.NOW;
+                    case VFileBinaryFormat.VALUE_NUMBER:
+                        return Long.toString(this.attrValues[i]);
+                    default:
+                        return VFileMapped.this.getString((int) this.attrValues[i]);
+                    }
+                }
+            }
+            return "";
+        }
+
+        public boolean isLive() {
+            return this.getAttribute(StringConstants.END).equals(StringConstants.NOW);
+        }
+
+        public Nodetype getNodetype() {
+            if (this.name.equals(StringConstants.ATTR)) {
+                return Nodetype.ATTRIBUTE;
+            } else if (this.name.equals(StringConstants.TEXT)) {
+                return Nodetype.TEXT;
+            } else if (this.name.equals(StringConstants.COMMENT)) {
+                return Nodetype.COMMENT;
+            } else if (this.name.equals(StringConstants.PI)) {
+                return Nodetype.PROCESSING_INSTRUCTION;
+            } else if (this.name.equals(StringConstants.FILE)) {
+                return Nodetype.DOCUMENT;
+            } else {
+                return Nodetype.ELEMENT;
+            }
+        }
+
+        /**
+         * @return the child elements, live or not, in document order
+         */
+        public List<Node> getChildren() {
+            if (this.childCount == 0) {
+                return Collections.emptyList();
+            }
+            List<Node> children = new ArrayList<Node>(this.childCount);
+            Cursor c = new Cursor(this.childrenOffset);
+            for (int i = 0; i < this.childCount; i++) {
+                int childOffset = c.pos;
+                if (c.raw() == VFileBinaryFormat.NODE_ELEMENT) {
+                    children.add(new Node(childOffset));
+                    VFileMapped.this.skipElement(c);
+                } else {
+                    c.varint();
+                }
+            }
+            return children;
+        }
+
+        /**
+         * @return the concatenated text children of this node
+         */
+        public String getText() {
+            StringBuilder sb = new StringBuilder();
+            Cursor c = new Cursor(this.childrenOffset);
+            for (int i = 0; i < this.childCount; i++) {
+                if (c.raw() == VFileBinaryFormat.NODE_ELEMENT) {
+                    VFileMapped.this.skipElement(c);
+                } else {
+                    sb.append(VFileMapped.this.getString(c.index()));
+                }
+            }
+            return sb.toString();
+        }
+
+        private Node getAttributeNode(String attrName) {
+            for (Node child : this.getChildren()) {
+                if (child.getNodetype() == Nodetype.ATTRIBUTE && child.isLive()
+                        && child.getAttribute(StringConstants.NAME).equals(attrName)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        private Node getNthLiveChild(int n, Nodetype nodeType, String tagName) {
+            int i = 0;
+            for (Node child : this.getChildren()) {
+                if (child.getNodetype() != nodeType || !child.isLive()) {
+                    continue;
+                }
+                if (nodeType == Nodetype.ELEMENT && !child.getName().equals(tagName)) {
+                    continue;
+                }
+                if (i++ == n) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads varints and strings from an absolute position in the mapping.
+     */
+    private class Cursor {
+        private int pos;
+
+        Cursor(int pos) {
+            this.pos = pos;
+        }
+
+        byte raw() {
+            return VFileMapped.this.data.get(this.pos++);
+        }
+
+        long varint() {
+            long n = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = this.raw();
+                n |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return n;
+        }
+
+        int index() {
+            return (int) this.varint();
+        }
+
+        String string() {
+            int length = this.index();
+            byte[] b = new byte[length];
+            ByteBuffer view = VFileMapped.this.data.duplicate();
+            view.position(this.pos);
+            view.get(b);
+            this.pos += length;
+            return new String(b, VFileBinaryFormat.UTF8);
+        }
+    }
+}
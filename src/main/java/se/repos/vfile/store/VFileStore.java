@@ -1,10 +1,21 @@
 package se.repos.vfile.store;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
 import java.util.Date;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
 
 import org.w3c.dom.Document;
 
+import se.repos.vfile.gen.RevisionChange;
+import se.repos.vfile.gen.RevisionIndex;
 import se.repos.vfile.gen.VFile;
+import se.repos.vfile.gen.VFileAnnotator;
 import se.simonsoft.cms.item.CmsItemId;
 import se.simonsoft.cms.item.RepoRevision;
 
@@ -26,6 +37,42 @@ public abstract class VFileStore {
      */
     public abstract void put(CmsItemId resource, Document vfile);
 
+    /**
+     * Stores a newer V-file along with the changes made in the revisions
+     * since the stored one, so that stores that keep a {@link RevisionIndex}
+     * can update it without scanning the V-file. This implementation ignores
+     * the changes.
+     * 
+     * @param changes
+     *            as given by {@link VFile#getChanges()} after each update,
+     *            oldest first
+     * @see #put(CmsItemId, Document)
+     */
+    public void put(CmsItemId resource, Document vfile, List<RevisionChange> changes) {
+        this.put(resource, vfile);
+    }
+
+    /**
+     * This implementation builds the index from the V-file on every call.
+     * 
+     * @param resource
+     *            identifier, without revision
+     * @return the changes of each revision of the V-file, null if no V-file
+     *         for this resource
+     * @throws IllegalArgumentException
+     *             If resource has a peg revision.
+     */
+    public RevisionIndex getRevisionIndex(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        Document vfile = this.get(resource);
+        if (vfile == null) {
+            return null;
+        }
+        return RevisionIndex.build(vfile);
+    }
+
     /**
      * @param resource
      *            identifier
@@ -57,7 +104,7 @@ public abstract class VFileStore {
      * @throws IllegalArgumentException
      *             If resource has a peg revision.
      */
-    public final RepoRevision getHighestCalculated(CmsItemId resource) {
+    public RepoRevision getHighestCalculated(CmsItemId resource) {
         if (resource.getPegRev() != null) {
             throw new IllegalArgumentException("Resource should not have a peg revision.");
         }
@@ -65,8 +112,59 @@ public abstract class VFileStore {
             return null;
         }
         VFile vfile = new VFile(this.get(resource));
-        return new RepoRevision(Long.parseLong(vfile.getDocumentVersion()), new Date(
-                Long.parseLong(vfile.getDocumentTime())));
+        return VFileStore.toRevision(vfile.getDocumentVersion(), vfile.getDocumentTime());
+    }
+
+    /**
+     * This implementation reads the V-file, stores should read no more than
+     * they do for {@link #getHighestCalculated(CmsItemId)}.
+     * 
+     * @param resource
+     *            identifier, without revision
+     * @return the {@link VFile#getContentHash()} of the latest V-file, null if
+     *         no V-file for this resource or it has no content hash
+     * @throws IllegalArgumentException
+     *             If resource has a peg revision.
+     */
+    public String getContentHash(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        Document vfile = this.get(resource);
+        if (vfile == null) {
+            return null;
+        }
+        return new VFile(vfile).getContentHash();
+    }
+
+    /**
+     * Moves the stored V-file to a revision in which the content did not
+     * change, as {@link VFile#updateUnchanged(String, String)} and a put
+     * would, but without reading the V-file. This implementation does not
+     * support that.
+     * 
+     * @param resource
+     *            identifier, without revision
+     * @param revision
+     *            newer than {@link #getHighestCalculated(CmsItemId)}
+     * @return false if nothing was stored, so the V-file has to be updated
+     *         and put instead
+     * @throws IllegalArgumentException
+     *             If resource has a peg revision.
+     */
+    public boolean putUnchanged(CmsItemId resource, RepoRevision revision) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        return false;
+    }
+
+    /**
+     * Reads a v:docVersion and v:docTime pair into a revision.
+     */
+    protected static RepoRevision toRevision(String docVersion, String docTime) {
+        return new RepoRevision(Long.parseLong(docVersion), new Date(
+                Long.parseLong(docTime)));
     }
 
     /**
@@ -79,4 +177,87 @@ public abstract class VFileStore {
      *             If resource has a peg revision.
      */
     public abstract Document get(CmsItemId resource);
+
+    /**
+     * Reads the latest V-file to update it and {@link #checkin(CmsItemId, Document, List)}
+     * it. Unlike {@link #get(CmsItemId)} the store may hand out a document it
+     * keeps, so the caller must check in or drop it, and not use it after a
+     * check in. This implementation calls {@link #get(CmsItemId)}.
+     * 
+     * @param resource
+     *            identifier, without revision
+     * @return V-file for the resource, null if no V-file for this resource
+     * @throws IllegalArgumentException
+     *             If resource has a peg revision.
+     */
+    public Document checkout(CmsItemId resource) {
+        return this.get(resource);
+    }
+
+    /**
+     * Stores a V-file like {@link #put(CmsItemId, Document, List)} and takes
+     * over the document, which the caller must not use afterwards. This
+     * implementation calls {@link #put(CmsItemId, Document, List)}.
+     * 
+     * @see #checkout(CmsItemId)
+     */
+    public void checkin(CmsItemId resource, Document vfile, List<RevisionChange> changes) {
+        this.put(resource, vfile, changes);
+    }
+
+    /**
+     * Writes the live tree of the latest V-file with the age of each node.
+     * 
+     * @param resource
+     *            identifier, without revision
+     * @param annotator
+     *            selects the annotation mode
+     * @param out
+     *            receives the annotations as JSON, not closed
+     * @return false if there is no V-file for this resource
+     * @throws IllegalArgumentException
+     *             If resource has a peg revision.
+     * @see VFileAnnotator
+     */
+    public boolean annotate(CmsItemId resource, VFileAnnotator annotator, Writer out) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        try {
+            InputStream xml = this.openXml(resource);
+            if (xml == null) {
+                return false;
+            }
+            try {
+                annotator.annotate(xml, out);
+            } finally {
+                xml.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Opens the latest V-file as XML, for reading it without a DOM. This
+     * implementation serializes {@link #get(CmsItemId)}.
+     * 
+     * @return the V-file as UTF-8 XML, null if no V-file for this resource
+     */
+    protected InputStream openXml(CmsItemId resource) throws IOException {
+        Document vfile = this.get(resource);
+        if (vfile == null) {
+            return null;
+        }
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        try {
+            new VFileStreamWriter().write(vfile, xml);
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        }
+        return new ByteArrayInputStream(xml.toByteArray());
+    }
 }
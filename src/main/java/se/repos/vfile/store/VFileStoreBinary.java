@@ -0,0 +1,142 @@
+package se.repos.vfile.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Document;
+
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.RepoRevision;
+
+/**
+ * Stores v-files on disk in the compact {@link VFileBinaryFormat}, which is
+ * both smaller and faster to load than XML. The XML form is still available
+ * through {@link #exportXml(CmsItemId, OutputStream)}.
+ */
+public class VFileStoreBinary extends VFileStoreDisk {
+
+    private VFileBinaryFormat format;
+
+    public VFileStoreBinary(String localFilePath) {
+        super(localFilePath);
+        this.format = new VFileBinaryFormat();
+    }
+
+    @Override
+    protected void write(Document vfile, OutputStream out) throws IOException {
+        this.format.write(vfile, out);
+    }
+
+    @Override
+    protected Document read(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return this.format.read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads only the header of the stored v-file.
+     */
+    @Override
+    protected RepoRevision readRevision(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 512);
+        try {
+            VFileBinaryFormat.Header header = this.format.readHeader(in);
+            return VFileStore.toRevision(header.docVersion, header.docTime);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected String readContentHash(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 512);
+        try {
+            return this.format.readHeader(in).contentHash;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Converts the stored v-file to XML in memory, which is still cheaper than
+     * building its DOM.
+     */
+    @Override
+    protected InputStream openXml(CmsItemId resource) throws IOException {
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        if (!this.exportXml(resource, xml)) {
+            return null;
+        }
+        return new ByteArrayInputStream(xml.toByteArray());
+    }
+
+    /**
+     * Read-only access to the latest v-file, for header queries and node
+     * lookups that don't need a DOM.
+     *
+     * @param resource
+     *            identifier, without revision
+     * @return the memory-mapped V-file, null if no V-file for this resource
+     * @throws IllegalArgumentException
+     *             If resource has a peg revision.
+     */
+    public VFileMapped map(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        if (!this.has(resource)) {
+            return null;
+        }
+        try {
+            return new VFileMapped(this.getFile(resource));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the XML form of the latest v-file, without building a DOM.
+     * 
+     * @param resource
+     *            identifier, without revision
+     * @param out
+     *            receives the v-file as UTF-8 XML, not closed
+     * @return false if there is no V-file for this resource
+     * @throws IllegalArgumentException
+     *             If resource has a peg revision.
+     */
+    public boolean exportXml(CmsItemId resource, OutputStream out) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        if (!this.has(resource)) {
+            return false;
+        }
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(
+                    this.getFile(resource)));
+            try {
+                this.format.toXml(in, out);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        return true;
+    }
+}
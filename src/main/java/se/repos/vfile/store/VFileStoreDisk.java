@@ -1,75 +1,251 @@
 package se.repos.vfile.store;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.transform.Result;
-import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
-import se.repos.vfile.VFileDocumentBuilderFactory;
+import se.repos.vfile.VFileXmlPool;
+import se.repos.vfile.gen.RevisionChange;
+import se.repos.vfile.gen.RevisionIndex;
+import se.repos.vfile.gen.StringConstants;
 import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.RepoRevision;
 
 public class VFileStoreDisk extends VFileStore {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private File vFileFolder;
-    private DocumentBuilder db;
-    private Transformer trans;
+    private VFileStreamWriter writer;
+    private XMLInputFactory inputFactory;
 
     public VFileStoreDisk(String localFilePath) {
         this.vFileFolder = new File(localFilePath);
         if (!this.vFileFolder.exists()) {
             this.vFileFolder.mkdirs();
         }
-        this.db = new VFileDocumentBuilderFactory().newDocumentBuilder();
+        this.writer = new VFileStreamWriter();
+        this.inputFactory = XMLInputFactory.newInstance();
+        this.inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        this.inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    /**
+     * Writes the v-file to a temporary file next to the stored one and then
+     * renames it into place, so that a failed write never leaves a partial
+     * v-file behind. The stored revision index is dropped, to be built again
+     * when asked for.
+     */
+    @Override
+    public void put(CmsItemId resource, Document vfile) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        this.store(resource, vfile);
+        this.getRevisionIndexFile(resource).delete();
+    }
+
+    /**
+     * Appends the changes to the stored revision index if that is up to date
+     * with the previous v-file, otherwise the index is dropped.
+     */
+    @Override
+    public void put(CmsItemId resource, Document vfile, List<RevisionChange> changes) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        RepoRevision previous = this.getHighestCalculated(resource);
+        this.store(resource, vfile);
+        this.appendRevisionIndex(resource, previous, Long.parseLong(vfile
+                .getDocumentElement().getAttribute(StringConstants.DOCVERSION)), changes);
+    }
+
+    /**
+     * Appends the changes up to revision to the stored revision index if that
+     * is up to date with previous, otherwise the index is dropped.
+     * 
+     * @param previous
+     *            the revision of the v-file before, null if there was none
+     */
+    protected void appendRevisionIndex(CmsItemId resource, RepoRevision previous,
+            long revision, List<RevisionChange> changes) {
+        File revisionIndexFile = this.getRevisionIndexFile(resource);
+        boolean append = previous != null
+                && Long.valueOf(previous.getNumber()).equals(
+                        VFileStoreDisk.readLastRevision(revisionIndexFile));
+        if (previous != null && !append) {
+            revisionIndexFile.delete();
+            return;
+        }
         try {
-            this.trans = TransformerFactory.newInstance().newTransformer();
-        } catch (TransformerConfigurationException e) {
-            throw new RuntimeException(e.getMessage());
-        } catch (TransformerFactoryConfigurationError e) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(revisionIndexFile,
+                    append), UTF8);
+            try {
+                RevisionIndex.write(revision, changes, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            revisionIndexFile.delete();
             throw new RuntimeException(e.getMessage());
         }
     }
 
+    /**
+     * Reads the stored revision index, or builds and stores it if it is
+     * missing or not up to date with the v-file.
+     */
     @Override
-    public void put(CmsItemId resource, Document vfile) {
+    public RevisionIndex getRevisionIndex(CmsItemId resource) {
         if (resource.getPegRev() != null) {
             throw new IllegalArgumentException("Resource should not have a peg revision.");
         }
+        if (!this.has(resource)) {
+            return null;
+        }
+        File revisionIndexFile = this.getRevisionIndexFile(resource);
+        long current = this.getHighestCalculated(resource).getNumber();
         try {
-            String filePath = resource.getRelPath().toString();
-            File indexFile = new File(this.vFileFolder, filePath);
-            if (!indexFile.exists()) {
-                indexFile.createNewFile();
+            if (Long.valueOf(current).equals(
+                    VFileStoreDisk.readLastRevision(revisionIndexFile))) {
+                Reader in = new InputStreamReader(new FileInputStream(revisionIndexFile),
+                        UTF8);
+                try {
+                    return RevisionIndex.read(in);
+                } finally {
+                    in.close();
+                }
             }
-            Source source = new DOMSource(vfile);
-            Result result = new StreamResult(indexFile);
-            this.trans.transform(source, result);
+            RevisionIndex index = RevisionIndex.build(this.get(resource));
+            File tempFile = File.createTempFile("." + revisionIndexFile.getName() + ".",
+                    ".tmp", revisionIndexFile.getParentFile());
+            try {
+                Writer out = new OutputStreamWriter(new FileOutputStream(tempFile), UTF8);
+                try {
+                    index.write(out);
+                } finally {
+                    out.close();
+                }
+                VFileStoreDisk.replace(tempFile, revisionIndexFile);
+            } finally {
+                tempFile.delete();
+            }
+            return index;
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
-        } catch (TransformerException e) {
+        }
+    }
+
+    /**
+     * @return the revision that the index file was last completed with, null
+     *         if there is no complete index file
+     */
+    private static Long readLastRevision(File revisionIndexFile) {
+        if (!revisionIndexFile.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(revisionIndexFile, "r");
+            try {
+                int length = (int) Math.min(file.length(), 32);
+                byte[] tail = new byte[length];
+                file.seek(file.length() - length);
+                file.readFully(tail);
+                String lines = new String(tail, UTF8);
+                if (!lines.endsWith("\n")) {
+                    return null;
+                }
+                lines = lines.substring(0, lines.length() - 1);
+                return Long.valueOf(lines.substring(lines.lastIndexOf('\n') + 1));
+            } finally {
+                file.close();
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the complete v-file in place of the stored one, through a
+     * temporary file.
+     */
+    protected void store(CmsItemId resource, Document vfile) {
+        File indexFile = this.getFile(resource);
+        File folder = indexFile.getParentFile();
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("." + indexFile.getName() + ".", ".tmp", folder);
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                FileChannel channel = fileOut.getChannel();
+                OutputStream out = new BufferedOutputStream(
+                        Channels.newOutputStream(channel), BUFFER_SIZE);
+                this.write(vfile, out);
+                out.flush();
+                channel.force(false);
+            } finally {
+                fileOut.close();
+            }
+            VFileStoreDisk.replace(tempFile, indexFile);
+            tempFile = null;
+        } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
+        } finally {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
         }
     }
 
+    /**
+     * Renames source to target. The rename is atomic on POSIX file systems,
+     * elsewhere an existing target has to be deleted first.
+     */
+    private static void replace(File source, File target) throws IOException {
+        if (source.renameTo(target)) {
+            return;
+        }
+        if (target.exists() && target.delete() && source.renameTo(target)) {
+            return;
+        }
+        throw new IOException("Failed to move " + source + " to " + target);
+    }
+
     @Override
     public boolean has(CmsItemId resource) {
         if (resource.getPegRev() != null) {
             throw new IllegalArgumentException("Resource should not have a peg revision.");
         }
-        String filePath = resource.getRelPath().toString();
-        File indexFile = new File(this.vFileFolder, filePath);
-        return indexFile.exists();
+        return this.getFile(resource).exists();
     }
 
     @Override
@@ -80,15 +256,158 @@ public class VFileStoreDisk extends VFileStore {
         if (!this.has(resource)) {
             return null;
         }
-        String filePath = resource.getRelPath().toString();
-        File indexFile = new File(this.vFileFolder, filePath);
         try {
-            return this.db.parse(indexFile);
+            return this.read(this.getFile(resource));
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
-        } catch (SAXException e) {
+        }
+    }
+
+    /**
+     * Reads only the root element of the stored v-file, so the cost does not
+     * grow with the size of the v-file.
+     */
+    @Override
+    public RepoRevision getHighestCalculated(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        if (!this.has(resource)) {
+            return null;
+        }
+        try {
+            return this.readRevision(this.getFile(resource));
+        } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
         }
     }
 
+    /**
+     * Reads only the root element of the stored v-file, like
+     * {@link #getHighestCalculated(CmsItemId)}.
+     */
+    @Override
+    public String getContentHash(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        if (!this.has(resource)) {
+            return null;
+        }
+        try {
+            return this.readContentHash(this.getFile(resource));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Override
+    protected InputStream openXml(CmsItemId resource) throws IOException {
+        if (!this.has(resource)) {
+            return null;
+        }
+        return new BufferedInputStream(new FileInputStream(this.getFile(resource)),
+                BUFFER_SIZE);
+    }
+
+    /**
+     * @return the file that the revision index of the resource is stored in,
+     *         next to the v-file
+     */
+    protected File getRevisionIndexFile(CmsItemId resource) {
+        File file = this.getFile(resource);
+        return new File(file.getParentFile(), file.getName() + ".revisions");
+    }
+
+    /**
+     * @return the file that the v-file of the resource is stored in
+     */
+    protected File getFile(CmsItemId resource) {
+        String filePath = resource.getRelPath().toString();
+        return new File(this.vFileFolder, filePath);
+    }
+
+    /**
+     * Writes the stored form of a v-file.
+     */
+    protected void write(Document vfile, OutputStream out) throws IOException {
+        try {
+            this.writer.write(vfile, out);
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a v-file written by {@link #write(Document, OutputStream)}.
+     */
+    protected Document read(File file) throws IOException {
+        try {
+            return VFileXmlPool.getDocumentBuilder().parse(file);
+        } catch (SAXException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the revision of a v-file written by
+     * {@link #write(Document, OutputStream)}, parsing no further than the
+     * start tag of the root element.
+     */
+    protected RepoRevision readRevision(File file) throws IOException {
+        Map<String, String> attributes = this.readRootAttributes(file);
+        String docVersion = attributes.get(StringConstants.DOCVERSION);
+        String docTime = attributes.get(StringConstants.DOCTIME);
+        if (docVersion == null || docTime == null) {
+            throw new IOException("V-file has no document version: " + file);
+        }
+        return VFileStore.toRevision(docVersion, docTime);
+    }
+
+    /**
+     * Reads the content hash of a v-file written by
+     * {@link #write(Document, OutputStream)} like {@link #readRevision(File)}.
+     * 
+     * @return null if the v-file has none
+     */
+    protected String readContentHash(File file) throws IOException {
+        return this.readRootAttributes(file).get(StringConstants.CONTENTHASH);
+    }
+
+    /**
+     * @return the attributes of the root element of a v-file written by
+     *         {@link #write(Document, OutputStream)} by name, in order,
+     *         including namespace declarations
+     */
+    Map<String, String> readRootAttributes(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            XMLStreamReader reader = this.inputFactory.createXMLStreamReader(in);
+            try {
+                reader.nextTag();
+                Map<String, String> attributes = new LinkedHashMap<String, String>();
+                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                    attributes.put(VFileStoreDisk.getQName(reader, i),
+                            reader.getAttributeValue(i));
+                }
+                return attributes;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String getQName(XMLStreamReader reader, int index) {
+        String prefix = reader.getAttributePrefix(index);
+        String localName = reader.getAttributeLocalName(index);
+        if (prefix == null || prefix.length() == 0) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
 }
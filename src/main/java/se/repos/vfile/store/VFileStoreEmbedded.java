@@ -0,0 +1,972 @@
+package se.repos.vfile.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import se.repos.vfile.gen.RevisionChange;
+import se.repos.vfile.gen.RevisionIndex;
+import se.repos.vfile.gen.StringConstants;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.RepoRevision;
+
+/**
+ * Keeps the v-files of a repository, with their revisions and revision
+ * indexes, in one file, for use within a single process. V-files are stored
+ * in the {@link VFileBinaryFormat}.
+ *
+ * The file is a log of commits, each appended as one chunk and forced to disk
+ * before it takes effect, so a commit is either complete or lost as a whole.
+ * The puts of a transaction, see {@link #begin()}, for example of all items of
+ * a repository revision, go in one commit. Outside of one each put is a
+ * commit of its own. The layout is:
+ *
+ * <pre>
+ * magic      "VFS" and a format version byte
+ * chunks     varint length, entries, 4 byte CRC-32 of the entries
+ * entries    count, then for each entry a kind byte, the path and
+ *            for a v-file: v:docVersion, v:docTime, the v-file and the
+ *                          revision index, empty if there is none
+ *            for an index: the revision index
+ *            for a version: v:docVersion, v:docTime and the lines it
+ *                           appends to the revision index, or the revision
+ *                           index if there was none
+ * </pre>
+ *
+ * A version entry moves the latest v-file of the path to a revision with
+ * unchanged content, see {@link #putUnchanged(CmsItemId, RepoRevision)}. The
+ * v-file is read with the revision of the entry in place of its own. Format
+ * version 1 has no version entries and is still read.
+ *
+ * Opening the store reads the file once to find the latest entry of each
+ * path, and cuts off a chunk that was not completely written. Each path then
+ * costs a few longs of memory, and {@link #get(CmsItemId)} reads its v-file
+ * from where it is in the file. Entries replaced by later ones are left
+ * behind until they take up more than half of the file, which is then
+ * rewritten with only the latest entries, a few megabytes per chunk. The
+ * rewritten file is moved in
+ * place of the old one after that is moved aside to a backup, which opening
+ * the store recovers from if the move was interrupted.
+ *
+ * Like {@link VFileStoreDisk}, resources are identified by their path only.
+ * Another process that opens the same file fails until this store is
+ * {@link #close()}d.
+ */
+public class VFileStoreEmbedded extends VFileStore implements VFileTransactionStore,
+        Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(VFileStoreEmbedded.class);
+
+    static final byte[] MAGIC = { 'V', 'F', 'S' };
+    static final byte FORMAT_VERSION = 2;
+
+    private static final byte ENTRY_VFILE = 1;
+    private static final byte ENTRY_INDEX = 2;
+    private static final byte ENTRY_VERSION = 3;
+
+    /**
+     * More than the header of an encoded v-file takes.
+     */
+    private static final int VFILE_HEADER_SIZE = 512;
+
+    private static final long COMPACT_MIN_SIZE = 1024 * 1024;
+    private static final int COMPACT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private File file;
+    private VFileBinaryFormat format;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+    private RandomAccessFile data;
+    private FileChannel channel;
+    private Map<String, Item> items;
+    private long liveBytes;
+    private ThreadLocal<PendingCommit> joined = new ThreadLocal<PendingCommit>();
+    private byte formatVersion = FORMAT_VERSION;
+
+    /**
+     * Where the latest v-file and revision index of a path are in the file,
+     * with the lines that version entries appended to the index since.
+     */
+    private static class Item {
+        final RepoRevision revision;
+        final long vfileOffset;
+        final int vfileLength;
+        final long indexOffset;
+        final int indexLength;
+        final byte[] indexAppended;
+
+        Item(RepoRevision revision, long vfileOffset, int vfileLength, long indexOffset,
+                int indexLength, byte[] indexAppended) {
+            this.revision = revision;
+            this.vfileOffset = vfileOffset;
+            this.vfileLength = vfileLength;
+            this.indexOffset = indexOffset;
+            this.indexLength = indexLength;
+            this.indexAppended = indexAppended;
+        }
+
+        int getLiveBytes() {
+            return this.vfileLength + this.indexLength
+                    + (this.indexAppended == null ? 0 : this.indexAppended.length);
+        }
+    }
+
+    /**
+     * An entry put in a transaction, with a null v-file unless it is of
+     * kind {@link #ENTRY_VFILE}, and for kind {@link #ENTRY_VERSION} the
+     * lines it appends to the revision index.
+     */
+    private static class Pending {
+        final byte kind;
+        final RepoRevision revision;
+        final byte[] vfile;
+        final byte[] index;
+
+        Pending(byte kind, RepoRevision revision, byte[] vfile, byte[] index) {
+            this.kind = kind;
+            this.revision = revision;
+            this.vfile = vfile;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Opens the store, creating the file if it does not exist.
+     *
+     * @param storeFilePath
+     *            the file to keep the v-files in, locked until
+     *            {@link #close()}
+     * @throws IllegalStateException
+     *             If another process has the store open.
+     */
+    public VFileStoreEmbedded(String storeFilePath) {
+        this.file = new File(storeFilePath);
+        this.format = new VFileBinaryFormat();
+        File folder = this.file.getAbsoluteFile().getParentFile();
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        try {
+            this.lockFile = new RandomAccessFile(new File(folder, this.file.getName()
+                    + ".lock"), "rw");
+            this.lock = this.lockFile.getChannel().tryLock();
+            if (this.lock == null) {
+                this.lockFile.close();
+                throw new IllegalStateException("V-file store is in use: " + this.file);
+            }
+            this.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private void open() throws IOException {
+        File backup = this.getBackupFile();
+        if (backup.exists()) {
+            // A compaction was interrupted, see compact().
+            if (this.file.exists()) {
+                backup.delete();
+            } else if (!backup.renameTo(this.file)) {
+                throw new IOException("Failed to move " + backup + " to " + this.file);
+            }
+        }
+        this.data = new RandomAccessFile(this.file, "rw");
+        this.channel = this.data.getChannel();
+        this.items = new HashMap<String, Item>();
+        this.liveBytes = 0;
+        if (this.channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 1);
+            header.put(MAGIC).put(FORMAT_VERSION).flip();
+            this.channel.write(header, 0);
+            this.channel.force(true);
+            return;
+        }
+        long end = this.scan();
+        if (this.formatVersion != FORMAT_VERSION) {
+            // The chunks to come may have entries that version lacks.
+            this.channel.write(ByteBuffer.wrap(new byte[] { FORMAT_VERSION }), MAGIC.length);
+            this.channel.force(true);
+            this.formatVersion = FORMAT_VERSION;
+        }
+        if (end < this.channel.size()) {
+            // The last commit was not completely written.
+            this.channel.truncate(end);
+            this.channel.force(true);
+        }
+    }
+
+    /**
+     * Reads the directory of latest entries from the chunks.
+     *
+     * @return the end of the last complete chunk
+     */
+    private long scan() throws IOException {
+        long size = this.channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.file), 64 * 1024));
+        try {
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) {
+                    throw new IOException("Not a v-file store: " + this.file);
+                }
+            }
+            this.formatVersion = in.readByte();
+            if (this.formatVersion != 1 && this.formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported v-file store version: " + this.file);
+            }
+            long pos = MAGIC.length + 1;
+            while (true) {
+                byte[] chunk;
+                int prefix;
+                try {
+                    long length = VFileStoreEmbedded.readVarint(in);
+                    prefix = VFileStoreEmbedded.varintSize(length);
+                    if (pos + prefix + length + 4 > size) {
+                        return pos;
+                    }
+                    chunk = new byte[(int) length];
+                    in.readFully(chunk);
+                    CRC32 crc = new CRC32();
+                    crc.update(chunk);
+                    if ((in.readInt() & 0xFFFFFFFFL) != crc.getValue()) {
+                        return pos;
+                    }
+                } catch (EOFException e) {
+                    return pos;
+                }
+                this.read(chunk, pos + prefix);
+                pos += prefix + chunk.length + 4;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds the entries of a chunk to the directory.
+     *
+     * @param offset
+     *            where the entries are in the file
+     */
+    private void read(byte[] chunk, long offset) throws IOException {
+        VFileBinaryFormat.Decoder dec = new VFileBinaryFormat.Decoder(chunk, 0, chunk.length);
+        long count = dec.varint();
+        for (long i = 0; i < count; i++) {
+            byte kind = dec.raw();
+            String path = dec.string();
+            Item previous = this.items.get(path);
+            Item item;
+            if (kind == ENTRY_VFILE) {
+                RepoRevision revision = VFileStore.toRevision(dec.string(), dec.string());
+                int vfileLength = (int) dec.varint();
+                long vfileOffset = offset + dec.position();
+                dec.skip(vfileLength);
+                int indexLength = (int) dec.varint();
+                long indexOffset = offset + dec.position();
+                dec.skip(indexLength);
+                item = new Item(revision, vfileOffset, vfileLength, indexOffset,
+                        indexLength, null);
+            } else if (kind == ENTRY_INDEX && previous != null) {
+                int indexLength = (int) dec.varint();
+                long indexOffset = offset + dec.position();
+                dec.skip(indexLength);
+                item = new Item(previous.revision, previous.vfileOffset,
+                        previous.vfileLength, indexOffset, indexLength, null);
+            } else if (kind == ENTRY_VERSION && previous != null) {
+                RepoRevision revision = VFileStore.toRevision(dec.string(), dec.string());
+                int indexLength = (int) dec.varint();
+                byte[] appended = indexLength == 0 ? null : Arrays.copyOfRange(chunk,
+                        dec.position(), dec.position() + indexLength);
+                dec.skip(indexLength);
+                item = new Item(revision, previous.vfileOffset, previous.vfileLength,
+                        previous.indexOffset, previous.indexLength, VFileStoreEmbedded
+                                .concat(previous.indexAppended, appended));
+            } else {
+                throw new IOException("Corrupt v-file store entry for " + path);
+            }
+            if (previous != null) {
+                this.liveBytes -= previous.getLiveBytes();
+            }
+            this.liveBytes += item.getLiveBytes();
+            this.items.put(path, item);
+        }
+    }
+
+    /**
+     * The puts of a transaction, in the order of their paths' last put.
+     */
+    private class PendingCommit implements Transaction {
+
+        private Map<String, Pending> entries = new LinkedHashMap<String, Pending>();
+
+        @Override
+        public void join() {
+            synchronized (VFileStoreEmbedded.this) {
+                if (VFileStoreEmbedded.this.joined.get() != null) {
+                    throw new IllegalStateException("Already in a v-file store transaction.");
+                }
+                if (this.entries == null) {
+                    throw new IllegalStateException("V-file store transaction is over.");
+                }
+                VFileStoreEmbedded.this.joined.set(this);
+            }
+        }
+
+        @Override
+        public void leave() {
+            if (VFileStoreEmbedded.this.joined.get() == this) {
+                VFileStoreEmbedded.this.joined.remove();
+            }
+        }
+
+        @Override
+        public void commit() {
+            synchronized (VFileStoreEmbedded.this) {
+                if (this.entries == null) {
+                    throw new IllegalStateException("V-file store transaction is over.");
+                }
+                Map<String, Pending> entries = this.entries;
+                this.entries = null;
+                this.leave();
+                VFileStoreEmbedded.this.checkOpen();
+                try {
+                    VFileStoreEmbedded.this.write(entries);
+                } catch (IOException e) {
+                    throw new RuntimeException(e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void rollback() {
+            synchronized (VFileStoreEmbedded.this) {
+                this.entries = null;
+                this.leave();
+            }
+        }
+    }
+
+    /**
+     * Starts collecting the puts of the calling thread, and of the threads
+     * that join the transaction, into one commit.
+     */
+    @Override
+    public synchronized Transaction begin() {
+        this.checkOpen();
+        PendingCommit transaction = new PendingCommit();
+        transaction.join();
+        return transaction;
+    }
+
+    /**
+     * @return the puts of the transaction that the calling thread is in, null
+     *         if none
+     * @throws IllegalStateException
+     *             If the transaction is over.
+     */
+    private Map<String, Pending> getPending() {
+        PendingCommit transaction = this.joined.get();
+        if (transaction == null) {
+            return null;
+        }
+        if (transaction.entries == null) {
+            throw new IllegalStateException("V-file store transaction is over.");
+        }
+        return transaction.entries;
+    }
+
+    @Override
+    public void put(CmsItemId resource, Document vfile) {
+        this.put(resource, vfile, null);
+    }
+
+    /**
+     * Adds the changes to the stored revision index if that is up to date
+     * with the previous v-file, otherwise the index is dropped.
+     */
+    @Override
+    public void put(CmsItemId resource, Document vfile, List<RevisionChange> changes) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        Element root = vfile.getDocumentElement();
+        RepoRevision revision = VFileStore.toRevision(
+                root.getAttribute(StringConstants.DOCVERSION),
+                root.getAttribute(StringConstants.DOCTIME));
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(64 * 1024);
+        ByteArrayOutputStream added = new ByteArrayOutputStream();
+        try {
+            this.format.write(vfile, encoded);
+            if (changes != null) {
+                Writer out = new OutputStreamWriter(added, VFileBinaryFormat.UTF8);
+                RevisionIndex.write(revision.getNumber(), changes, out);
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage()); // not from memory
+        }
+        String path = VFileStoreEmbedded.getPath(resource);
+        synchronized (this) {
+            this.checkOpen();
+            byte[] index = null;
+            if (changes != null) {
+                byte[] previous = this.readIndex(path);
+                if (previous != null) {
+                    ByteArrayOutputStream appended = new ByteArrayOutputStream(
+                            previous.length + added.size());
+                    appended.write(previous, 0, previous.length);
+                    appended.write(added.toByteArray(), 0, added.size());
+                    index = appended.toByteArray();
+                } else if (!this.contains(path)) {
+                    index = added.toByteArray();
+                }
+            }
+            this.stage(path, new Pending(ENTRY_VFILE, revision, encoded.toByteArray(),
+                    index));
+        }
+    }
+
+    /**
+     * Writes an entry that moves the stored v-file to the revision, with the
+     * revision added to the stored revision index if there is one.
+     */
+    @Override
+    public boolean putUnchanged(CmsItemId resource, RepoRevision revision) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        String path = VFileStoreEmbedded.getPath(resource);
+        synchronized (this) {
+            this.checkOpen();
+            Map<String, Pending> pending = this.getPending();
+            if (!this.items.containsKey(path)
+                    || (pending != null && pending.containsKey(path))) {
+                return false; // only moves a committed v-file
+            }
+            byte[] appended = null;
+            if (this.readIndex(path) != null) {
+                ByteArrayOutputStream lines = new ByteArrayOutputStream();
+                try {
+                    Writer out = new OutputStreamWriter(lines, VFileBinaryFormat.UTF8);
+                    RevisionIndex.write(revision.getNumber(),
+                            Collections.<RevisionChange> emptyList(), out);
+                    out.close();
+                } catch (IOException e) {
+                    throw new RuntimeException(e.getMessage()); // not from memory
+                }
+                appended = lines.toByteArray();
+            }
+            this.stage(path, new Pending(ENTRY_VERSION, revision, null, appended));
+        }
+        return true;
+    }
+
+    private void stage(String path, Pending entry) {
+        Map<String, Pending> pending = this.getPending();
+        if (pending != null) {
+            Pending previous = pending.get(path);
+            if (entry.kind == ENTRY_INDEX && previous != null
+                    && previous.kind != ENTRY_INDEX) {
+                entry = new Pending(previous.kind, previous.revision, previous.vfile,
+                        entry.index);
+            }
+            pending.remove(path); // keep commit order
+            pending.put(path, entry);
+            return;
+        }
+        Map<String, Pending> entries = new HashMap<String, Pending>(2);
+        entries.put(path, entry);
+        try {
+            this.write(entries);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Appends the entries as one chunk and adds them to the directory once
+     * they are on disk.
+     */
+    private void write(Map<String, Pending> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        VFileBinaryFormat.Encoder enc = new VFileBinaryFormat.Encoder();
+        enc.varint(entries.size());
+        for (Map.Entry<String, Pending> e : entries.entrySet()) {
+            Pending entry = e.getValue();
+            enc.raw(entry.kind);
+            enc.string(e.getKey());
+            if (entry.kind != ENTRY_INDEX) {
+                enc.string(Long.toString(entry.revision.getNumber()));
+                enc.string(Long.toString(entry.revision.getDate().getTime()));
+            }
+            if (entry.kind == ENTRY_VFILE) {
+                enc.varint(entry.vfile.length);
+                enc.bytes(entry.vfile);
+            }
+            VFileStoreEmbedded.writeIndex(enc, entry.index);
+        }
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(enc.size() + 16);
+        VFileBinaryFormat.Encoder length = new VFileBinaryFormat.Encoder();
+        length.varint(enc.size());
+        length.writeTo(chunk);
+        enc.writeTo(chunk);
+        byte[] bytes = chunk.toByteArray();
+        int prefix = length.size();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, prefix, bytes.length - prefix);
+
+        long start = this.channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 4);
+        buffer.put(bytes).putInt((int) crc.getValue()).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer, start + buffer.position());
+            }
+            this.channel.force(false);
+        } catch (IOException e) {
+            this.channel.truncate(start);
+            throw e;
+        }
+        this.read(Arrays.copyOfRange(bytes, prefix, bytes.length), start + prefix);
+        if (this.channel.size() > COMPACT_MIN_SIZE
+                && this.channel.size() > 2 * this.liveBytes) {
+            try {
+                this.compact();
+            } catch (IOException e) {
+                // The commit is on disk, compaction is tried again after the
+                // next one.
+                logger.error("Failed to compact v-file store {}", this.file, e);
+            }
+        }
+    }
+
+    private static void writeIndex(VFileBinaryFormat.Encoder enc, byte[] index) {
+        if (index == null) {
+            enc.varint(0);
+            return;
+        }
+        enc.varint(index.length);
+        enc.bytes(index);
+    }
+
+    /**
+     * Rewrites the file with only the latest entries, in chunks of a few
+     * megabytes so that only those are held in memory. The file is moved to
+     * a backup before the rewritten one takes its place, so that one of them
+     * is complete at any time.
+     */
+    private void compact() throws IOException {
+        File temp = File.createTempFile("." + this.file.getName() + ".", ".tmp", this.file
+                .getAbsoluteFile().getParentFile());
+        try {
+            // The lock stays with this store, the compacted file is written
+            // through a store without one.
+            VFileStoreEmbedded compacted = new VFileStoreEmbedded(temp);
+            try {
+                Map<String, Pending> chunk = new LinkedHashMap<String, Pending>();
+                long chunkSize = 0;
+                for (Map.Entry<String, Item> e : this.items.entrySet()) {
+                    Item item = e.getValue();
+                    if (!chunk.isEmpty()
+                            && chunkSize + item.getLiveBytes() > COMPACT_CHUNK_SIZE) {
+                        compacted.write(chunk);
+                        chunk.clear();
+                        chunkSize = 0;
+                    }
+                    chunk.put(e.getKey(), new Pending(ENTRY_VFILE, item.revision, this.read(
+                            item.vfileOffset, item.vfileLength), this.readIndex(item)));
+                    chunkSize += item.getLiveBytes();
+                }
+                compacted.write(chunk);
+            } finally {
+                compacted.data.close();
+            }
+            File backup = this.getBackupFile();
+            this.data.close();
+            this.data = null;
+            this.channel = null;
+            try {
+                if (!this.file.renameTo(backup)) {
+                    throw new IOException("Failed to move " + this.file + " to " + backup);
+                }
+                if (!temp.renameTo(this.file)) {
+                    throw new IOException("Failed to move " + temp + " to " + this.file);
+                }
+                backup.delete();
+            } finally {
+                // Moves the backup back if the compacted file is not in place.
+                this.open();
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private File getBackupFile() {
+        return new File(this.file.getAbsoluteFile().getParentFile(), this.file.getName()
+                + ".bak");
+    }
+
+    /**
+     * Opens a new file without taking the lock, for {@link #compact()}.
+     */
+    private VFileStoreEmbedded(File temp) throws IOException {
+        this.file = temp;
+        this.format = new VFileBinaryFormat();
+        temp.delete();
+        this.open();
+    }
+
+    @Override
+    public synchronized boolean has(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        this.checkOpen();
+        return this.contains(VFileStoreEmbedded.getPath(resource));
+    }
+
+    private boolean contains(String path) {
+        Map<String, Pending> pending = this.getPending();
+        if (pending != null) {
+            Pending entry = pending.get(path);
+            if (entry != null && entry.kind != ENTRY_INDEX) {
+                return true;
+            }
+        }
+        return this.items.containsKey(path);
+    }
+
+    /**
+     * Answers from the directory, without reading the file.
+     */
+    @Override
+    public synchronized RepoRevision getHighestCalculated(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        this.checkOpen();
+        String path = VFileStoreEmbedded.getPath(resource);
+        Map<String, Pending> pending = this.getPending();
+        if (pending != null) {
+            Pending entry = pending.get(path);
+            if (entry != null && entry.kind != ENTRY_INDEX) {
+                return entry.revision;
+            }
+        }
+        Item item = this.items.get(path);
+        return item == null ? null : item.revision;
+    }
+
+    /**
+     * Reads only the header of the stored v-file.
+     */
+    @Override
+    public String getContentHash(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        String path = VFileStoreEmbedded.getPath(resource);
+        byte[] header;
+        synchronized (this) {
+            this.checkOpen();
+            Map<String, Pending> pending = this.getPending();
+            Pending entry = pending == null ? null : pending.get(path);
+            Item item = this.items.get(path);
+            try {
+                if (entry != null && entry.kind == ENTRY_VFILE) {
+                    header = entry.vfile;
+                } else if (item != null) {
+                    header = this.read(item.vfileOffset, Math.min(item.vfileLength,
+                            VFILE_HEADER_SIZE));
+                } else {
+                    return null;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+        }
+        try {
+            return this.format.readHeader(new ByteArrayInputStream(header)).contentHash;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Override
+    public Document get(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        Pending stored = this.readVFile(VFileStoreEmbedded.getPath(resource));
+        if (stored == null) {
+            return null;
+        }
+        try {
+            return this.decode(stored);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the v-file, moved to the revision of the entry if a version
+     *         entry refers to it
+     */
+    private Document decode(Pending stored) throws IOException {
+        Document vfile = this.format.read(new ByteArrayInputStream(stored.vfile));
+        Element root = vfile.getDocumentElement();
+        root.setAttribute(StringConstants.DOCVERSION, Long.toString(stored.revision
+                .getNumber()));
+        root.setAttribute(StringConstants.DOCTIME, Long.toString(stored.revision.getDate()
+                .getTime()));
+        return vfile;
+    }
+
+    /**
+     * Converts the stored v-file to XML in memory, without building its DOM
+     * unless a version entry refers to it.
+     */
+    @Override
+    protected InputStream openXml(CmsItemId resource) throws IOException {
+        Pending stored = this.readVFile(VFileStoreEmbedded.getPath(resource));
+        if (stored == null) {
+            return null;
+        }
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        try {
+            VFileBinaryFormat.Header header = this.format.readHeader(new ByteArrayInputStream(
+                    stored.vfile));
+            if (header.docVersion.equals(Long.toString(stored.revision.getNumber()))) {
+                this.format.toXml(new ByteArrayInputStream(stored.vfile), xml);
+            } else {
+                new VFileStreamWriter().write(this.decode(stored), xml);
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage());
+        }
+        return new ByteArrayInputStream(xml.toByteArray());
+    }
+
+    /**
+     * @return the latest v-file of the path as an entry of kind
+     *         {@link #ENTRY_VFILE} with its revision, null if none
+     */
+    private synchronized Pending readVFile(String path) {
+        this.checkOpen();
+        Map<String, Pending> pending = this.getPending();
+        Pending entry = pending == null ? null : pending.get(path);
+        if (entry != null && entry.kind == ENTRY_VFILE) {
+            return entry;
+        }
+        Item item = this.items.get(path);
+        if (item == null) {
+            return null;
+        }
+        try {
+            return new Pending(ENTRY_VFILE, entry != null && entry.kind == ENTRY_VERSION
+                    ? entry.revision : item.revision, this.read(item.vfileOffset,
+                    item.vfileLength), null);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the stored revision index, or builds and stores it if it is
+     * missing.
+     */
+    @Override
+    public RevisionIndex getRevisionIndex(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        String path = VFileStoreEmbedded.getPath(resource);
+        synchronized (this) {
+            this.checkOpen();
+            if (!this.contains(path)) {
+                return null;
+            }
+            byte[] index = this.readIndex(path);
+            if (index != null) {
+                try {
+                    return RevisionIndex.read(new InputStreamReader(new ByteArrayInputStream(
+                            index), VFileBinaryFormat.UTF8));
+                } catch (IOException e) {
+                    throw new RuntimeException(e.getMessage());
+                }
+            }
+        }
+        Document vfile = this.get(resource);
+        RevisionIndex index = RevisionIndex.build(vfile);
+        ByteArrayOutputStream built = new ByteArrayOutputStream();
+        try {
+            Writer out = new OutputStreamWriter(built, VFileBinaryFormat.UTF8);
+            index.write(out);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage()); // not from memory
+        }
+        Element root = vfile.getDocumentElement();
+        synchronized (this) {
+            // Only if no newer v-file was put meanwhile.
+            RepoRevision current = this.getHighestCalculated(resource);
+            if (current != null
+                    && Long.toString(current.getNumber()).equals(
+                            root.getAttribute(StringConstants.DOCVERSION))) {
+                this.stage(path, new Pending(ENTRY_INDEX, current, null, built
+                        .toByteArray()));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the revision index that is up to date with the latest v-file,
+     *         null if there is none
+     */
+    private byte[] readIndex(String path) {
+        Map<String, Pending> pending = this.getPending();
+        Pending entry = pending == null ? null : pending.get(path);
+        if (entry != null && entry.kind != ENTRY_VERSION) {
+            return entry.index;
+        }
+        Item item = this.items.get(path);
+        byte[] index = item == null ? null : this.readIndex(item);
+        return entry == null ? index : VFileStoreEmbedded.concat(index, entry.index);
+    }
+
+    private byte[] readIndex(Item item) {
+        if (item.indexLength == 0) {
+            return item.indexAppended;
+        }
+        try {
+            return VFileStoreEmbedded.concat(this.read(item.indexOffset, item.indexLength),
+                    item.indexAppended);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return the bytes of both, either of which may be null
+     */
+    private static byte[] concat(byte[] first, byte[] second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    private byte[] read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of v-file store.");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the number of v-files in the store, including uncommitted ones
+     */
+    public synchronized int size() {
+        this.checkOpen();
+        Map<String, Pending> pending = this.getPending();
+        if (pending == null) {
+            return this.items.size();
+        }
+        int size = this.items.size();
+        for (Map.Entry<String, Pending> e : pending.entrySet()) {
+            if (e.getValue().kind != ENTRY_INDEX && !this.items.containsKey(e.getKey())) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Closes the file and releases the lock. The puts of transactions that
+     * were not committed are dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.lock == null) {
+            return;
+        }
+        try {
+            this.data.close();
+        } finally {
+            this.lock.release();
+            this.lock = null;
+            this.lockFile.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (this.lock == null) {
+            throw new IllegalStateException("V-file store is closed.");
+        }
+    }
+
+    private static String getPath(CmsItemId resource) {
+        return resource.getRelPath().toString();
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException {
+        long n = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            n |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 64);
+        return n;
+    }
+
+    private static int varintSize(long n) {
+        int size = 1;
+        while ((n & ~0x7FL) != 0) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
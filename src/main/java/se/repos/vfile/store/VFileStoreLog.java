@@ -0,0 +1,814 @@
+package se.repos.vfile.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import se.repos.vfile.gen.RevisionChange;
+import se.repos.vfile.gen.StringConstants;
+import se.repos.vfile.gen.VFile;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.RepoRevision;
+
+/**
+ * Stores each v-file as a full checkpoint followed by a log with one delta
+ * per revision, so that an increment appends what changed instead of
+ * rewriting the whole v-file. Every checkpoint interval the v-file is written
+ * in full again and the log is started over.
+ *
+ * A delta refers to the elements of the previous revision by their index in
+ * document order. It holds the new attributes of each element whose
+ * attributes changed, and the new child list of each element whose children
+ * changed, where new elements are written out and existing ones referred to.
+ * To tell what changed the store remembers the numbering of the v-file it
+ * last checked out or wrote per resource, with the attributes and child list
+ * of each element, up to a total number of elements. A document that it did
+ * not check out or write itself is stored as a checkpoint. A revision
+ * with unchanged content is a delta of the root attributes only, written
+ * without reading the v-file, see {@link #putUnchanged(CmsItemId, RepoRevision)}.
+ *
+ * The log is a sequence of records:
+ *
+ * <pre>
+ * length     varint, the length of the delta
+ * delta      previous v:docVersion, v:docVersion, v:docTime,
+ *            attribute changes, child list changes
+ * length     4 bytes, the length of the delta again
+ * </pre>
+ *
+ * using the encoding of {@link VFileBinaryFormat}. The trailing length lets
+ * the latest revision be read from the end of the log. {@link #get(CmsItemId)}
+ * reads the checkpoint and replays the log. A record cut short by a failed
+ * write ends the log, and is cut off before the next record is appended.
+ * Records left from before the checkpoint are skipped.
+ */
+public class VFileStoreLog extends VFileStoreDisk {
+
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 32;
+    private static final long DEFAULT_MAX_SNAPSHOT_ELEMENTS = 1000000;
+
+    private static final byte CHILD_REFERENCE = 0;
+    private static final byte CHILD_ELEMENT = 1;
+    private static final byte CHILD_TEXT = 2;
+
+    private int checkpointInterval;
+    private long maxSnapshotElements;
+    private long snapshotElements;
+    private LinkedHashMap<CmsItemId, Snapshot> snapshots;
+
+    /**
+     * The numbering of a stored v-file, with the attributes and the child
+     * list of each element to tell which ones changed.
+     */
+    private static class Snapshot {
+        final Document vfile;
+        final long revision;
+        final int records;
+        final long logEnd;
+        final Map<Element, Integer> ordinals = new IdentityHashMap<Element, Integer>();
+        /**
+         * Per element its attribute names and values, one after the other.
+         */
+        final List<String[]> attributes = new ArrayList<String[]>();
+        /**
+         * Per element its children, elements as themselves and other nodes
+         * as their value.
+         */
+        final List<Object[]> children = new ArrayList<Object[]>();
+
+        /**
+         * @param logEnd
+         *            the end of the last complete record in the log, where the
+         *            next one is to be appended
+         */
+        Snapshot(Document vfile, int records, long logEnd) {
+            this.vfile = vfile;
+            this.revision = Long.parseLong(vfile.getDocumentElement().getAttribute(
+                    StringConstants.DOCVERSION));
+            this.records = records;
+            this.logEnd = logEnd;
+            List<Element> elements = VFileStoreLog.number(vfile);
+            for (int i = 0; i < elements.size(); i++) {
+                this.ordinals.put(elements.get(i), i);
+            }
+            for (Element e : elements) {
+                NamedNodeMap attrs = e.getAttributes();
+                String[] attributes = new String[2 * attrs.getLength()];
+                for (int i = 0; i < attrs.getLength(); i++) {
+                    Attr a = (Attr) attrs.item(i);
+                    attributes[2 * i] = a.getName();
+                    attributes[2 * i + 1] = a.getValue();
+                }
+                this.attributes.add(attributes);
+                List<Object> children = new ArrayList<Object>();
+                for (Node c = e.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    children.add(c.getNodeType() == Node.ELEMENT_NODE ? c : c.getNodeValue());
+                }
+                this.children.add(children.toArray());
+            }
+        }
+
+        int size() {
+            return this.attributes.size();
+        }
+
+        boolean sameAttributes(Element element, int ordinal) {
+            String[] attributes = this.attributes.get(ordinal);
+            if (element.getAttributes().getLength() != attributes.length / 2) {
+                return false;
+            }
+            for (int i = 0; i < attributes.length; i += 2) {
+                Attr a = element.getAttributeNode(attributes[i]);
+                if (a == null || !a.getValue().equals(attributes[i + 1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean sameChildren(Element element, int ordinal) {
+            Object[] children = this.children.get(ordinal);
+            int i = 0;
+            for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (i == children.length) {
+                    return false;
+                }
+                Object previous = children[i++];
+                if (c.getNodeType() == Node.ELEMENT_NODE ? previous != c
+                        : !(previous instanceof String) || !previous.equals(c.getNodeValue())) {
+                    return false;
+                }
+            }
+            return i == children.length;
+        }
+    }
+
+    public VFileStoreLog(String localFilePath) {
+        this(localFilePath, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param checkpointInterval
+     *            the number of revisions from one full v-file to the next, 1
+     *            to write every revision in full
+     */
+    public VFileStoreLog(String localFilePath, int checkpointInterval) {
+        this(localFilePath, checkpointInterval, DEFAULT_MAX_SNAPSHOT_ELEMENTS);
+    }
+
+    /**
+     * @param checkpointInterval
+     *            the number of revisions from one full v-file to the next, 1
+     *            to write every revision in full
+     * @param maxSnapshotElements
+     *            the most elements to remember the numbering of, summed over
+     *            all resources, which keeps their v-files in memory; the
+     *            least recently used ones are forgotten first, and their next
+     *            revision written as a checkpoint
+     */
+    public VFileStoreLog(String localFilePath, int checkpointInterval,
+            long maxSnapshotElements) {
+        super(localFilePath);
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive.");
+        }
+        this.checkpointInterval = checkpointInterval;
+        this.maxSnapshotElements = maxSnapshotElements;
+        this.snapshots = new LinkedHashMap<CmsItemId, Snapshot>(16, 0.75f, true);
+    }
+
+    /**
+     * Appends a delta if the v-file is the one last read or written for the
+     * resource and the checkpoint interval is not yet reached, otherwise
+     * writes a checkpoint.
+     */
+    @Override
+    protected void store(CmsItemId resource, Document vfile) {
+        // Taken out, so a failed write leaves no snapshot behind.
+        Snapshot previous = this.forget(resource);
+        File log = this.getLogFile(resource);
+        int records = 0;
+        long logEnd = -1;
+        if (previous != null && previous.vfile == vfile
+                && previous.records + 1 < this.checkpointInterval
+                && previous.ordinals.get(vfile.getDocumentElement()) != null
+                && previous.revision == this.getHighestCalculated(resource).getNumber()) {
+            try {
+                logEnd = this.append(log, previous.logEnd,
+                        VFileStoreLog.delta(vfile, previous));
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+            records = previous.records + 1;
+        }
+        if (logEnd == -1) {
+            super.store(resource, vfile);
+            log.delete();
+            records = 0;
+            logEnd = 0;
+        }
+        this.remember(resource, new Snapshot(vfile, records, logEnd));
+    }
+
+    private void remember(CmsItemId resource, Snapshot snapshot) {
+        synchronized (this.snapshots) {
+            this.forget(resource);
+            if (snapshot.size() > this.maxSnapshotElements) {
+                return;
+            }
+            this.snapshots.put(resource, snapshot);
+            this.snapshotElements += snapshot.size();
+            Iterator<Snapshot> lru = this.snapshots.values().iterator();
+            while (this.snapshotElements > this.maxSnapshotElements) {
+                this.snapshotElements -= lru.next().size();
+                lru.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the snapshot that was remembered for the resource, null if none
+     */
+    private Snapshot forget(CmsItemId resource) {
+        synchronized (this.snapshots) {
+            Snapshot snapshot = this.snapshots.remove(resource);
+            if (snapshot != null) {
+                this.snapshotElements -= snapshot.size();
+            }
+            return snapshot;
+        }
+    }
+
+    private static byte[] delta(Document vfile, Snapshot previous) {
+        Element root = vfile.getDocumentElement();
+        List<Element> attributeChanges = new ArrayList<Element>();
+        List<Element> childChanges = new ArrayList<Element>();
+        for (Element e : VFileStoreLog.number(vfile)) {
+            Integer ordinal = previous.ordinals.get(e);
+            if (ordinal == null) {
+                continue; // written out with its parent's children
+            }
+            if (!previous.sameAttributes(e, ordinal)) {
+                attributeChanges.add(e);
+            }
+            if (!previous.sameChildren(e, ordinal)) {
+                childChanges.add(e);
+            }
+        }
+
+        VFileBinaryFormat.Encoder enc = new VFileBinaryFormat.Encoder();
+        enc.string(Long.toString(previous.revision));
+        enc.string(root.getAttribute(StringConstants.DOCVERSION));
+        enc.string(root.getAttribute(StringConstants.DOCTIME));
+        enc.varint(attributeChanges.size());
+        for (Element e : attributeChanges) {
+            enc.varint(previous.ordinals.get(e));
+            VFileStoreLog.writeAttributes(enc, e);
+        }
+        enc.varint(childChanges.size());
+        for (Element e : childChanges) {
+            enc.varint(previous.ordinals.get(e));
+            VFileStoreLog.writeChildren(enc, e, previous);
+        }
+        return VFileStoreLog.frame(enc);
+    }
+
+    /**
+     * @return the record of the encoded delta, with its length before and
+     *         after
+     */
+    private static byte[] frame(VFileBinaryFormat.Encoder enc) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(enc.size() + 16);
+        VFileBinaryFormat.Encoder length = new VFileBinaryFormat.Encoder();
+        length.varint(enc.size());
+        try {
+            length.writeTo(record);
+            enc.writeTo(record);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage()); // not from memory
+        }
+        int size = enc.size();
+        record.write(size >>> 24);
+        record.write(size >>> 16);
+        record.write(size >>> 8);
+        record.write(size);
+        return record.toByteArray();
+    }
+
+    private static void writeAttributes(VFileBinaryFormat.Encoder enc, Element element) {
+        NamedNodeMap attrs = element.getAttributes();
+        enc.varint(attrs.getLength());
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr a = (Attr) attrs.item(i);
+            enc.string(a.getName());
+            enc.string(a.getValue());
+        }
+    }
+
+    private static void writeChildren(VFileBinaryFormat.Encoder enc, Element element,
+            Snapshot previous) {
+        int count = 0;
+        for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+            count++;
+        }
+        enc.varint(count);
+        for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() != Node.ELEMENT_NODE) {
+                enc.raw(CHILD_TEXT);
+                enc.string(c.getNodeValue());
+                continue;
+            }
+            Integer ordinal = previous.ordinals.get(c);
+            if (ordinal != null) {
+                enc.raw(CHILD_REFERENCE);
+                enc.varint(ordinal);
+            } else {
+                enc.raw(CHILD_ELEMENT);
+                enc.string(c.getNodeName());
+                VFileStoreLog.writeAttributes(enc, (Element) c);
+                VFileStoreLog.writeChildren(enc, (Element) c, previous);
+            }
+        }
+    }
+
+    /**
+     * Writes the record at the end of the last complete record, cutting off
+     * what a failed append may have left after it.
+     * 
+     * @return the end of the record, or -1 if the log is shorter than
+     *         expected, changed by someone else
+     */
+    private long append(File log, long logEnd, byte[] record) throws IOException {
+        if (log.length() < logEnd) {
+            return -1;
+        }
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        try {
+            file.setLength(logEnd);
+            file.seek(logEnd);
+            file.write(record);
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+        return logEnd + record.length;
+    }
+
+    /**
+     * Reads the checkpoint and replays the log on it.
+     */
+    @Override
+    public Document get(CmsItemId resource) {
+        return this.read(resource, false);
+    }
+
+    /**
+     * Reads the v-file like {@link #get(CmsItemId)} and remembers its
+     * numbering, so that the check in appends a delta.
+     */
+    @Override
+    public Document checkout(CmsItemId resource) {
+        return this.read(resource, true);
+    }
+
+    private Document read(CmsItemId resource, boolean remember) {
+        Document vfile = super.get(resource);
+        if (vfile == null) {
+            return null;
+        }
+        long[] replayed;
+        try {
+            replayed = VFileStoreLog.replay(vfile, this.getLogFile(resource));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        if (remember) {
+            this.remember(resource, new Snapshot(vfile, (int) replayed[0], replayed[1]));
+        }
+        return vfile;
+    }
+
+    /**
+     * @return the number of records applied and the end of the last complete
+     *         record
+     */
+    private static long[] replay(Document vfile, File log) throws IOException {
+        if (!log.exists()) {
+            return new long[] { 0, 0 };
+        }
+        byte[] data = VFileStoreLog.readFully(log);
+        Element root = vfile.getDocumentElement();
+        long revision = Long.parseLong(root.getAttribute(StringConstants.DOCVERSION));
+        int applied = 0;
+        long end = 0;
+        for (int[] record : VFileStoreLog.records(data)) {
+            end = record[1] + 4;
+            VFileBinaryFormat.Decoder dec = new VFileBinaryFormat.Decoder(data, record[0],
+                    record[1]);
+            long base = Long.parseLong(dec.string());
+            long next = Long.parseLong(dec.string());
+            dec.string(); // v:docTime, also among the attribute changes
+            if (next <= revision) {
+                continue; // from before the checkpoint
+            }
+            if (base != revision) {
+                throw new IOException("V-file log does not continue from revision "
+                        + revision);
+            }
+            VFileStoreLog.apply(vfile, dec);
+            revision = next;
+            applied++;
+        }
+        return new long[] { applied, end };
+    }
+
+    private static void apply(Document vfile, VFileBinaryFormat.Decoder dec)
+            throws IOException {
+        List<Element> elements = VFileStoreLog.number(vfile);
+        int attributeChanges = (int) dec.varint();
+        for (int i = 0; i < attributeChanges; i++) {
+            Element e = VFileStoreLog.get(elements, dec.varint());
+            NamedNodeMap attrs = e.getAttributes();
+            while (attrs.getLength() > 0) {
+                e.removeAttributeNode((Attr) attrs.item(0));
+            }
+            VFileStoreLog.readAttributes(dec, e);
+        }
+        // All changed child lists are emptied before any is filled, so that
+        // moved elements are never appended below themselves.
+        int childChanges = (int) dec.varint();
+        Element[] parents = new Element[childChanges];
+        List<List<Node>> children = new ArrayList<List<Node>>(childChanges);
+        for (int i = 0; i < childChanges; i++) {
+            parents[i] = VFileStoreLog.get(elements, dec.varint());
+            children.add(VFileStoreLog.readChildren(dec, vfile, elements));
+        }
+        for (Element parent : parents) {
+            while (parent.getFirstChild() != null) {
+                parent.removeChild(parent.getFirstChild());
+            }
+        }
+        for (int i = 0; i < childChanges; i++) {
+            for (Node child : children.get(i)) {
+                parents[i].appendChild(child);
+            }
+        }
+    }
+
+    private static void readAttributes(VFileBinaryFormat.Decoder dec, Element element)
+            throws IOException {
+        int count = (int) dec.varint();
+        for (int i = 0; i < count; i++) {
+            String name = dec.string();
+            element.setAttribute(name, dec.string());
+        }
+    }
+
+    private static List<Node> readChildren(VFileBinaryFormat.Decoder dec, Document vfile,
+            List<Element> elements) throws IOException {
+        int count = (int) dec.varint();
+        List<Node> children = new ArrayList<Node>(count);
+        for (int i = 0; i < count; i++) {
+            byte kind = dec.raw();
+            switch (kind) {
+            case CHILD_REFERENCE:
+                children.add(VFileStoreLog.get(elements, dec.varint()));
+                break;
+            case CHILD_ELEMENT:
+                Element e = vfile.createElement(dec.string());
+                VFileStoreLog.readAttributes(dec, e);
+                for (Node child : VFileStoreLog.readChildren(dec, vfile, elements)) {
+                    e.appendChild(child);
+                }
+                children.add(e);
+                break;
+            case CHILD_TEXT:
+                children.add(vfile.createTextNode(dec.string()));
+                break;
+            default:
+                throw new IOException("Unknown child kind " + kind);
+            }
+        }
+        return children;
+    }
+
+    private static Element get(List<Element> elements, long ordinal) throws IOException {
+        if (ordinal >= elements.size()) {
+            throw new IOException("V-file log refers to a missing element.");
+        }
+        return elements.get((int) ordinal);
+    }
+
+    /**
+     * @return the start and end of each complete record, up to the first
+     *         incomplete one
+     */
+    private static List<int[]> records(byte[] data) throws IOException {
+        List<int[]> records = new ArrayList<int[]>();
+        int pos = 0;
+        while (pos < data.length) {
+            VFileBinaryFormat.Decoder dec = new VFileBinaryFormat.Decoder(data, pos,
+                    data.length);
+            long length;
+            try {
+                length = dec.varint();
+            } catch (IOException e) {
+                break;
+            }
+            long end = dec.position() + length;
+            if (end + 4 > data.length || VFileStoreLog.readInt(data, (int) end) != length) {
+                break;
+            }
+            records.add(new int[] { dec.position(), (int) end });
+            pos = (int) end + 4;
+        }
+        return records;
+    }
+
+    /**
+     * Reads the revision from the end of the log, or from the checkpoint if
+     * that is later.
+     */
+    @Override
+    public RepoRevision getHighestCalculated(CmsItemId resource) {
+        RepoRevision checkpoint = super.getHighestCalculated(resource);
+        if (checkpoint == null) {
+            return null;
+        }
+        RepoRevision logged = null;
+        try {
+            VFileBinaryFormat.Decoder last = VFileStoreLog.readLastRecord(this
+                    .getLogFile(resource));
+            if (last != null) {
+                logged = VFileStoreLog.readRevision(last);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        if (logged != null && logged.getNumber() > checkpoint.getNumber()) {
+            return logged;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Reads the content hash from the root attributes in the last record, or
+     * from the checkpoint if that is later.
+     */
+    @Override
+    public String getContentHash(CmsItemId resource) {
+        RepoRevision checkpoint = super.getHighestCalculated(resource);
+        if (checkpoint == null) {
+            return null;
+        }
+        Map<String, String> root;
+        try {
+            VFileBinaryFormat.Decoder last = VFileStoreLog.readLastRecord(this
+                    .getLogFile(resource));
+            if (last == null || VFileStoreLog.readRevision(last).getNumber() <= checkpoint
+                    .getNumber()) {
+                return super.getContentHash(resource);
+            }
+            root = VFileStoreLog.readRootChange(last);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        if (root == null) {
+            return new VFile(this.get(resource)).getContentHash();
+        }
+        return root.get(StringConstants.CONTENTHASH);
+    }
+
+    /**
+     * Appends a record that only sets the attributes of the root element, as
+     * read from the last record or the checkpoint, unless the checkpoint
+     * interval is reached.
+     */
+    @Override
+    public boolean putUnchanged(CmsItemId resource, RepoRevision revision) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        // No longer the stored v-file.
+        this.forget(resource);
+        RepoRevision checkpoint = super.getHighestCalculated(resource);
+        if (checkpoint == null) {
+            return false;
+        }
+        File log = this.getLogFile(resource);
+        RepoRevision previous = checkpoint;
+        Map<String, String> root;
+        try {
+            byte[] data = log.exists() ? VFileStoreLog.readFully(log) : new byte[0];
+            List<int[]> records = VFileStoreLog.records(data);
+            if (records.size() + 1 >= this.checkpointInterval) {
+                return false;
+            }
+            long logEnd = 0;
+            root = null;
+            if (!records.isEmpty()) {
+                int[] last = records.get(records.size() - 1);
+                logEnd = last[1] + 4;
+                VFileBinaryFormat.Decoder dec = new VFileBinaryFormat.Decoder(data,
+                        last[0], last[1]);
+                RepoRevision logged = VFileStoreLog.readRevision(dec);
+                if (logged.getNumber() > checkpoint.getNumber()) {
+                    previous = logged;
+                    root = VFileStoreLog.readRootChange(dec);
+                    if (root == null) {
+                        return false;
+                    }
+                }
+            }
+            if (root == null) {
+                root = this.readRootAttributes(this.getFile(resource));
+            }
+            root.put(StringConstants.DOCVERSION, Long.toString(revision.getNumber()));
+            root.put(StringConstants.DOCTIME, Long.toString(revision.getDate().getTime()));
+            VFileBinaryFormat.Encoder enc = new VFileBinaryFormat.Encoder();
+            enc.string(Long.toString(previous.getNumber()));
+            enc.string(root.get(StringConstants.DOCVERSION));
+            enc.string(root.get(StringConstants.DOCTIME));
+            enc.varint(1);
+            enc.varint(0); // the root element
+            enc.varint(root.size());
+            for (Map.Entry<String, String> a : root.entrySet()) {
+                enc.string(a.getKey());
+                enc.string(a.getValue());
+            }
+            enc.varint(0);
+            if (this.append(log, logEnd, VFileStoreLog.frame(enc)) == -1) {
+                return false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        this.appendRevisionIndex(resource, previous, revision.getNumber(),
+                Collections.<RevisionChange> emptyList());
+        return true;
+    }
+
+    /**
+     * Reads the attribute changes of a record after its revision, see
+     * {@link #readRevision(VFileBinaryFormat.Decoder)}.
+     * 
+     * @return the attributes of the root element, null if the record does not
+     *         set them
+     */
+    private static Map<String, String> readRootChange(VFileBinaryFormat.Decoder dec)
+            throws IOException {
+        // Elements are in document order, so the root comes first.
+        if (dec.varint() == 0 || dec.varint() != 0) {
+            return null;
+        }
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        int count = (int) dec.varint();
+        for (int i = 0; i < count; i++) {
+            String name = dec.string();
+            attributes.put(name, dec.string());
+        }
+        return attributes;
+    }
+
+    /**
+     * @return a decoder at the start of the last complete record, null if
+     *         none
+     */
+    private static VFileBinaryFormat.Decoder readLastRecord(File log) throws IOException {
+        if (!log.exists()) {
+            return null;
+        }
+        RandomAccessFile file = new RandomAccessFile(log, "r");
+        try {
+            long size = file.length();
+            if (size >= 5) {
+                file.seek(size - 4);
+                long length = file.readInt() & 0xFFFFFFFFL;
+                long end = size - 4;
+                long start = end - length;
+                int prefix = VFileStoreLog.varintSize(length);
+                if (start - prefix >= 0) {
+                    byte[] data = new byte[(int) (end - start + prefix)];
+                    file.seek(start - prefix);
+                    file.readFully(data);
+                    VFileBinaryFormat.Decoder dec = new VFileBinaryFormat.Decoder(data, 0,
+                            data.length);
+                    if (dec.varint() == length) {
+                        return dec;
+                    }
+                }
+            }
+        } finally {
+            file.close();
+        }
+        // The last record was cut short, look for the one before it.
+        byte[] data = VFileStoreLog.readFully(log);
+        List<int[]> records = VFileStoreLog.records(data);
+        if (records.isEmpty()) {
+            return null;
+        }
+        int[] last = records.get(records.size() - 1);
+        return new VFileBinaryFormat.Decoder(data, last[0], last[1]);
+    }
+
+    /**
+     * Reads the revision at the start of a record.
+     */
+    private static RepoRevision readRevision(VFileBinaryFormat.Decoder dec)
+            throws IOException {
+        dec.string(); // previous revision
+        String docVersion = dec.string();
+        return VFileStore.toRevision(docVersion, dec.string());
+    }
+
+    /**
+     * Serializes the replayed v-file if there is a log, otherwise reads the
+     * checkpoint directly.
+     */
+    @Override
+    protected InputStream openXml(CmsItemId resource) throws IOException {
+        if (!this.getLogFile(resource).exists()) {
+            return super.openXml(resource);
+        }
+        Document vfile = this.get(resource);
+        if (vfile == null) {
+            return null;
+        }
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        this.write(vfile, xml);
+        return new ByteArrayInputStream(xml.toByteArray());
+    }
+
+    /**
+     * @return the file that the deltas since the checkpoint are appended to,
+     *         next to the v-file
+     */
+    protected File getLogFile(CmsItemId resource) {
+        File file = this.getFile(resource);
+        return new File(file.getParentFile(), file.getName() + ".log");
+    }
+
+    /**
+     * @return the elements of the v-file in document order
+     */
+    private static List<Element> number(Document vfile) {
+        List<Element> elements = new ArrayList<Element>();
+        VFileStoreLog.number(vfile.getDocumentElement(), elements);
+        return elements;
+    }
+
+    private static void number(Element element, List<Element> elements) {
+        elements.add(element);
+        for (Node c = element.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() == Node.ELEMENT_NODE) {
+                VFileStoreLog.number((Element) c, elements);
+            }
+        }
+    }
+
+    private static int varintSize(long n) {
+        int size = 1;
+        while ((n & ~0x7FL) != 0) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFFL) << 24) | ((data[pos + 1] & 0xFFL) << 16)
+                | ((data[pos + 2] & 0xFFL) << 8) | (data[pos + 3] & 0xFFL);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
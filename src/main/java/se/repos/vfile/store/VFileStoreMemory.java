@@ -1,16 +1,27 @@
 package se.repos.vfile.store;
 
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
+import se.repos.vfile.gen.RevisionChange;
+import se.repos.vfile.gen.RevisionIndex;
+import se.repos.vfile.gen.StringConstants;
 import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.RepoRevision;
 
 public class VFileStoreMemory extends VFileStore {
-    private HashMap<CmsItemId, Document> vFileTable;
+    private Map<CmsItemId, Document> vFileTable;
+    private Map<CmsItemId, RepoRevision> revisionTable;
+    private Map<CmsItemId, RevisionIndex> indexTable;
 
     public VFileStoreMemory() {
-        this.vFileTable = new HashMap<CmsItemId, Document>();
+        this.vFileTable = new ConcurrentHashMap<CmsItemId, Document>();
+        this.revisionTable = new ConcurrentHashMap<CmsItemId, RepoRevision>();
+        this.indexTable = new ConcurrentHashMap<CmsItemId, RevisionIndex>();
     }
 
     @Override
@@ -18,7 +29,70 @@ public class VFileStoreMemory extends VFileStore {
         if (resource.getPegRev() != null) {
             throw new IllegalArgumentException("Resource should not have a peg revision.");
         }
+        this.indexTable.remove(resource);
+        this.store(resource, vfile);
+    }
+
+    /**
+     * Adds the changes to the index of the resource if it is up to date with
+     * the previous V-file, otherwise the index is built again when asked for.
+     */
+    @Override
+    public void put(CmsItemId resource, Document vfile, List<RevisionChange> changes) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        RepoRevision previous = this.revisionTable.get(resource);
+        RevisionIndex index = this.indexTable.remove(resource);
+        RepoRevision revision = this.store(resource, vfile);
+        if (previous == null) {
+            index = new RevisionIndex();
+        } else if (index == null
+                || !Long.valueOf(previous.getNumber()).equals(index.getLastRevision())) {
+            return;
+        }
+        index.addAll(revision.getNumber(), changes);
+        this.indexTable.put(resource, index);
+    }
+
+    private RepoRevision store(CmsItemId resource, Document vfile) {
+        Element root = vfile.getDocumentElement();
+        RepoRevision revision = VFileStore.toRevision(
+                root.getAttribute(StringConstants.DOCVERSION),
+                root.getAttribute(StringConstants.DOCTIME));
+        this.revisionTable.put(resource, revision);
         this.vFileTable.put(resource, vfile);
+        return revision;
+    }
+
+    /**
+     * The index is kept in memory once built. Callers must not modify it.
+     */
+    @Override
+    public RevisionIndex getRevisionIndex(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        RevisionIndex index = this.indexTable.get(resource);
+        if (index == null) {
+            index = super.getRevisionIndex(resource);
+            if (index != null) {
+                this.indexTable.put(resource, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Answers from the revision recorded by the last
+     * {@link #put(CmsItemId, Document)} of the resource.
+     */
+    @Override
+    public RepoRevision getHighestCalculated(CmsItemId resource) {
+        if (resource.getPegRev() != null) {
+            throw new IllegalArgumentException("Resource should not have a peg revision.");
+        }
+        return this.revisionTable.get(resource);
     }
 
     @Override
@@ -0,0 +1,136 @@
+package se.repos.vfile.store;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Serializes a v-file DOM through an {@link XMLStreamWriter}. A v-file only
+ * holds elements, attributes and text (comments and processing instructions
+ * are stored as v:comment and v:pi elements), so this is all that is written.
+ * Attribute values are expected to be free of tabs and line breaks, which
+ * holds for the lifetime and name attributes of the v-file vocabulary.
+ */
+public class VFileStreamWriter {
+
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private XMLOutputFactory factory;
+
+    public VFileStreamWriter() {
+        this.factory = XMLOutputFactory.newInstance();
+    }
+
+    /**
+     * Writes the v-file to the given stream as UTF-8. Does not close the
+     * stream.
+     */
+    public void write(Document vfile, OutputStream out) throws XMLStreamException,
+            IOException {
+        Output output = this.open(out, vfile.getXmlVersion());
+        this.writeElement(output.getWriter(), vfile.getDocumentElement());
+        output.close();
+    }
+
+    /**
+     * Starts a v-file document on the given stream, for callers that produce
+     * the nodes themselves.
+     */
+    Output open(OutputStream out, String xmlVersion) throws XMLStreamException,
+            IOException {
+        return new Output(this.factory, out, xmlVersion);
+    }
+
+    /**
+     * An XML document being written as UTF-8.
+     */
+    static class Output {
+        private Writer buffer;
+        private XMLStreamWriter writer;
+
+        private Output(XMLOutputFactory factory, OutputStream out, String xmlVersion)
+                throws XMLStreamException, IOException {
+            // The writer is considerably faster on a Writer than on a stream.
+            this.buffer = new BufferedWriter(new OutputStreamWriter(out, ENCODING),
+                    BUFFER_SIZE);
+            this.writer = factory.createXMLStreamWriter(this.buffer);
+            this.writer.writeStartDocument(ENCODING, xmlVersion == null ? "1.0"
+                    : xmlVersion);
+        }
+
+        XMLStreamWriter getWriter() {
+            return this.writer;
+        }
+
+        /**
+         * Ends the document and flushes it, without closing the stream.
+         */
+        void close() throws XMLStreamException, IOException {
+            this.writer.writeEndDocument();
+            this.writer.close();
+            this.buffer.flush();
+        }
+    }
+
+    private void writeElement(XMLStreamWriter writer, Element element)
+            throws XMLStreamException {
+        Node child = element.getFirstChild();
+        if (child == null) {
+            writer.writeEmptyElement(element.getTagName());
+        } else {
+            writer.writeStartElement(element.getTagName());
+        }
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr a = (Attr) attributes.item(i);
+            writer.writeAttribute(a.getName(), a.getValue());
+        }
+        if (child == null) {
+            return;
+        }
+        for (; child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                this.writeElement(writer, (Element) child);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                VFileStreamWriter.writeText(writer, child.getNodeValue());
+                break;
+            default:
+                throw new UnsupportedOperationException("Unexpected node in v-file: "
+                        + child.getNodeType());
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes carriage returns as character references, or they would be lost
+     * to line break normalization when the v-file is read back.
+     */
+    static void writeText(XMLStreamWriter writer, String text)
+            throws XMLStreamException {
+        int start = 0;
+        int cr;
+        while ((cr = text.indexOf('\r', start)) != -1) {
+            writer.writeCharacters(text.substring(start, cr));
+            writer.writeEntityRef("#13");
+            start = cr + 1;
+        }
+        writer.writeCharacters(text.substring(start));
+    }
+}
@@ -0,0 +1,55 @@
+package se.repos.vfile.store;
+
+/**
+ * A store that can collect the puts of several items and store them as one
+ * commit, for example all items of a changeset. A transaction takes the puts
+ * of the threads that joined it; the puts of other threads are not part of
+ * it, and do not see its v-files until it is committed.
+ */
+public interface VFileTransactionStore {
+
+    /**
+     * Starts a transaction that the calling thread joins.
+     *
+     * @throws IllegalStateException
+     *             If the calling thread is in a transaction already.
+     */
+    Transaction begin();
+
+    /**
+     * The puts collected since {@link VFileTransactionStore#begin()}.
+     */
+    interface Transaction {
+
+        /**
+         * Makes the puts of the calling thread go to this transaction, until
+         * {@link #leave()}.
+         *
+         * @throws IllegalStateException
+         *             If the calling thread is in a transaction already, or
+         *             this one is over.
+         */
+        void join();
+
+        /**
+         * Makes the puts of the calling thread go to the store directly again.
+         */
+        void leave();
+
+        /**
+         * Stores the puts as one commit. The transaction is over and the
+         * calling thread leaves it. Threads that have not left yet fail on
+         * their next put.
+         *
+         * @throws IllegalStateException
+         *             If the transaction is over.
+         */
+        void commit();
+
+        /**
+         * Drops the puts, unless the transaction was committed. The
+         * transaction is over and the calling thread leaves it.
+         */
+        void rollback();
+    }
+}
@@ -0,0 +1,1324 @@
+package se.repos.vfile.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import se.repos.vfile.VFileCalculatorImpl;
+import se.repos.vfile.VFileMetrics;
+import se.repos.vfile.VFileMetricsHistogram;
+import se.repos.vfile.VFileXmlPool;
+import se.repos.vfile.gen.Axis;
+import se.repos.vfile.gen.CHANGE;
+import se.repos.vfile.gen.NoMatchException;
+import se.repos.vfile.gen.Nodetype;
+import se.repos.vfile.gen.RevisionChange;
+import se.repos.vfile.gen.RevisionIndex;
+import se.repos.vfile.gen.SimpleXPath;
+import se.repos.vfile.gen.TaggedNode;
+import se.repos.vfile.gen.VFile;
+import se.repos.vfile.gen.VFileAnnotator;
+import se.repos.vfile.gen.VFileResolver;
+import se.repos.vfile.gen.XmlChange;
+import se.repos.vfile.gen.XmlDiff;
+import se.repos.vfile.gen.XmlDiffAdapter;
+import se.repos.vfile.gen.XmlDiffNative;
+import se.repos.vfile.store.CachingVFileStore;
+import se.repos.vfile.store.VFileStore;
+import se.repos.vfile.store.VFileStoreBinary;
+import se.repos.vfile.store.VFileStoreDisk;
+import se.repos.vfile.store.VFileStoreEmbedded;
+import se.repos.vfile.store.VFileStoreLog;
+import se.repos.vfile.store.VFileMapped;
+import se.repos.vfile.store.VFileStoreMemory;
+import se.repos.vfile.store.VFileTransactionStore;
+import se.repos.vfile.store.VFileStreamWriter;
+import se.simonsoft.cms.item.CmsItemId;
+import se.simonsoft.cms.item.CmsItemPath;
+import se.simonsoft.cms.item.CmsRepository;
+import se.simonsoft.cms.item.RepoRevision;
+import se.simonsoft.cms.item.impl.CmsItemIdUrl;
+
+/**
+ * Runs the test corpora through the stores that keep a v-file in some other
+ * form than a plain XML file, and compares what they read back with
+ * {@link VFileStoreDisk}.
+ */
+public class VFileStoreTest {
+
+    // set to false to examine stored files after test
+    private boolean doCleanup = true;
+
+    private File testDir = null;
+
+    private CmsItemId testID = new CmsItemIdUrl(new CmsRepository("/anyparent", "anyname"),
+            new CmsItemPath("/x.xml"));
+
+    @Before
+    public void setUp() throws IOException {
+        this.testDir = File.createTempFile("test-" + this.getClass().getName(), "");
+        this.testDir.delete();
+        this.testDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (this.doCleanup) {
+            FileUtils.deleteDirectory(this.testDir);
+        } else {
+            System.out.println("Test data kept at: " + this.testDir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return the revisions of a corpus, oldest first
+     */
+    private static File[] getCorpus(String name) {
+        File[] files = new File("src/test/resources/se/repos/vfile/" + name)
+                .listFiles(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String fileName) {
+                        return fileName.endsWith(".xml");
+                    }
+                });
+        assertNotNull("Missing test corpus " + name, files);
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return revisions of a corpus where some have the content of the one
+     *         before
+     */
+    private static File[] getUnchangedCorpus() {
+        File[] corpus = getCorpus("5k-10revs");
+        return new File[] { corpus[0], corpus[1], corpus[1], corpus[2], corpus[3],
+                corpus[3], corpus[3], corpus[4] };
+    }
+
+    private static RepoRevision getRevision(int i) {
+        return new RepoRevision(i + 1, new Date(1000000000000L + i * 60000L));
+    }
+
+    /**
+     * Calculates the revisions from, inclusive, to, exclusive, of the corpus,
+     * each from the v-file stored for the one before.
+     */
+    private void calculate(VFileStore store, File[] corpus, int from, int to) {
+        this.calculate(store, this.testID, corpus, from, to);
+    }
+
+    private void calculate(VFileStore store, CmsItemId itemId, File[] corpus, int from,
+            int to) {
+        VFileCalculatorImpl calculator = new VFileCalculatorImpl(store)
+                .setXmlDiff(new XmlDiffNative());
+        for (int i = from; i < to; i++) {
+            calculator.increment(itemId, i == 0 ? null : getRevision(i - 1),
+                    getRevision(i), new InputSource(corpus[i].toURI().toString()));
+        }
+    }
+
+    /**
+     * Calculates the revisions from, inclusive, to, exclusive, of the corpus
+     * in one increment.
+     */
+    private void calculateBatch(VFileStore store, File[] corpus, int from, int to) {
+        List<RepoRevision> revisions = new ArrayList<RepoRevision>();
+        List<InputSource> contents = new ArrayList<InputSource>();
+        for (int i = from; i < to; i++) {
+            revisions.add(getRevision(i));
+            contents.add(new InputSource(corpus[i].toURI().toString()));
+        }
+        new VFileCalculatorImpl(store).setXmlDiff(new XmlDiffNative()).increment(
+                this.testID, from == 0 ? null : getRevision(from - 1), revisions, contents);
+    }
+
+    private static String serialize(RevisionIndex index) throws IOException {
+        assertNotNull("Expected a revision index", index);
+        StringWriter out = new StringWriter();
+        index.write(out);
+        return out.toString();
+    }
+
+    private static String serialize(Document vfile) throws Exception {
+        assertNotNull("Expected a stored v-file", vfile);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new VFileStreamWriter().write(vfile, out);
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * @return the v-file of the revisions up to, exclusive, of the corpus
+     */
+    private String getExpected(File[] corpus, int to) throws Exception {
+        VFileStore disk = new VFileStoreDisk(new File(this.testDir, "disk-" + to).getPath());
+        this.calculate(disk, corpus, 0, to);
+        return serialize(disk.get(this.testID));
+    }
+
+    @Test
+    public void testLog() throws Exception {
+        File[] corpus = getCorpus("50k-27revs");
+        File dir = new File(this.testDir, "log");
+        // A checkpoint within the corpus, and log records on both sides.
+        this.calculate(new VFileStoreLog(dir.getPath(), 8), corpus, 0, corpus.length);
+        VFileStore log = new VFileStoreLog(dir.getPath(), 8);
+        assertEquals(this.getExpected(corpus, corpus.length), serialize(log.get(this.testID)));
+        assertEquals(corpus.length, log.getHighestCalculated(this.testID).getNumber());
+
+        // Without room to remember the numbering every revision is a checkpoint.
+        File small = new File(this.testDir, "small");
+        this.calculate(new VFileStoreLog(small.getPath(), 8, 10), corpus, 0, 3);
+        assertFalse(new File(small, "x.xml.log").exists());
+        assertEquals(this.getExpected(corpus, 3),
+                serialize(new VFileStoreLog(small.getPath()).get(this.testID)));
+    }
+
+    @Test
+    public void testLogTornRecord() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        File dir = new File(this.testDir, "log");
+        this.calculate(new VFileStoreLog(dir.getPath()), corpus, 0, 6);
+        File logFile = new File(dir, "x.xml.log");
+        long complete = logFile.length();
+        this.calculate(new VFileStoreLog(dir.getPath()), corpus, 6, 7);
+        assertTrue("Expected revision 7 to be appended", logFile.length() > complete);
+
+        // A write that failed part way into the record of revision 7.
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            file.setLength(complete + (file.length() - complete) / 2);
+        } finally {
+            file.close();
+        }
+        VFileStore torn = new VFileStoreLog(dir.getPath());
+        assertEquals(6, torn.getHighestCalculated(this.testID).getNumber());
+        assertEquals(this.getExpected(corpus, 6), serialize(torn.get(this.testID)));
+
+        // Calculated again, the records after the torn one must be read too.
+        this.calculate(torn, corpus, 6, corpus.length);
+        VFileStore log = new VFileStoreLog(dir.getPath());
+        assertEquals(corpus.length, log.getHighestCalculated(this.testID).getNumber());
+        assertEquals(this.getExpected(corpus, corpus.length), serialize(log.get(this.testID)));
+    }
+
+    @Test
+    public void testBatchRevisionIndex() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        VFileStore single = new VFileStoreDisk(new File(this.testDir, "single").getPath());
+        this.calculate(single, corpus, 0, corpus.length);
+        String expected = serialize(single.getRevisionIndex(this.testID));
+
+        File dir = new File(this.testDir, "batch");
+        VFileStore disk = new VFileStoreDisk(dir.getPath());
+        this.calculateBatch(disk, corpus, 0, 4);
+        this.calculateBatch(disk, corpus, 4, corpus.length);
+        // Kept from the changes, not built from the v-file when asked for.
+        assertTrue(new File(dir, "x.xml.revisions").exists());
+        assertEquals(expected, serialize(disk.getRevisionIndex(this.testID)));
+
+        VFileStore memory = new VFileStoreMemory();
+        this.calculateBatch(memory, corpus, 0, 4);
+        this.calculateBatch(memory, corpus, 4, corpus.length);
+        assertEquals(expected, serialize(memory.getRevisionIndex(this.testID)));
+    }
+
+    @Test
+    public void testBatchWithoutStoredVFile() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        VFileStore batch = new VFileStoreDisk(new File(this.testDir, "batch").getPath());
+        this.calculateBatch(batch, corpus, 3, 6);
+        assertEquals(6, batch.getHighestCalculated(this.testID).getNumber());
+
+        // As if the item was added in the first revision of the batch.
+        VFileStore added = new VFileStoreDisk(new File(this.testDir, "added").getPath());
+        new VFileCalculatorImpl(added).setXmlDiff(new XmlDiffNative()).increment(
+                this.testID, null, getRevision(3),
+                new InputSource(corpus[3].toURI().toString()));
+        this.calculate(added, corpus, 4, 6);
+        assertEquals(serialize(added.get(this.testID)), serialize(batch.get(this.testID)));
+    }
+
+    @Test
+    public void testEmbedded() throws Exception {
+        File[] corpus = getCorpus("50k-27revs");
+        File file = new File(this.testDir, "vfiles");
+        VFileStoreEmbedded embedded = new VFileStoreEmbedded(file.getPath());
+        long written = 0;
+        try {
+            for (int i = 0; i < corpus.length; i++) {
+                long size = file.length();
+                this.calculate(embedded, corpus, i, i + 1);
+                written += Math.max(0, file.length() - size);
+            }
+        } finally {
+            embedded.close();
+        }
+        assertTrue("Expected the file to be compacted", file.length() < written);
+        assertFalse(new File(this.testDir, "vfiles.bak").exists());
+
+        embedded = new VFileStoreEmbedded(file.getPath());
+        try {
+            assertEquals(corpus.length, embedded.getHighestCalculated(this.testID).getNumber());
+            assertEquals(this.getExpected(corpus, corpus.length),
+                    serialize(embedded.get(this.testID)));
+        } finally {
+            embedded.close();
+        }
+    }
+
+    @Test
+    public void testEmbeddedTornChunk() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        File file = new File(this.testDir, "vfiles");
+        VFileStoreEmbedded embedded = new VFileStoreEmbedded(file.getPath());
+        this.calculate(embedded, corpus, 0, 6);
+        long complete = file.length();
+        this.calculate(embedded, corpus, 6, 7);
+        embedded.close();
+
+        // A commit that failed part way into its chunk.
+        RandomAccessFile data = new RandomAccessFile(file, "rw");
+        try {
+            data.setLength(complete + (data.length() - complete) / 2);
+        } finally {
+            data.close();
+        }
+        embedded = new VFileStoreEmbedded(file.getPath());
+        try {
+            assertEquals(complete, file.length());
+            assertEquals(6, embedded.getHighestCalculated(this.testID).getNumber());
+            assertEquals(this.getExpected(corpus, 6), serialize(embedded.get(this.testID)));
+            this.calculate(embedded, corpus, 6, corpus.length);
+        } finally {
+            embedded.close();
+        }
+        embedded = new VFileStoreEmbedded(file.getPath());
+        try {
+            assertEquals(this.getExpected(corpus, corpus.length),
+                    serialize(embedded.get(this.testID)));
+        } finally {
+            embedded.close();
+        }
+    }
+
+    @Test
+    public void testEmbeddedCommit() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        File file = new File(this.testDir, "vfiles");
+        VFileStoreEmbedded embedded = new VFileStoreEmbedded(file.getPath());
+        VFileTransactionStore.Transaction transaction = embedded.begin();
+        this.calculate(embedded, corpus, 0, 3);
+        assertEquals(3, embedded.getHighestCalculated(this.testID).getNumber());
+        final VFileStoreEmbedded store = embedded;
+        final boolean[] visible = { true };
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                visible[0] = store.has(VFileStoreTest.this.testID);
+            }
+        });
+        other.start();
+        other.join();
+        assertFalse("Uncommitted puts are the transaction's own", visible[0]);
+        transaction.rollback();
+        assertFalse(embedded.has(this.testID));
+
+        transaction = embedded.begin();
+        this.calculate(embedded, corpus, 0, 3);
+        transaction.commit();
+        embedded.begin();
+        this.calculate(embedded, corpus, 3, 5);
+        embedded.close(); // drops the uncommitted puts
+
+        embedded = new VFileStoreEmbedded(file.getPath());
+        try {
+            assertEquals(3, embedded.getHighestCalculated(this.testID).getNumber());
+            assertEquals(this.getExpected(corpus, 3), serialize(embedded.get(this.testID)));
+        } finally {
+            embedded.close();
+        }
+    }
+
+    @Test
+    public void testEmbeddedBackup() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        File file = new File(this.testDir, "vfiles");
+        File backup = new File(this.testDir, "vfiles.bak");
+        VFileStoreEmbedded embedded = new VFileStoreEmbedded(file.getPath());
+        this.calculate(embedded, corpus, 0, 4);
+        embedded.close();
+        String expected = this.getExpected(corpus, 4);
+
+        // Interrupted after the file was moved aside.
+        assertTrue(file.renameTo(backup));
+        embedded = new VFileStoreEmbedded(file.getPath());
+        try {
+            assertFalse(backup.exists());
+            assertEquals(expected, serialize(embedded.get(this.testID)));
+        } finally {
+            embedded.close();
+        }
+
+        // Interrupted after the compacted file was moved in.
+        FileUtils.writeStringToFile(backup, "VFS");
+        embedded = new VFileStoreEmbedded(file.getPath());
+        try {
+            assertFalse(backup.exists());
+            assertEquals(expected, serialize(embedded.get(this.testID)));
+        } finally {
+            embedded.close();
+        }
+    }
+
+    @Test
+    public void testHeaderOnly() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        String[] names = { "disk", "binary" };
+        for (String name : names) {
+            File dir = new File(this.testDir, name);
+            VFileStore store = name.equals("disk") ? new VFileStoreDisk(dir.getPath())
+                    : new VFileStoreBinary(dir.getPath());
+            this.calculate(store, corpus, 0, corpus.length);
+            String contentHash = store.getContentHash(this.testID);
+            assertNotNull(name, contentHash);
+
+            // Only the header is left to read.
+            File file = new File(dir, "x.xml");
+            long header = file.length() / 2;
+            if (!(store instanceof VFileStoreBinary)) {
+                String xml = FileUtils.readFileToString(file);
+                header = xml.indexOf('>', xml.indexOf("<v:file")) + 1;
+            }
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(header);
+            } finally {
+                truncated.close();
+            }
+            assertEquals(name, corpus.length, store.getHighestCalculated(this.testID)
+                    .getNumber());
+            assertEquals(name, getRevision(corpus.length - 1).getDate(), store
+                    .getHighestCalculated(this.testID).getDate());
+            assertEquals(name, contentHash, store.getContentHash(this.testID));
+            assertTrue(name, store.has(this.testID, getRevision(corpus.length - 1)));
+            assertFalse(name, store.has(this.testID, getRevision(corpus.length)));
+            try {
+                store.get(this.testID);
+                fail("Expected " + name + " to read the whole v-file in get");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        }
+
+        VFileStore memory = new VFileStoreMemory();
+        assertNull(memory.getHighestCalculated(this.testID));
+        assertFalse(memory.has(this.testID, getRevision(0)));
+        this.calculate(memory, corpus, 0, 3);
+        assertEquals(3, memory.getHighestCalculated(this.testID).getNumber());
+        assertTrue(memory.has(this.testID, getRevision(2)));
+        assertFalse(memory.has(this.testID, getRevision(3)));
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        File[] corpus = getUnchangedCorpus();
+        String expected = this.getExpected(corpus, corpus.length);
+        String expectedIndex = serialize(new VFileStoreDisk(new File(this.testDir, "disk-"
+                + corpus.length).getPath()).getRevisionIndex(this.testID));
+        File embeddedFile = new File(this.testDir, "vfiles");
+        VFileStoreEmbedded embedded = new VFileStoreEmbedded(embeddedFile.getPath());
+        VFileStore[] stores = {
+                // A checkpoint after the unchanged revisions 3 and 6.
+                new VFileStoreLog(new File(this.testDir, "log").getPath(), 3),
+                new VFileStoreBinary(new File(this.testDir, "binary").getPath()),
+                new CachingVFileStore(new VFileStoreLog(new File(this.testDir, "cached")
+                        .getPath()), 1000000), embedded, new VFileStoreMemory() };
+        try {
+            for (VFileStore store : stores) {
+                this.calculate(store, corpus, 0, corpus.length);
+                Document vfile = store.get(this.testID);
+                assertEquals(store.getClass().getName(), expected, serialize(vfile));
+                assertEquals(corpus.length, store.getHighestCalculated(this.testID)
+                        .getNumber());
+                assertEquals(new VFile(vfile).getContentHash(),
+                        store.getContentHash(this.testID));
+                assertEquals(expectedIndex, serialize(store.getRevisionIndex(this.testID)));
+            }
+        } finally {
+            embedded.close();
+        }
+        embedded = new VFileStoreEmbedded(embeddedFile.getPath());
+        try {
+            assertEquals(expected, serialize(embedded.get(this.testID)));
+            assertEquals(expectedIndex, serialize(embedded.getRevisionIndex(this.testID)));
+        } finally {
+            embedded.close();
+        }
+    }
+
+    @Test
+    public void testUnchangedHeaderOnly() throws Exception {
+        File[] corpus = getUnchangedCorpus();
+        File dir = new File(this.testDir, "log");
+        this.calculate(new VFileStoreLog(dir.getPath()), corpus, 0, 5);
+        File checkpoint = new File(dir, "x.xml");
+        File logFile = new File(dir, "x.xml.log");
+        long checkpointSize = checkpoint.length();
+        long logSize = logFile.length();
+        this.calculate(new VFileStoreLog(dir.getPath()), corpus, 5, 7);
+        assertEquals(checkpointSize, checkpoint.length());
+        assertTrue("Expected root attributes only", logFile.length() - logSize < 512);
+
+        File file = new File(this.testDir, "vfiles");
+        VFileStoreEmbedded embedded = new VFileStoreEmbedded(file.getPath());
+        try {
+            this.calculate(embedded, corpus, 0, 5);
+            long size = file.length();
+            this.calculate(embedded, corpus, 5, 7);
+            assertTrue("Expected version entries only", file.length() - size < 512);
+            assertEquals(this.getExpected(corpus, 7), serialize(embedded.get(this.testID)));
+        } finally {
+            embedded.close();
+        }
+    }
+
+    @Test
+    public void testUnchangedBatch() throws Exception {
+        File[] corpus = getUnchangedCorpus();
+        String expected = this.getExpected(corpus, corpus.length);
+        VFileStore[] stores = {
+                new VFileStoreDisk(new File(this.testDir, "disk").getPath()),
+                new VFileStoreLog(new File(this.testDir, "log").getPath()),
+                new VFileStoreMemory() };
+        for (VFileStore store : stores) {
+            // Batches that start and end with unchanged revisions.
+            this.calculateBatch(store, corpus, 0, 2);
+            this.calculateBatch(store, corpus, 2, 6);
+            assertEquals(6, store.getHighestCalculated(this.testID).getNumber());
+            this.calculateBatch(store, corpus, 6, corpus.length);
+            assertEquals(store.getClass().getName(), expected,
+                    serialize(store.get(this.testID)));
+        }
+    }
+
+    @Test
+    public void testUnchangedSkip() throws Exception {
+        File[] corpus = getUnchangedCorpus();
+        File dir = new File(this.testDir, "log");
+        VFileStore log = new VFileStoreLog(dir.getPath());
+        VFileCalculatorImpl calculator = new VFileCalculatorImpl(log).setXmlDiff(
+                new XmlDiffNative()).setUnchanged(VFileCalculatorImpl.Unchanged.SKIP);
+        for (int i = 0; i < 3; i++) {
+            calculator.increment(this.testID, i == 0 ? null : getRevision(i - 1),
+                    getRevision(i), new InputSource(corpus[i].toURI().toString()));
+        }
+        assertEquals(2, log.getHighestCalculated(this.testID).getNumber());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        VFileMetricsHistogram metrics = new VFileMetricsHistogram();
+        VFileCalculatorImpl calculator = new VFileCalculatorImpl(new VFileStoreMemory())
+                .setXmlDiff(new XmlDiffNative()).setMetrics(metrics);
+        for (int i = 0; i < corpus.length; i++) {
+            calculator.increment(this.testID, i == 0 ? null : getRevision(i - 1),
+                    getRevision(i), new InputSource(corpus[i].toURI().toString()));
+        }
+        assertEquals(corpus.length, metrics.getDocumentNodes().getCount());
+        assertEquals(corpus.length, metrics.getVFileNodes().getCount());
+        assertTrue(metrics.getVFileNodes().getMax() > metrics.getDocumentNodes().getMax());
+        assertEquals(corpus.length - 1, metrics.getPhase(VFileMetrics.Phase.DIFF)
+                .getCount());
+        assertEquals(corpus.length, metrics.getPhase(VFileMetrics.Phase.STORE).getCount());
+        assertEquals(corpus.length - 1, metrics.getReorders().getCount());
+        long differences = 0;
+        for (CHANGE change : CHANGE.values()) {
+            differences += metrics.getDifferences(change);
+        }
+        assertTrue(differences > 0);
+
+        // Nodes are only counted for metrics that want them.
+        VFileMetricsHistogram uncounted = new VFileMetricsHistogram() {
+            @Override
+            public boolean wantsNodeCounts() {
+                return false;
+            }
+        };
+        calculator.setMetrics(uncounted).increment(this.testID, null, getRevision(0),
+                new InputSource(corpus[0].toURI().toString()));
+        assertEquals(0, uncounted.getDocumentNodes().getCount());
+        assertEquals(1, uncounted.getPhase(VFileMetrics.Phase.STORE).getCount());
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        String hash = VFile.getContentHash(parse("<a x='1' y='2'><b>text</b><!--c--></a>"));
+        assertTrue(hash, hash.matches("[0-9a-f]{64}"));
+        assertEquals(hash, VFile.getContentHash(parse(
+                "<a y='2' x='1'>\n  <b> text </b>\n  <!-- c -->\n</a>")));
+        assertFalse(hash.equals(VFile.getContentHash(parse(
+                "<a x='1' y='2'><b>text2</b><!--c--></a>"))));
+        assertFalse("Names and values are delimited", VFile.getContentHash(
+                parse("<a xy='1'/>")).equals(VFile.getContentHash(parse("<a x='y1'/>"))));
+        assertFalse(hash.equals(VFile.getContentHash(parse(
+                "<a x='1' y='2'><b/>text<!--c--></a>"))));
+    }
+
+    @Test
+    public void testReorder() throws Exception {
+        String first = "<r><a/><b/><c/><d/><e/><f/><g/><h/></r>";
+        // The old indexes in the new order are 2 0 1 7 3 4 5 6, of which the
+        // longest run in order is 0 1 3 4 5 6, so only c and h move.
+        this.assertReorder(first, "<r><c/><a/><b/><h/><d/><e/><f/><g/></r>", 2);
+        // Shifted by an insertion, but in order.
+        this.assertReorder(first, "<r><x/><a/><b/><c/><d/><e/><f/><g/><h/></r>", 0);
+        this.assertReorder(first, "<r><b/><c/><d/><e/><f/><g/><h/></r>", 0);
+        // The inserted element is placed without moving a or b.
+        this.assertReorder(first, "<r><c/><x/><a/><b/><d/><e/><f/><g/><h/></r>", 1);
+        this.assertReorder(first, "<r><h/><g/><f/><e/><d/><c/><b/><a/></r>", 7);
+        this.assertReorder(first, "<r><b/><a/><d/><c/><f/><e/><h/><g/></r>", 4);
+    }
+
+    /**
+     * Checks that only the elements outside a longest run in order are
+     * reported and moved, and that moving each on its own gives the same
+     * v-file.
+     */
+    private void assertReorder(String first, String second, int moves) throws Exception {
+        int reported = 0;
+        for (XmlChange change : new XmlDiffNative().diff(parse(first), parse(second))) {
+            if (change.change == CHANGE.ELEM_CHILDREN_ORDER) {
+                reported++;
+            }
+        }
+        assertEquals(second, moves, reported);
+
+        String[] vfiles = new String[2];
+        for (int i = 0; i < vfiles.length; i++) {
+            VFileMetricsHistogram metrics = new VFileMetricsHistogram();
+            VFile vfile = VFile.normalizeDocument(parse(first), "1000", "1");
+            vfile.setMetrics(metrics);
+            vfile.setPlannedReorder(i == 0);
+            vfile.update(parse(second), "2000", "2", new XmlDiffNative());
+            assertEquals(second, VFile.getContentHash(parse(second)),
+                    VFile.getContentHash(vfile.getLiveDocument()));
+            assertEquals(second, moves, metrics.getReorders().getTotal());
+            vfiles[i] = serialize(vfile.toDocument());
+        }
+        assertEquals(second, vfiles[0], vfiles[1]);
+    }
+
+    @Test
+    public void testXmlPool() throws Exception {
+        final File[] corpus = getCorpus("5k-10revs");
+        Callable<List<Object>> parse = new Callable<List<Object>>() {
+            @Override
+            public List<Object> call() throws Exception {
+                List<Object> results = new ArrayList<Object>();
+                results.add(VFileXmlPool.getDocumentBuilder());
+                for (int round = 0; round < 5; round++) {
+                    for (File file : corpus) {
+                        DocumentBuilder db = VFileXmlPool.getDocumentBuilder();
+                        assertTrue(db == results.get(0));
+                        StringWriter out = new StringWriter();
+                        VFileXmlPool.getTransformer().transform(
+                                new DOMSource(db.parse(file)), new StreamResult(out));
+                        results.add(out.toString());
+                    }
+                }
+                return results;
+            }
+        };
+        List<Object> expected = parse.call();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(parse));
+            }
+            Set<Object> builders = Collections.newSetFromMap(
+                    new IdentityHashMap<Object, Boolean>());
+            builders.add(expected.get(0));
+            for (Future<List<Object>> future : futures) {
+                List<Object> results = future.get();
+                assertEquals(expected.subList(1, expected.size()), results.subList(1,
+                        results.size()));
+                builders.add(results.get(0));
+            }
+            assertEquals("Expected a builder per thread", 5, builders.size());
+        } finally {
+            executor.shutdown();
+        }
+
+        // Reset before each use.
+        Transformer transformer = VFileXmlPool.getTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        assertTrue(transformer == VFileXmlPool.getTransformer());
+        assertEquals("no", transformer.getOutputProperty(OutputKeys.INDENT));
+        // The VFileDocumentBuilderFactory configuration.
+        Element element = parse("<a>x<![CDATA[y]]></a>").getDocumentElement();
+        assertEquals(1, element.getChildNodes().getLength());
+        assertEquals("xy", element.getFirstChild().getNodeValue());
+    }
+
+    @Test
+    public void testStreamWriter() throws Exception {
+        Document document = parse("<a t='&quot;&lt;&amp;&apos;&gt; \u00e9'>x &lt; y &amp; z"
+                + " \u2713 ]]&gt;<!--c &amp; d--><?pi a<b?><b/><![CDATA[<c>]]></a>");
+        Document vfile = VFile.normalizeDocument(document, "1000", "1").toDocument();
+        String xml = serialize(vfile);
+        assertTrue(xml, xml.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"));
+        assertTrue(xml, vfile.getDocumentElement().isEqualNode(
+                parse(xml).getDocumentElement()));
+
+        // Written through a temporary file that is renamed into place.
+        File dir = new File(this.testDir, "disk");
+        VFileStore disk = new VFileStoreDisk(dir.getPath());
+        disk.put(this.testID, vfile);
+        disk.put(this.testID, vfile);
+        assertEquals(Arrays.asList("x.xml"), Arrays.asList(dir.list()));
+        assertEquals(xml, serialize(disk.get(this.testID)));
+    }
+
+    @Test
+    public void testPreviousFromVFile() throws Exception {
+        String[] corpora = { "5k-10revs", "50k-27revs", "techdoc-demo1",
+                "techdoc-demo1-norid" };
+        for (String name : corpora) {
+            File[] corpus = getCorpus(name);
+            // Parses the previous revision and diffs the two documents.
+            VFileStore store = new VFileStoreMemory();
+            VFileCalculatorImpl calculator = new VFileCalculatorImpl(store)
+                    .setXmlDiff(new XmlDiffNative());
+            for (int i = 0; i < corpus.length; i++) {
+                calculator.increment(this.testID, i == 0 ? null : getRevision(i - 1),
+                        i == 0 ? null : new InputSource(corpus[i - 1].toURI().toString()),
+                        getRevision(i), new InputSource(corpus[i].toURI().toString()));
+            }
+            // Calculated with the previous snapshot taken from the v-file.
+            assertEquals(name, this.getExpected(corpus, corpus.length),
+                    serialize(store.get(this.testID)));
+            FileUtils.deleteDirectory(new File(this.testDir, "disk-" + corpus.length));
+        }
+
+        // Namespace declarations and the prolog are not in the v-file.
+        String first = "<!--p--><r xmlns:x='urn:x'><x:a/><b>1</b></r>";
+        String second = "<!--p--><r xmlns:x='urn:x'><b>2</b><x:a/></r>";
+        VFile derived = VFile.normalizeDocument(parse(first), "1000", "1");
+        derived.update(parse(second), "2000", "2", new XmlDiffNative());
+        VFile parsed = VFile.normalizeDocument(parse(first), "1000", "1");
+        parsed.update(parse(first), parse(second), "2000", "2", new XmlDiffNative());
+        assertEquals(serialize(parsed.toDocument()), serialize(derived.toDocument()));
+    }
+
+    /**
+     * The update benchmark times single steps, each on a copy of the v-file
+     * of the revision before, which must give what a run through all
+     * revisions gives.
+     */
+    @Test
+    public void testUpdateSteps() throws Exception {
+        String[] corpora = { "techdoc-demo1", "5k-10revs", "50k-27revs" };
+        for (String name : corpora) {
+            File[] corpus = getCorpus(name);
+            List<Document> documents = new ArrayList<Document>();
+            for (File file : corpus) {
+                documents.add(VFileXmlPool.getDocumentBuilder().parse(file));
+            }
+            List<Document> vfiles = new ArrayList<Document>();
+            VFile vfile = VFile.normalizeDocument(documents.get(0), "1000", "1");
+            vfiles.add((Document) vfile.toDocument().cloneNode(true));
+            for (int i = 1; i < corpus.length; i++) {
+                vfile.update(documents.get(i - 1), documents.get(i), 1000 * (i + 1) + "", ""
+                        + (i + 1), new XmlDiffNative());
+                vfiles.add((Document) vfile.toDocument().cloneNode(true));
+            }
+            vfile.matchDocument(documents.get(corpus.length - 1));
+            for (int i = 1; i < corpus.length; i++) {
+                VFile step = new VFile((Document) vfiles.get(i - 1).cloneNode(true));
+                step.update(documents.get(i - 1), documents.get(i), 1000 * (i + 1) + "", ""
+                        + (i + 1), new XmlDiffNative());
+                assertEquals(name + " " + i, serialize(vfiles.get(i)),
+                        serialize(step.toDocument()));
+            }
+        }
+    }
+
+    @Test
+    public void testResolver() throws Exception {
+        String[] versions = { "<r a='1'><?pi d?><p>one</p><!--c--></r>",
+                "<r a='2'><?pi d?><p>one</p><p>two</p></r>",
+                "<r a='2' b='x'><?pi d?><p>two</p><q/></r>" };
+        VFile vfile = VFile.normalizeDocument(parse(versions[0]), "1000", "1");
+        for (int i = 1; i < versions.length; i++) {
+            vfile.update(parse(versions[i]), 1000 * (i + 1) + "", "" + (i + 1),
+                    new XmlDiffNative());
+        }
+        byte[] xml = serialize(vfile.toDocument()).getBytes("UTF-8");
+        for (int i = 0; i < versions.length; i++) {
+            assertEquals(versions[i], VFile.getContentHash(parse(versions[i])),
+                    VFile.getContentHash(resolve(new VFileResolver(i + 1), xml)));
+        }
+        // Revision 1 with the changes of revision 3, which kept the first p
+        // with new text. There is no PI in a discontinuous selection.
+        Document expected = parse("<r a='1' b='x'><p>two</p><q/><!--c--></r>");
+        assertEquals(VFile.getContentHash(expected), VFile.getContentHash(resolve(
+                new VFileResolver(1, 3), xml)));
+
+        VFileResolver resolver = new VFileResolver(2, 4);
+        assertTrue(resolver.isIncluded("2", "NOW"));
+        assertTrue(resolver.isIncluded("4", "5"));
+        assertTrue(resolver.isIncluded("1", "3"));
+        assertFalse(resolver.isIncluded("3", "NOW"));
+        assertFalse(resolver.isIncluded("1", "2"));
+        assertFalse(resolver.isIncluded("1", "4"));
+    }
+
+    @Test
+    public void testAnnotator() throws Exception {
+        String[] versions = { "<r a='1'><?pi d?><p>one</p><!--c--></r>",
+                "<r a='2'><?pi d?><p>one</p><p>two</p></r>",
+                "<r a='2' b='x'><?pi d?><p>two</p><q/></r>" };
+        VFile vfile = VFile.normalizeDocument(parse(versions[0]), "1000", "1");
+        for (int i = 1; i < versions.length; i++) {
+            vfile.update(parse(versions[i]), 1000 * (i + 1) + "", "" + (i + 1),
+                    new XmlDiffNative());
+        }
+        // Only the live tree, without the comment and the PI.
+        String children = "\"children\":[{\"name\":\"p\",\"start\":1,\"children\":"
+                + "[{\"text\":\"two\",\"start\":3}],\"age\":3},{\"name\":\"q\","
+                + "\"start\":3,\"children\":[],\"age\":3}],\"age\":3}}";
+        assertEquals("{\"version\":3,\"root\":{\"name\":\"r\",\"start\":1," + children,
+                annotate(VFileAnnotator.Mode.IGNORE_ATTRIBUTES, vfile));
+        assertEquals("{\"version\":3,\"root\":{\"name\":\"r\",\"start\":3," + children,
+                annotate(VFileAnnotator.Mode.WITH_ATTRIBUTES, vfile));
+
+        // A removed attribute changes the element.
+        vfile = VFile.normalizeDocument(parse("<r a='1'><p/></r>"), "1000", "1");
+        vfile.update(parse("<r><p/></r>"), "2000", "2", new XmlDiffNative());
+        assertEquals("{\"version\":2,\"root\":{\"name\":\"r\",\"start\":2,\"children\":"
+                + "[{\"name\":\"p\",\"start\":1,\"children\":[],\"age\":1}],\"age\":2}}",
+                annotate(VFileAnnotator.Mode.WITH_ATTRIBUTES, vfile));
+
+        vfile = VFile.normalizeDocument(parse("<r>a \"b\" \\ c&#10;d\u00e9</r>"), "1000",
+                "1");
+        assertEquals("{\"version\":1,\"root\":{\"name\":\"r\",\"start\":1,\"children\":"
+                + "[{\"text\":\"a \\\"b\\\" \\\\ c\\nd\u00e9\",\"start\":1}],\"age\":1}}",
+                annotate(VFileAnnotator.Mode.IGNORE_ATTRIBUTES, vfile));
+    }
+
+    private static String annotate(VFileAnnotator.Mode mode, VFile vfile) throws Exception {
+        StringWriter out = new StringWriter();
+        new VFileAnnotator(mode).annotate(new ByteArrayInputStream(serialize(
+                vfile.toDocument()).getBytes("UTF-8")), out);
+        return out.toString();
+    }
+
+    private static Document resolve(VFileResolver resolver, byte[] vfile) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resolver.resolve(new ByteArrayInputStream(vfile), out);
+        return VFileXmlPool.getDocumentBuilder().parse(
+                new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void testSubtreeHashes() throws Exception {
+        // The native diff without the hashes walks every subtree.
+        XmlDiff unpruned = new XmlDiffAdapter() {
+            @Override
+            public List<XmlChange> diff(Document controlDocument, Document testDocument) {
+                return new XmlDiffNative().diff(controlDocument, testDocument);
+            }
+        };
+        String[] corpora = { "5k-10revs", "50k-27revs", "techdoc-demo1" };
+        for (String name : corpora) {
+            File[] corpus = getCorpus(name);
+            List<Document> documents = new ArrayList<Document>();
+            for (File file : corpus) {
+                documents.add(VFileXmlPool.getDocumentBuilder().parse(file));
+            }
+            // Kept in memory, so the hashes of one update are used by the next.
+            VFile pruned = VFile.normalizeDocument(documents.get(0), "1000", "1");
+            VFile derived = VFile.normalizeDocument(documents.get(0), "1000", "1");
+            VFile full = VFile.normalizeDocument(documents.get(0), "1000", "1");
+            for (int i = 1; i < corpus.length; i++) {
+                String time = 1000 * (i + 1) + "";
+                String version = "" + (i + 1);
+                pruned.update(documents.get(i - 1), documents.get(i), time, version,
+                        new XmlDiffNative());
+                derived.update(documents.get(i), time, version, new XmlDiffNative());
+                full.update(documents.get(i - 1), documents.get(i), time, version, unpruned);
+                String expected = serialize(full.toDocument());
+                assertEquals(name + " " + i, expected, serialize(pruned.toDocument()));
+                assertEquals(name + " " + i, expected, serialize(derived.toDocument()));
+            }
+        }
+
+        // Changes deep down must drop the hashes of the ancestors.
+        String[] versions = { "<r><s><p>a</p><p>b</p></s><t x='1'/></r>",
+                "<r><s><p>a</p><p>c</p></s><t x='1'/></r>",
+                "<r><s><p>a</p><p>b</p></s><t x='1'/></r>",
+                "<r><s><p>a</p><p>b</p></s><t x='2'/></r>",
+                "<r><s><p>a</p><p>b</p></s><t x='1'/></r>",
+                "<r><s><p>a</p><p>b</p><!--n--></s><t x='1'/></r>",
+                "<r><s><p>a</p><p>b</p></s><t x='1'/></r>" };
+        VFile vfile = VFile.normalizeDocument(parse(versions[0]), "1000", "1");
+        for (int i = 1; i < versions.length; i++) {
+            Document document = parse(versions[i]);
+            vfile.update(document, 1000 * (i + 1) + "", "" + (i + 1), new XmlDiffNative());
+            assertEquals(versions[i], VFile.getContentHash(document),
+                    VFile.getContentHash(vfile.getLiveDocument()));
+            vfile.matchDocument(document);
+        }
+    }
+
+    @Test
+    public void testSimpleXPath() throws Exception {
+        Document document = parse("<a><b/><b x='1'>t<!--c--><?p d?></b></a>");
+        Element b = (Element) document.getDocumentElement().getChildNodes().item(1);
+        SimpleXPath parent = new SimpleXPath(b);
+        assertEquals("/a[1]/b[2]", parent.toString());
+
+        // Children share the path of their parent.
+        SimpleXPath[] children = { new SimpleXPath(parent, b.getAttributeNode("x"), 5),
+                new SimpleXPath(parent, b.getFirstChild(), 0),
+                new SimpleXPath(parent, b.getChildNodes().item(1), 0),
+                new SimpleXPath(parent, b.getChildNodes().item(2), 0),
+                parent.append(new Axis("c", Nodetype.ELEMENT, 2)) };
+        String[] strings = { "/a[1]/b[2]/@x", "/a[1]/b[2]/text()[1]",
+                "/a[1]/b[2]/comment()[1]", "/a[1]/b[2]/processing-instruction()[1]",
+                "/a[1]/b[2]/c[3]" };
+        for (int i = 0; i < children.length; i++) {
+            SimpleXPath child = children[i];
+            assertTrue(child.getParent() == parent);
+            assertEquals(strings[i], child.toString());
+            assertEquals(3, child.getLength());
+            assertTrue(child.startsWith(parent));
+            assertFalse(parent.startsWith(child));
+
+            // Equal to the same path built without sharing, with the hash
+            // code of the list of axi.
+            SimpleXPath parsed = new SimpleXPath(strings[i]);
+            assertFalse(parsed.getParent() == parent);
+            assertEquals(child, parsed);
+            assertEquals(parsed, child);
+            assertEquals(child.hashCode(), parsed.hashCode());
+            List<Axis> axi = new ArrayList<Axis>();
+            for (Axis axis : child) {
+                axi.add(axis);
+            }
+            assertEquals(31 + axi.hashCode(), child.hashCode());
+            assertEquals("a", child.getFirstAxis().name);
+        }
+        assertEquals(new SimpleXPath(b.getChildNodes().item(1)), children[2]);
+        assertFalse(children[0].equals(children[1]));
+        assertFalse(new SimpleXPath("/a[1]/b[1]").equals(parent));
+        assertFalse(new SimpleXPath("/a[1]/b[1]/c[3]").equals(children[4]));
+        assertEquals(new SimpleXPath(), new SimpleXPath("/a[1]").getParent());
+
+        String[] invalid = { "a[1]", "/a", "/a[x]", "/a[1]/b[]" };
+        for (String xPath : invalid) {
+            try {
+                new SimpleXPath(xPath);
+                fail("Expected " + xPath + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testLiveChildren() throws Exception {
+        String[] versions = { "<r><p>1</p><p>2</p><p>3</p><q a='x'/><p>4</p></r>",
+                "<r><p>1</p><p>3</p><q a='x'/><p>4</p><p>5</p></r>",
+                "<r><p>3</p><p>1</p><q a='y' b='z'/><p>4</p><p>5</p></r>",
+                "<r><p>3</p><q/><p>6</p></r>",
+                "<r><p>3</p><q a='x'/><p>6</p><p>7</p><p>8</p></r>" };
+        String[][] values = { { "1", "2", "3", "4" }, { "1", "3", "4", "5" },
+                { "3", "1", "4", "5" }, { "3", "6" }, { "3", "6", "7", "8" } };
+        String[] attributes = { "x", "x", "y", null, "x" };
+        VFile vfile = VFile.normalizeDocument(parse(versions[0]), "1000", "1");
+        for (int i = 0; i < versions.length; i++) {
+            Document document = parse(versions[i]);
+            if (i > 0) {
+                vfile.update(document, 1000 * (i + 1) + "", "" + (i + 1), new XmlDiffNative());
+            }
+            // Looked up twice, so that the second lookup is answered from
+            // what the first left behind.
+            for (int lookup = 0; lookup < 2; lookup++) {
+                TaggedNode root = vfile.getNodeMap(document).get(new SimpleXPath("/r[1]"));
+                List<TaggedNode> children = root.getElementsByTagName("p");
+                assertEquals(versions[i], values[i].length, children.size());
+                for (int n = 0; n < values[i].length; n++) {
+                    assertEquals(children.get(n), root.getNthElementByTagName(n, "p"));
+                    assertEquals(values[i][n], children.get(n).getNthNodeOfType(0,
+                            Nodetype.TEXT).getValue());
+                    assertTrue(children.get(n).isLive());
+                }
+                assertNull(root.getNthElementByTagName(values[i].length, "p"));
+                TaggedNode q = root.getNthElementByTagName(0, "q");
+                TaggedNode a = q.getAttribute("a");
+                assertEquals(versions[i], attributes[i], a == null ? null : a.getValue());
+                assertEquals(i == 2, q.getAttribute("b") != null);
+            }
+        }
+    }
+
+    @Test
+    public void testNodeMap() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        VFileStore store = new VFileStoreMemory();
+        this.calculate(store, corpus, 0, 4);
+        VFile vfile = new VFile(store.get(this.testID));
+        Document document = VFileXmlPool.getDocumentBuilder().parse(corpus[3]);
+        Map<SimpleXPath, TaggedNode> nodeMap = vfile.getNodeMap(document);
+        List<Node> nodes = new ArrayList<Node>();
+        collectNodes(document.getDocumentElement(), nodes);
+        for (Node node : nodes) {
+            SimpleXPath path = new SimpleXPath(node);
+            TaggedNode tagged = nodeMap.get(path);
+            assertNotNull(path.toString(), tagged);
+            assertTrue(path.toString(), tagged.isLive());
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                assertEquals(path.toString(), node.getNodeName(), tagged.getName());
+            } else if (node.getNodeType() == Node.ATTRIBUTE_NODE) {
+                assertEquals(path.toString(), node.getNodeValue(), tagged.getValue());
+            }
+        }
+        assertEquals(nodes.size(), nodeMap.size());
+
+        try {
+            vfile.getNodeMap(VFileXmlPool.getDocumentBuilder().parse(corpus[4]));
+            fail("Expected the next revision not to match");
+        } catch (NoMatchException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Adds the element, its attributes other than namespace declarations and
+     * its children other than whitespace, as the node map has them.
+     */
+    private static void collectNodes(Element element, List<Node> nodes) {
+        nodes.add(element);
+        for (int i = 0; i < element.getAttributes().getLength(); i++) {
+            Node attribute = element.getAttributes().item(i);
+            if (!attribute.getNodeName().startsWith("xmlns")) {
+                nodes.add(attribute);
+            }
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                collectNodes((Element) child, nodes);
+            } else if (child.getNodeType() != Node.TEXT_NODE
+                    || child.getNodeValue().trim().length() > 0) {
+                nodes.add(child);
+            }
+        }
+    }
+
+    private static Document parse(String xml) throws Exception {
+        return VFileXmlPool.getDocumentBuilder().parse(
+                new InputSource(new StringReader(xml)));
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        String[] corpora = { "5k-10revs", "50k-27revs", "techdoc-demo1",
+                "techdoc-demo1-norid" };
+        for (String name : corpora) {
+            File[] corpus = getCorpus(name);
+            String expected = this.getExpected(corpus, corpus.length);
+            VFileStoreBinary binary = new VFileStoreBinary(new File(this.testDir, "binary-"
+                    + name).getPath());
+            this.calculate(binary, corpus, 0, corpus.length);
+            Document vfile = binary.get(this.testID);
+            assertEquals(name, expected, serialize(vfile));
+            assertEquals(corpus.length, binary.getHighestCalculated(this.testID).getNumber());
+
+            ByteArrayOutputStream exported = new ByteArrayOutputStream();
+            assertTrue(binary.exportXml(this.testID, exported));
+            assertEquals(name, expected, exported.toString("UTF-8"));
+
+            VFileMapped mapped = binary.map(this.testID);
+            Element root = vfile.getDocumentElement();
+            assertEquals(Integer.toString(corpus.length), mapped.getHeader().docVersion);
+            assertEquals(root.getAttribute("v:contentHash"), mapped.getHeader().contentHash);
+            assertEquals(root.getAttribute("v:docTime"), mapped.getDocumentElement()
+                    .getAttribute("v:docTime"));
+        }
+    }
+
+    @Test
+    public void testMapped() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        VFileStoreBinary binary = new VFileStoreBinary(new File(this.testDir, "binary")
+                .getPath());
+        this.calculate(binary, corpus, 0, corpus.length);
+        Document vfile = binary.get(this.testID);
+        VFileMapped mapped = binary.map(this.testID);
+        assertMapped(mapped, vfile.getDocumentElement(), mapped.getDocumentElement());
+
+        // Live nodes are selected like SimpleXPath.eval selects them.
+        Document document = VFileXmlPool.getDocumentBuilder().parse(
+                corpus[corpus.length - 1]);
+        Map<SimpleXPath, TaggedNode> nodeMap = new VFile(vfile).getNodeMap(document);
+        for (Map.Entry<SimpleXPath, TaggedNode> entry : nodeMap.entrySet()) {
+            VFileMapped.Node node = mapped.select(entry.getKey());
+            assertNotNull(entry.getKey().toString(), node);
+            assertEquals(entry.getKey().toString(), entry.getValue().toElement().getTagName(),
+                    node.getName());
+            if (entry.getValue().getValue() != null) {
+                assertEquals(entry.getValue().getValue(), node.getText());
+            }
+        }
+        assertNull(mapped.select(new SimpleXPath("/section[1]/nosuch[1]")));
+        assertNull(mapped.select(new SimpleXPath("/section[1]/@nosuch")));
+        try {
+            mapped.getNode(mapped.getDocumentElement().getOffset() - 1);
+            fail("Expected no element before the document element");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Compares a mapped node and its subtree with the DOM element.
+     */
+    private static void assertMapped(VFileMapped mapped, Element element,
+            VFileMapped.Node node) {
+        assertEquals(element.getTagName(), node.getName());
+        assertEquals(element.getTagName(), mapped.getNode(node.getOffset()).getName());
+        for (int i = 0; i < element.getAttributes().getLength(); i++) {
+            Node attribute = element.getAttributes().item(i);
+            assertEquals(attribute.getNodeName(), attribute.getNodeValue(),
+                    node.getAttribute(attribute.getNodeName()));
+        }
+        assertEquals(element.getAttribute("v:end").equals("NOW"), node.isLive());
+        StringBuilder text = new StringBuilder();
+        List<Element> children = new ArrayList<Element>();
+        for (Node child = element.getFirstChild(); child != null; child = child
+                .getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                children.add((Element) child);
+            } else {
+                text.append(child.getNodeValue());
+            }
+        }
+        assertEquals(text.toString(), node.getText());
+        List<VFileMapped.Node> mappedChildren = node.getChildren();
+        assertEquals(children.size(), mappedChildren.size());
+        for (int i = 0; i < children.size(); i++) {
+            assertMapped(mapped, children.get(i), mappedChildren.get(i));
+        }
+    }
+
+    @Test
+    public void testBinaryVersion1() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        File dir = new File(this.testDir, "binary");
+        this.calculate(new VFileStoreBinary(dir.getPath()), corpus, 0, 4);
+
+        // Format version 1 has no content hash in the header.
+        File file = new File(dir, "x.xml");
+        byte[] data = FileUtils.readFileToByteArray(file);
+        int hash = 4;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(data[hash] >= 0); // a one byte length
+            hash += 1 + data[hash];
+        }
+        ByteArrayOutputStream version1 = new ByteArrayOutputStream();
+        version1.write(data, 0, 3);
+        version1.write(1);
+        version1.write(data, 4, hash - 4);
+        version1.write(data, hash + 1 + data[hash], data.length - hash - 1 - data[hash]);
+        FileUtils.writeByteArrayToFile(file, version1.toByteArray());
+
+        VFileStoreBinary binary = new VFileStoreBinary(dir.getPath());
+        assertEquals(4, binary.getHighestCalculated(this.testID).getNumber());
+        assertEquals(this.getExpected(corpus, 4), serialize(binary.get(this.testID)));
+        assertEquals(null, binary.map(this.testID).getHeader().contentHash);
+        this.calculate(binary, corpus, 4, corpus.length);
+        assertEquals(this.getExpected(corpus, corpus.length), serialize(binary.get(this.testID)));
+    }
+
+    @Test
+    public void testCaching() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        VFileStore disk = new VFileStoreDisk(new File(this.testDir, "cached").getPath());
+        CachingVFileStore caching = new CachingVFileStore(disk, 1000000);
+        this.calculate(caching, corpus, 0, corpus.length);
+        // Every increment after the first takes the v-file put before it.
+        assertEquals(corpus.length - 1, caching.getHits());
+        assertEquals(0, caching.getMisses());
+        assertTrue(caching.getCachedNodes() > 0);
+
+        String expected = this.getExpected(corpus, corpus.length);
+        assertEquals(expected, serialize(disk.get(this.testID)));
+        long cached = caching.getCachedNodes();
+
+        // Read-only callers get a copy and leave the v-file cached.
+        Document vfile = caching.get(this.testID);
+        assertEquals(expected, serialize(vfile));
+        vfile.getDocumentElement().setAttribute("v:docVersion", "0");
+        assertEquals(expected, serialize(caching.get(this.testID)));
+        assertEquals(cached, caching.getCachedNodes());
+        assertEquals(corpus.length + 1, caching.getHits());
+        assertEquals(0, caching.getMisses());
+
+        // Put keeps a copy, not the document the caller still holds.
+        Document original = caching.get(this.testID);
+        caching.put(this.testID, vfile);
+        vfile.getDocumentElement().setAttribute("v:docVersion", "1");
+        assertEquals("0", caching.get(this.testID).getDocumentElement()
+                .getAttribute("v:docVersion"));
+        caching.put(this.testID, original);
+
+        // Checked out and changed but not checked in, it is read again.
+        vfile = caching.checkout(this.testID);
+        assertEquals(0, caching.getCachedNodes());
+        vfile.getDocumentElement().setAttribute("v:docVersion", "0");
+        assertEquals(expected, serialize(caching.get(this.testID)));
+        assertEquals(1, caching.getMisses());
+    }
+
+    @Test
+    public void testCachingEviction() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        CmsItemId otherID = new CmsItemIdUrl(new CmsRepository("/anyparent", "anyname"),
+                new CmsItemPath("/y.xml"));
+        CachingVFileStore sizing = new CachingVFileStore(new VFileStoreMemory(), 1000000);
+        this.calculate(sizing, corpus, 0, 1);
+        long first = sizing.getCachedNodes();
+        this.calculate(sizing, corpus, 1, corpus.length);
+        long nodes = sizing.getCachedNodes();
+
+        // Room for the v-file of all revisions, but not with another one.
+        VFileStore disk = new VFileStoreDisk(new File(this.testDir, "cached").getPath());
+        CachingVFileStore caching = new CachingVFileStore(disk, nodes + first / 2);
+        this.calculate(caching, corpus, 0, corpus.length);
+        this.calculate(caching, otherID, corpus, 0, corpus.length);
+        assertEquals(1, caching.getEvictions());
+        assertEquals(nodes, caching.getCachedNodes());
+        assertEquals(2 * (corpus.length - 1), caching.getHits());
+        assertEquals(0, caching.getMisses());
+
+        String expected = this.getExpected(corpus, corpus.length);
+        assertEquals(expected, serialize(caching.get(this.testID)));
+        assertEquals(1, caching.getMisses());
+        assertEquals(expected, serialize(caching.get(otherID)));
+        assertEquals(2 * (corpus.length - 1) + 1, caching.getHits());
+
+        // Too large to be cached at all.
+        CachingVFileStore small = new CachingVFileStore(new VFileStoreMemory(), first / 2);
+        this.calculate(small, corpus, 0, 4);
+        assertEquals(0, small.getCachedNodes());
+        assertEquals(3, small.getMisses());
+        assertEquals(0, small.getEvictions());
+    }
+
+    @Test
+    public void testRevisionIndex() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        File dir = new File(this.testDir, "disk");
+        File sidecar = new File(dir, "x.xml.revisions");
+        VFileStore disk = new VFileStoreDisk(dir.getPath());
+        this.calculate(disk, corpus, 0, 5);
+        String atFive = FileUtils.readFileToString(sidecar);
+        RevisionIndex index = disk.getRevisionIndex(this.testID);
+        assertEquals(atFive, serialize(index));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L),
+                new ArrayList<Long>(index.getRevisions()));
+
+        // Appended to by each increment.
+        this.calculate(disk, corpus, 5, corpus.length);
+        String kept = FileUtils.readFileToString(sidecar);
+        assertTrue(kept.startsWith(atFive));
+        index = disk.getRevisionIndex(this.testID);
+        assertEquals(kept, serialize(index));
+        assertEquals(corpus.length, index.getLastRevision().longValue());
+        List<RevisionChange> changes = new ArrayList<RevisionChange>();
+        for (long r = 6; r <= corpus.length; r++) {
+            changes.addAll(index.getChanges(r));
+        }
+        assertEquals(changes, index.getChanges(5, corpus.length));
+
+        VFileStore memory = new VFileStoreMemory();
+        this.calculate(memory, corpus, 0, corpus.length);
+        assertEquals(kept, serialize(memory.getRevisionIndex(this.testID)));
+
+        // Behind the v-file, it is built again from the v-file.
+        FileUtils.writeStringToFile(sidecar, atFive);
+        String built = serialize(RevisionIndex.build(disk.get(this.testID)));
+        assertEquals(built, serialize(disk.getRevisionIndex(this.testID)));
+        assertEquals(built, FileUtils.readFileToString(sidecar));
+
+        // Dropped by a put without changes.
+        disk.put(this.testID, disk.get(this.testID));
+        assertFalse(sidecar.exists());
+        assertEquals(built, serialize(disk.getRevisionIndex(this.testID)));
+    }
+
+    @Test
+    public void testRevisionIndexStale() throws Exception {
+        File[] corpus = getCorpus("5k-10revs");
+        File dir = new File(this.testDir, "disk");
+        File sidecar = new File(dir, "x.xml.revisions");
+        VFileStore disk = new VFileStoreDisk(dir.getPath());
+        this.calculate(disk, corpus, 0, 3);
+        String atThree = FileUtils.readFileToString(sidecar);
+        this.calculate(disk, corpus, 3, 5);
+
+        // Not appended to when behind the previous v-file.
+        FileUtils.writeStringToFile(sidecar, atThree);
+        this.calculate(disk, corpus, 5, 6);
+        assertFalse(sidecar.exists());
+        this.calculate(disk, corpus, 6, corpus.length);
+        assertFalse(sidecar.exists());
+        assertEquals(serialize(RevisionIndex.build(disk.get(this.testID))),
+                serialize(disk.getRevisionIndex(this.testID)));
+        assertTrue(sidecar.exists());
+    }
+}
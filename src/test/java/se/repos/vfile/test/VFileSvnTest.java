@@ -1,11 +1,25 @@
 package se.repos.vfile.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Provider;
 import javax.xml.parsers.DocumentBuilder;
@@ -36,10 +50,16 @@ import org.tmatesoft.svn.core.wc.admin.SVNLookClient;
 import org.w3c.dom.Document;
 
 import se.repos.vfile.VFileCalculatorImpl;
+import se.repos.vfile.VFileCommitException;
 import se.repos.vfile.VFileCommitHandler;
 import se.repos.vfile.VFileCommitItemHandler;
+import se.repos.vfile.VFileCommitQueue;
 import se.repos.vfile.VFileDocumentBuilderFactory;
 import se.repos.vfile.gen.VFile;
+import se.repos.vfile.gen.VFileResolver;
+import se.repos.vfile.gen.XmlDiff;
+import se.repos.vfile.gen.XmlDiffNative;
+import se.repos.vfile.gen.XmlDiffXmlUnit;
 import se.repos.vfile.store.VFileStore;
 import se.repos.vfile.store.VFileStoreDisk;
 import se.simonsoft.cms.backend.svnkit.CmsRepositorySvn;
@@ -50,7 +70,10 @@ import se.simonsoft.cms.item.CmsItemId;
 import se.simonsoft.cms.item.CmsItemPath;
 import se.simonsoft.cms.item.CmsRepository;
 import se.simonsoft.cms.item.RepoRevision;
+import se.simonsoft.cms.item.events.change.CmsChangeset;
+import se.simonsoft.cms.item.events.change.CmsChangesetItem;
 import se.simonsoft.cms.item.impl.CmsItemIdUrl;
+import se.simonsoft.cms.item.inspection.CmsRepositoryInspection;
 
 /**
  * Try to mimic the runtime scenario in webapp. Volume testing of the actual
@@ -68,6 +91,8 @@ public class VFileSvnTest {
     private SVNURL repoUrl;
     private File wc = null;
 
+    private XmlDiff xmlDiff = new XmlDiffXmlUnit();
+
     private SVNClientManager clientManager = null;
     private Provider<SVNLookClient> svnlookProvider = new SvnlookClientProviderStateless();
 
@@ -192,7 +217,8 @@ public class VFileSvnTest {
         }
 
         VFileStore store = new VFileStoreDisk("./vfilestore");
-        VFileCalculatorImpl calculator = new VFileCalculatorImpl(store);
+        VFileCalculatorImpl calculator = new VFileCalculatorImpl(store)
+                .setXmlDiff(this.xmlDiff);
 
         VFileCommitItemHandler itemHandler = new VFileCommitItemHandler(calculator,
                 contentsReader);
@@ -211,6 +237,16 @@ public class VFileSvnTest {
             v.matchDocument(d); // This validation is performed after "Increment..." logging.
         }
 
+        // The latest revision resolved from the V-file should match the last document.
+        ByteArrayOutputStream vfileXml = new ByteArrayOutputStream();
+        trans.transform(new DOMSource(store.get(testID)), new StreamResult(vfileXml));
+        ByteArrayOutputStream resolved = new ByteArrayOutputStream();
+        new VFileResolver(revisions.get(revisions.size() - 1).getNumber()).resolve(
+                new ByteArrayInputStream(vfileXml.toByteArray()), resolved);
+        Document head = db.parse(new ByteArrayInputStream(resolved.toByteArray()));
+        VFile.normalizeDocument(head, "0", "0").matchDocument(
+                documents.get(documents.size() - 1));
+
         // write resulting vfile to test folder, for manual inspection
         if (!this.doCleanup) {
         	DOMSource resultVfile = new DOMSource(store.get(testID));
@@ -306,6 +342,18 @@ public class VFileSvnTest {
                 "ca_1388.xml", "ca_1399.xml");
     }
 
+    @Test
+    public void test50k27revsNativeDiff() throws Exception {
+        this.xmlDiff = new XmlDiffNative();
+        this.test50k27revs();
+    }
+
+    @Test
+    public void testTechdocDemo1NativeDiff() throws Exception {
+        this.xmlDiff = new XmlDiffNative();
+        this.testTechdocDemo1Rids();
+    }
+
     @Test
     @Ignore
     /*
@@ -323,4 +371,378 @@ public class VFileSvnTest {
                 "ed_1184.xml", "ed_1185.xml", "ed_1186.xml", "ed_1188.xml",
                 "ed_1189.xml", "ed_1400.xml");
     }
+
+    /**
+     * Commits the files in order as the item.
+     * 
+     * @return the revision of each commit
+     */
+    private List<RepoRevision> svncommitFiles(CmsItemId testID, File folder,
+            String... filePaths) throws Exception {
+        this.svncheckout();
+        File testFile = new File(this.wc, testID.getRelPath().getPath());
+        List<RepoRevision> revisions = new ArrayList<RepoRevision>();
+        for (int i = 0; i < filePaths.length; i++) {
+            FileUtils.copyFile(new File(folder, filePaths[i]), testFile);
+            if (i == 0) {
+                this.svnadd(testFile);
+            }
+            RepoRevision svncommit = this.svncommit("");
+            if (svncommit == null) {
+                throw new RuntimeException("No diff for file " + filePaths[i]);
+            }
+            revisions.add(svncommit);
+        }
+        return revisions;
+    }
+
+    private static List<Long> getNumbers(List<RepoRevision> revisions) {
+        List<Long> numbers = new ArrayList<Long>();
+        for (RepoRevision revision : revisions) {
+            numbers.add(revision.getNumber());
+        }
+        return numbers;
+    }
+
+    private static String serialize(Document vfile) throws Exception {
+        assertNotNull("Expected a stored v-file", vfile);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TransformerFactory.newInstance().newTransformer().transform(new DOMSource(vfile),
+                new StreamResult(out));
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Records the revisions of each increment, failing at one of them or for
+     * one path.
+     */
+    private static class RecordingItemHandler extends VFileCommitItemHandler {
+        final List<List<RepoRevision>> batches = Collections
+                .synchronizedList(new ArrayList<List<RepoRevision>>());
+        volatile long failAt = -1;
+        volatile String failPath = null;
+
+        RecordingItemHandler(VFileCalculatorImpl calculator,
+                CmsContentsReaderSvnkitLook contentsReader) {
+            super(calculator, contentsReader);
+        }
+
+        @Override
+        public void onCommit(CmsRepositoryInspection repository, CmsChangesetItem item) {
+            if (item.getPath().getPath().equals(this.failPath)) {
+                throw new IllegalStateException("Failing for " + item.getPath());
+            }
+            this.batches.add(Collections.singletonList(item.getRevisionChanged()));
+            super.onCommit(repository, item);
+        }
+
+        @Override
+        public void onCommit(CmsRepositoryInspection repository, CmsItemPath path,
+                RepoRevision previous, List<RepoRevision> revisions) {
+            for (RepoRevision revision : revisions) {
+                if (revision.getNumber() == this.failAt) {
+                    throw new IllegalStateException("Failing at " + revision);
+                }
+            }
+            this.batches.add(revisions);
+            super.onCommit(repository, path, previous, revisions);
+        }
+    }
+
+    /**
+     * Fails at one revision, after writing the start of a document, or writes
+     * a malformed document too large for the pipe.
+     */
+    private static class FailingContentsReader extends CmsContentsReaderSvnkitLook {
+        volatile long failAt = -1;
+        volatile boolean malformed = false;
+
+        @Override
+        public void getContents(CmsRepositoryInspection repository, RepoRevision revision,
+                CmsItemPath path, OutputStream out) {
+            try {
+                if (this.malformed) {
+                    out.write("<a></b>".getBytes("UTF-8"));
+                    out.write(new byte[1024 * 1024]);
+                    return;
+                }
+                if (revision.getNumber() == this.failAt) {
+                    out.write("<?xml version=\"1.0\"?><section>".getBytes("UTF-8"));
+                    throw new IllegalStateException("Repository unavailable");
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+            super.getContents(repository, revision, path, out);
+        }
+    }
+
+    @Test
+    public void testReadExecutor() throws Exception {
+        CmsRepository repository = new CmsRepository("/anyparent", "anyname");
+        CmsItemId testID = new CmsItemIdUrl(repository, new CmsItemPath("/5k-10revs.xml"));
+        List<RepoRevision> revisions = this.svncommitFiles(testID, new File(
+                "src/test/resources/se/repos/vfile/5k-10revs"), "mo_0915.xml",
+                "mo_0967.xml", "mo_1008.xml", "mo_1032.xml", "mo_1072.xml");
+
+        CmsRepositorySvn repositorySvn = new CmsRepositorySvn(repository.getParentPath(),
+                repository.getName(), this.repoDir);
+        FailingContentsReader contentsReader = new FailingContentsReader();
+        contentsReader.setSVNLookClientProvider(this.svnlookProvider);
+        CmsChangesetReaderSvnkitLook changesetReader = new CmsChangesetReaderSvnkitLook();
+        changesetReader.setSVNLookClientProvider(this.svnlookProvider);
+
+        VFileStore expected = new VFileStoreDisk(new File(this.testDir, "expected").getPath());
+        VFileCommitHandler commitHandler = new VFileCommitHandler(repositorySvn,
+                new VFileCommitItemHandler(new VFileCalculatorImpl(expected)
+                        .setXmlDiff(this.xmlDiff), contentsReader))
+                .setCmsChangesetReader(changesetReader);
+        for (RepoRevision revision : revisions) {
+            commitHandler.onCommit(revision);
+        }
+
+        ExecutorService readExecutor = Executors.newCachedThreadPool();
+        try {
+            VFileStore store = new VFileStoreDisk(new File(this.testDir, "streamed").getPath());
+            commitHandler = new VFileCommitHandler(repositorySvn, new VFileCommitItemHandler(
+                    new VFileCalculatorImpl(store).setXmlDiff(this.xmlDiff), contentsReader)
+                    .setReadExecutor(readExecutor)).setCmsChangesetReader(changesetReader);
+            for (RepoRevision revision : revisions.subList(0, 3)) {
+                commitHandler.onCommit(revision);
+            }
+
+            // A failed read reaches the parser instead of a truncated document.
+            contentsReader.failAt = revisions.get(3).getNumber();
+            try {
+                commitHandler.onCommit(revisions.get(3));
+                fail("Expected the failed read to fail the commit");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Failed to read "
+                        + testID.getRelPath()));
+                assertTrue(e.getMessage(), e.getMessage().contains("Repository unavailable"));
+            }
+            assertEquals(revisions.get(2).getNumber(), store.getHighestCalculated(testID)
+                    .getNumber());
+            contentsReader.failAt = -1;
+            for (RepoRevision revision : revisions.subList(3, revisions.size())) {
+                commitHandler.onCommit(revision);
+            }
+            assertEquals(serialize(expected.get(testID)), serialize(store.get(testID)));
+
+            // A parse that fails early must not leave the read waiting for room
+            // in the pipe.
+            contentsReader.malformed = true;
+            try {
+                commitHandler.onCommit(revisions.get(revisions.size() - 1));
+                fail("Expected the malformed document to fail the commit");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        } finally {
+            readExecutor.shutdown();
+        }
+        assertTrue("Expected the reads to end", readExecutor.awaitTermination(10,
+                TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCommitConcurrentFailure() throws Exception {
+        CmsRepository repository = new CmsRepository("/anyparent", "anyname");
+        File folder = new File("src/test/resources/se/repos/vfile/5k-10revs");
+        String[] names = { "a.xml", "b.xml", "c.xml" };
+        this.svncheckout();
+        for (String name : names) {
+            File file = new File(this.wc, name);
+            FileUtils.copyFile(new File(folder, "mo_0915.xml"), file);
+            this.svnadd(file);
+        }
+        RepoRevision revision = this.svncommit("");
+
+        CmsRepositorySvn repositorySvn = new CmsRepositorySvn(repository.getParentPath(),
+                repository.getName(), this.repoDir);
+        CmsContentsReaderSvnkitLook contentsReader = new CmsContentsReaderSvnkitLook();
+        contentsReader.setSVNLookClientProvider(this.svnlookProvider);
+        CmsChangesetReaderSvnkitLook changesetReader = new CmsChangesetReaderSvnkitLook();
+        changesetReader.setSVNLookClientProvider(this.svnlookProvider);
+        CmsChangeset changeset = changesetReader.read(repositorySvn, revision);
+        assertEquals(names.length, changeset.getItems().size());
+
+        VFileStore store = new VFileStoreDisk(new File(this.testDir, "concurrent").getPath());
+        RecordingItemHandler itemHandler = new RecordingItemHandler(new VFileCalculatorImpl(
+                store).setXmlDiff(this.xmlDiff), contentsReader);
+        itemHandler.failPath = "/b.xml";
+        ExecutorService executor = Executors.newFixedThreadPool(names.length);
+        try {
+            VFileCommitHandler commitHandler = new VFileCommitHandler(repositorySvn,
+                    itemHandler).setExecutor(executor);
+            try {
+                commitHandler.onCommit(changeset);
+                fail("Expected the failure of b.xml");
+            } catch (VFileCommitException e) {
+                Map<CmsChangesetItem, Throwable> failures = e.getFailures();
+                assertEquals(1, failures.size());
+                CmsChangesetItem failed = failures.keySet().iterator().next();
+                assertEquals("/b.xml", failed.getPath().getPath());
+                assertTrue(failures.get(failed) instanceof IllegalStateException);
+                assertEquals(failures.get(failed), e.getCause());
+                assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 3 items failed"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // The other items ran and were stored.
+        assertEquals(2, itemHandler.batches.size());
+        for (String name : names) {
+            CmsItemId id = new CmsItemIdUrl(repository, new CmsItemPath("/" + name));
+            if (name.equals("b.xml")) {
+                assertFalse(store.has(id));
+            } else {
+                assertEquals(revision.getNumber(), store.getHighestCalculated(id).getNumber());
+            }
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testCommitQueue() throws Exception {
+        CmsRepository repository = new CmsRepository("/anyparent", "anyname");
+        CmsItemId testID = new CmsItemIdUrl(repository, new CmsItemPath("/5k-10revs.xml"));
+        List<RepoRevision> revisions = this.svncommitFiles(testID, new File(
+                "src/test/resources/se/repos/vfile/5k-10revs"), "mo_0915.xml",
+                "mo_0967.xml", "mo_1008.xml", "mo_1032.xml", "mo_1072.xml",
+                "mo_1110.xml", "mo_1170.xml", "mo_1228.xml", "mo_1235.xml",
+                "mo_1330.xml");
+
+        CmsRepositorySvn repositorySvn = new CmsRepositorySvn(repository.getParentPath(),
+                repository.getName(), this.repoDir);
+        CmsContentsReaderSvnkitLook contentsReader = new CmsContentsReaderSvnkitLook();
+        contentsReader.setSVNLookClientProvider(this.svnlookProvider);
+        CmsChangesetReaderSvnkitLook changesetReader = new CmsChangesetReaderSvnkitLook();
+        changesetReader.setSVNLookClientProvider(this.svnlookProvider);
+
+        VFileStore expected = new VFileStoreDisk(new File(this.testDir, "expected").getPath());
+        VFileCommitHandler commitHandler = new VFileCommitHandler(repositorySvn,
+                new VFileCommitItemHandler(new VFileCalculatorImpl(expected)
+                        .setXmlDiff(this.xmlDiff), contentsReader))
+                .setCmsChangesetReader(changesetReader);
+        for (RepoRevision revision : revisions) {
+            commitHandler.onCommit(revision);
+        }
+
+        // Queued while nothing runs, as if the process stopped right after.
+        VFileStore store = new VFileStoreDisk(new File(this.testDir, "queued").getPath());
+        RecordingItemHandler itemHandler = new RecordingItemHandler(new VFileCalculatorImpl(
+                store).setXmlDiff(this.xmlDiff), contentsReader);
+        final List<Runnable> parked = new ArrayList<Runnable>();
+        Executor park = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                parked.add(command);
+            }
+        };
+        File journal = new File(this.testDir, "journal");
+        VFileCommitQueue queue = new VFileCommitQueue(repositorySvn, itemHandler, park,
+                journal).start();
+        for (RepoRevision revision : revisions) {
+            queue.onCommit(changesetReader.read(repositorySvn, revision));
+        }
+        assertEquals("One run per item", 1, parked.size());
+        assertEquals(revisions.size(), queue.getPending());
+        queue.close();
+        assertTrue(itemHandler.batches.isEmpty());
+
+        // A line with its path cut, and one cut short by a crash.
+        String first = FileUtils.readFileToString(journal).split("\n")[0];
+        int mark = first.lastIndexOf(" #");
+        String cut = first.substring(0, mark - 4) + first.substring(mark) + "\n";
+        FileOutputStream append = new FileOutputStream(journal, true);
+        append.write((cut + "+ 11 ").getBytes("UTF-8"));
+        append.close();
+
+        // Created again, the journal is processed in batches.
+        parked.clear();
+        queue = new VFileCommitQueue(repositorySvn, itemHandler, park, journal, 4);
+        assertTrue("Not started", parked.isEmpty());
+        assertEquals(revisions.size(), queue.getPending());
+        queue.start();
+        assertEquals(1, parked.size());
+        parked.get(0).run();
+        assertTrue(queue.awaitIdle(1, TimeUnit.SECONDS));
+        assertEquals(0, queue.getPending());
+        assertEquals(0, journal.length());
+        assertEquals(3, itemHandler.batches.size());
+        assertEquals(getNumbers(revisions.subList(0, 4)),
+                getNumbers(itemHandler.batches.get(0)));
+        assertEquals(getNumbers(revisions.subList(4, 8)),
+                getNumbers(itemHandler.batches.get(1)));
+        assertEquals(getNumbers(revisions.subList(8, 10)),
+                getNumbers(itemHandler.batches.get(2)));
+        queue.close();
+        assertEquals(serialize(expected.get(testID)), serialize(store.get(testID)));
+    }
+
+    @Test
+    public void testCommitQueueHold() throws Exception {
+        CmsRepository repository = new CmsRepository("/anyparent", "anyname");
+        CmsItemId testID = new CmsItemIdUrl(repository, new CmsItemPath("/5k-10revs.xml"));
+        List<RepoRevision> revisions = this.svncommitFiles(testID, new File(
+                "src/test/resources/se/repos/vfile/5k-10revs"), "mo_0915.xml",
+                "mo_0967.xml", "mo_1008.xml", "mo_1032.xml", "mo_1072.xml",
+                "mo_1110.xml", "mo_1170.xml", "mo_1228.xml", "mo_1235.xml",
+                "mo_1330.xml");
+
+        CmsRepositorySvn repositorySvn = new CmsRepositorySvn(repository.getParentPath(),
+                repository.getName(), this.repoDir);
+        CmsContentsReaderSvnkitLook contentsReader = new CmsContentsReaderSvnkitLook();
+        contentsReader.setSVNLookClientProvider(this.svnlookProvider);
+        CmsChangesetReaderSvnkitLook changesetReader = new CmsChangesetReaderSvnkitLook();
+        changesetReader.setSVNLookClientProvider(this.svnlookProvider);
+
+        VFileStore expected = new VFileStoreDisk(new File(this.testDir, "expected").getPath());
+        VFileCalculatorImpl reference = new VFileCalculatorImpl(expected)
+                .setXmlDiff(this.xmlDiff);
+        VFileCommitHandler commitHandler = new VFileCommitHandler(repositorySvn,
+                new VFileCommitItemHandler(reference, contentsReader))
+                .setCmsChangesetReader(changesetReader);
+        for (RepoRevision revision : revisions) {
+            commitHandler.onCommit(revision);
+        }
+
+        // Fails at the sixth revision, holding it and the ones after.
+        VFileStore store = new VFileStoreDisk(new File(this.testDir, "queued").getPath());
+        RecordingItemHandler itemHandler = new RecordingItemHandler(new VFileCalculatorImpl(
+                store).setXmlDiff(this.xmlDiff), contentsReader);
+        itemHandler.failAt = revisions.get(5).getNumber();
+        File journal = new File(this.testDir, "journal");
+        VFileCommitQueue queue = new VFileCommitQueue(repositorySvn, itemHandler, DIRECT,
+                journal, 1).start();
+        for (RepoRevision revision : revisions) {
+            queue.onCommit(changesetReader.read(repositorySvn, revision));
+        }
+        assertTrue(queue.awaitIdle(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singleton(testID.getRelPath()), queue.getHeld());
+        assertEquals(5, queue.getPending());
+        assertEquals(5, itemHandler.batches.size());
+        assertEquals(revisions.get(4).getNumber(), store.getHighestCalculated(testID)
+                .getNumber());
+        queue.close();
+
+        // Created again, the held revisions are tried again.
+        itemHandler.failAt = -1;
+        queue = new VFileCommitQueue(repositorySvn, itemHandler, DIRECT, journal).start();
+        assertTrue(queue.awaitIdle(1, TimeUnit.SECONDS));
+        assertTrue(queue.getHeld().isEmpty());
+        assertEquals(0, queue.getPending());
+        assertEquals(6, itemHandler.batches.size());
+        assertEquals(getNumbers(revisions.subList(5, 10)),
+                getNumbers(itemHandler.batches.get(5)));
+        queue.close();
+        assertEquals(serialize(expected.get(testID)), serialize(store.get(testID)));
+    }
 }